@@ -0,0 +1,66 @@
+package mr.demonid.benchmarks;
+
+import mr.demonid.view.controllers.ANSITextPane;
+import mr.demonid.view.controllers.AnsiParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Вывод длинного цветного текста в ANSITextPane клиента
+ * и отдельно его разбор на участки стилей (то, что клиент делает вне EDT).
+ * Перед каждым вызовом панели дается пустой документ, чтобы время
+ * не зависело от того, сколько текста накопилось за прогон.
+ * Окно не создается, поэтому замеры идут в режиме headless.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class AnsiBenchmark {
+
+    private static final String[] CODES = {"31", "32;1", "33;4", "34", "35;3", "36", "38;5;208", "38;2;10;200;30", "0"};
+
+    @Param({"100", "1000"})
+    public int segments;
+
+    private ANSITextPane pane;
+    private final AnsiParser parser = new AnsiParser();
+    private String text;
+
+
+    @Setup
+    public void setup()
+    {
+        pane = new ANSITextPane();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < segments; i++)
+        {
+            sb.append("\u001B[").append(CODES[i % CODES.length]).append('m').append("сообщение ").append(i);
+            if (i % 8 == 7)
+                sb.append('\n');
+        }
+        text = sb.toString();
+    }
+
+    @Setup(Level.Invocation)
+    public void clear()
+    {
+        pane.setDocument(pane.getEditorKit().createDefaultDocument());
+    }
+
+    @Benchmark
+    public int appendANSI()
+    {
+        pane.appendANSI(text);
+        return pane.getDocument().getLength();
+    }
+
+    @Benchmark
+    public int parse()
+    {
+        return parser.parse(text).size();
+    }
+}
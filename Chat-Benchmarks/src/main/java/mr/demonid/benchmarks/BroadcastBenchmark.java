@@ -0,0 +1,72 @@
+package mr.demonid.benchmarks;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.controller.ClientManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Рассылка ClientManager при разном числе подключенных клиентов:
+ * общее сообщение всем (broadcastMessage) и личное одному (resendPrivateMessage,
+ * т.е. поиск адресата по имени и отправка ему).
+ * Клиенты - соединения в памяти (MemoryConnection), зарегистрированные
+ * обычным входом, так что рассылка идет по настоящему реестру.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    private static final int TARGETS = 1024;
+
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    private final ClientManager manager = ClientManager.getInstance();
+    private Message broadcast;
+    private Message[] privates;
+    private int next;
+
+
+    @Setup
+    public void setup()
+    {
+        manager.removeAllUsers();
+        for (int i = 0; i < recipients; i++)
+        {
+            if (!manager.registerUser(new MemoryConnection("user-" + i, 10_000 + i, 64 * 1024), -1, null))
+                throw new IllegalStateException("user-" + i + " not registered!");
+        }
+        Account author = new Account("author", "", "", "");
+        broadcast = new Message(author, null, "Привет всем! ".repeat(4));
+        Random random = new Random(1);
+        privates = new Message[TARGETS];
+        for (int i = 0; i < TARGETS; i++)
+            privates[i] = new Message(author, "user-" + random.nextInt(recipients), "Привет! ".repeat(4));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        manager.removeAllUsers();
+    }
+
+    @Benchmark
+    public void broadcast()
+    {
+        manager.broadcastMessage(broadcast);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void privateMessage()
+    {
+        manager.resendPrivateMessage(privates[next++ & (TARGETS - 1)]);
+    }
+}
@@ -0,0 +1,71 @@
+package mr.demonid.benchmarks;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.codec.Codecs;
+import mr.demonid.commons.codec.MessageCodec;
+import mr.demonid.commons.codec.SenderIds;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кодирование и разбор одного сообщения каждым из кодеков.
+ * Разбор - как у сервера: из неблокирующего буфера (NIO) и из потока (поток на соединение).
+ * Для двоичного кодека берется установившийся режим: номер отправителя
+ * другой стороне уже известен, и кадр DEFINE не передается.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"binary", "serial"})
+    public String codec;
+
+    @Param({"16", "256"})
+    public int length;
+
+    private Message message;
+    private MessageCodec encoder;
+    private MessageCodec decoder;
+    private byte[] frame;
+
+
+    @Setup
+    public void setup() throws IOException
+    {
+        message = new Message(new Account("alice", "", "", ""), null, "x".repeat(length));
+        message.setOffset(123_456);
+        byte id = Codecs.idOf(codec);
+        encoder = Codecs.create(id, new SenderIds());      // кадры сервера: с номером отправителя
+        decoder = Codecs.create(id);
+        // первый кадр несет определение отправителя, декодер его запоминает
+        decoder.decode(ByteBuffer.wrap(encoder.encode(message)));
+        frame = encoder.encode(message);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException
+    {
+        return encoder.encode(message);
+    }
+
+    @Benchmark
+    public Message decodeBuffer() throws IOException
+    {
+        return decoder.decode(ByteBuffer.wrap(frame));
+    }
+
+    @Benchmark
+    public Message readStream() throws IOException
+    {
+        return decoder.read(new ByteArrayInputStream(frame));
+    }
+}
@@ -0,0 +1,93 @@
+package mr.demonid.benchmarks;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.codec.BinaryCodec;
+import mr.demonid.commons.codec.MessageCodec;
+import mr.demonid.commons.codec.SharedFrame;
+import mr.demonid.controller.ClientManager;
+import mr.demonid.controller.Connection;
+import mr.demonid.controller.OutboundQueue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Соединение с клиентом в памяти: вместо сокета - буфер, который
+ * "отправляется" (очищается) при заполнении.
+ * Сообщение проходит тот же путь, что и у настоящего клиента: очередь
+ * исходящих, затем кодек соединения (с кадрами DEFINE) и запись в буфер сокета,
+ * только писатель работает сразу, в потоке рассылки.
+ */
+class MemoryConnection implements Connection {
+
+    private final Account account;
+    private final SocketAddress address;
+    private final OutboundQueue outbound = ClientManager.getInstance().createOutboundQueue();
+    private final MessageCodec codec = ClientManager.getInstance().createCodec(BinaryCodec.ID);
+    private final ByteBuffer socket;
+    private long written;
+
+
+    MemoryConnection(String name, int port, int socketBuffer) {
+        this.account = new Account(name, "", "", "");
+        this.address = InetSocketAddress.createUnresolved("127.0.0.1", port);
+        this.socket = ByteBuffer.allocate(socketBuffer);
+    }
+
+    @Override
+    public Account getAccount() {
+        return account;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return address;
+    }
+
+    @Override
+    public void send(SharedFrame frame) {
+        outbound.offer(frame);
+        try {
+            while ((frame = outbound.poll()) != null) {
+                byte[] prefix = codec.encodePrefix(frame);
+                if (prefix != null)
+                    write(prefix);
+                write(frame.bytes(codec));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    @Override
+    public void reject(String reason) {
+        close();
+    }
+
+    @Override
+    public void close() {
+        outbound.close();
+    }
+
+    /**
+     * Сколько байт ушло в "сокет" (чтобы JIT не выбросил запись).
+     */
+    long getWritten() {
+        return written;
+    }
+
+    private void write(byte[] bytes) {
+        if (socket.remaining() < bytes.length)
+            socket.clear();
+        socket.put(bytes, 0, Math.min(bytes.length, socket.remaining()));
+        written += bytes.length;
+    }
+}
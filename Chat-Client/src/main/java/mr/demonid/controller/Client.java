@@ -4,21 +4,57 @@ package mr.demonid.controller;
 import mr.demonid.commons.Account;
 import mr.demonid.commons.ConnectStatus;
 import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+import mr.demonid.commons.TcpOptions;
+import mr.demonid.commons.codec.Codecs;
+import mr.demonid.commons.codec.Handshake;
+import mr.demonid.commons.codec.MessageCodec;
 import mr.demonid.view.View;
 import mr.demonid.view.listeners.DisconnectListener;
 import mr.demonid.view.listeners.LoginListener;
 import mr.demonid.view.listeners.SendMessageListener;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Client {
 
+    // настройки сокета: -Dchat.client.tcp.nodelay, sndbuf, rcvbuf
+    private static final TcpOptions TCP_OPTIONS = TcpOptions.fromSystem("chat.client.tcp.");
+    private static final Message STOP = new Message(null, null, "");
+    private static final Message BYE = new Message(null, null, "");      // пустое сообщение - выход из чата
+    private static final Message PONG = new Message(null, null, "pong", MessageType.PONG);
+    private static final int CONNECT_TIMEOUT = 10_000;
+    // паузы между попытками переподключения (мс) растут от меньшей к большей
+    private static final long RECONNECT_MIN_DELAY = 500;
+    private static final long RECONNECT_MAX_DELAY = 30_000;
+    private static final int MAX_RECONNECTS = 10;
+
     private Account account;
     private Socket socket;
-    private ObjectOutputStream writer;
-    private ObjectInputStream reader;
+    private OutputStream writer;
+    private InputStream reader;
+    private MessageCodec codec;
     private Thread threadRead;
+    private Thread threadWrite;
+    // номер последнего полученного сообщения истории: при автоматическом переподключении сервер пришлет только новые
+    private volatile long lastSeen = -1;
+    // эпоха истории сервера, к которой относится lastSeen (сервер без журнала после перезапуска нумерует заново)
+    private volatile long serverEpoch;
+    // токен сеанса от сервера: с ним после обрыва связи сеанс возобновляется без потери сообщений
+    private volatile String sessionToken;
+    private volatile boolean sessionConfirmed;          // в текущем соединении сервер выдал токен
+    private volatile boolean userClosed;
+    private int failures;                               // неудачных переподключений подряд
+    // исходящие сообщения; отправляет их поток-писатель, пачками.
+    // При обрыве связи неотправленное возвращается в начало очереди и уйдет после переподключения
+    private final LinkedBlockingDeque<Message> outgoing = new LinkedBlockingDeque<>();
 
     View view;
     ConnectStatus connectStatus;
@@ -82,40 +118,131 @@ public class Client {
      */
     private void disconnectFromUser()
     {
-        close();
+        userClosed = true;
+        sessionToken = null;
+        outgoing.clear();
+        Thread w = threadWrite;
+        if (w != null && w.isAlive())
+        {
+            outgoing.add(BYE);                          // писатель сообщит серверу о выходе и закроет сокет
+            outgoing.add(STOP);
+        } else {
+            closeSocket();
+        }
+        Thread r = threadRead;
+        if (r != null)
+            r.interrupt();                              // прерываем паузу перед переподключением
         view.setConnectStatus(connectStatus);
         System.out.println("Disconnect");
     }
 
     /**
      * Отправка сообщения на сервер
-     * @param message Сообщение (если начинается с @имя, то это личное, отправляется только адресату)
+     * @param message Сообщение (если начинается с @имя, то это личное, отправляется только адресату;
+     *                #комната - только участникам комнаты; /join #комната и /leave #комната - вход и выход)
      */
     public void sendMessage(String message) {
         if (message != null && !message.isEmpty())
         {
-            String to = null;
-            if (message.charAt(0) == '@')
+            Message msg;
+            if (message.startsWith("/join ") || message.startsWith("/leave "))
+            {
+                msg = getRoomCommand(message);
+            } else if (message.charAt(0) == '@' || message.charAt(0) == Message.ROOM_PREFIX)
             {
-                // извлекаем имя адресата
-                to = getTargetName(message);
-                message = getBodyMessage(to, message);
+                // извлекаем имя адресата (или комнаты)
+                String to = getTargetName(message);
+                String body = getBodyMessage(message.charAt(0) + to, message);
+                if (message.charAt(0) == Message.ROOM_PREFIX)
+                    to = Message.ROOM_PREFIX + to;
+                msg = new Message(account, to, body);
+            } else {
+                msg = new Message(account, null, message);
             }
-            Message msg = new Message(account, to, message);
-            try {
-                writer.writeObject(msg);
-                writer.flush();
-            } catch (Exception e)
+            if (connectStatus == ConnectStatus.CONNECTED)
+                outgoing.add(msg);
+        }
+    }
+
+    /**
+     * Поток-писатель: отправляет на сервер все накопившиеся сообщения
+     * одной записью в сокет, а не по записи на каждое сообщение.
+     */
+    private void writerThread()
+    {
+        List<Message> batch = new ArrayList<>();
+        try {
+            while (true)
             {
-                close();
+                batch.add(outgoing.take());
+                outgoing.drainTo(batch);
+                for (int i = 0; i < batch.size(); i++)
+                {
+                    Message msg = batch.get(i);
+                    if (msg == STOP)
+                    {
+                        writer.flush();
+                        requeue(batch.subList(i + 1, batch.size()));
+                        if (userClosed)
+                            closeSocket();
+                        return;
+                    }
+                    writer.write(codec.encode(msg));    // BufferedOutputStream копит кадры
+                }
+                writer.flush();
+                batch.clear();
             }
+        } catch (InterruptedException ignored) {
+        } catch (Exception e) {
+            // связь оборвалась: пачка уйдет снова после переподключения (возможен повтор, но не потеря)
+            requeue(batch);
+            closeSocket();                              // читатель заметит обрыв
+        }
+    }
+
+    /**
+     * Возврат сообщений в начало очереди, с сохранением порядка.
+     */
+    private void requeue(List<Message> messages)
+    {
+        for (int i = messages.size() - 1; i >= 0; i--)
+        {
+            if (messages.get(i) != STOP)
+                outgoing.addFirst(messages.get(i));
         }
     }
 
     /**
-     * Освобождение занятых ресурсов
+     * Остановка писателя без потери неотправленных сообщений.
+     */
+    private void stopWriter()
+    {
+        Thread w = threadWrite;
+        if (w == null)
+            return;
+        outgoing.addFirst(STOP);
+        try {
+            w.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        outgoing.remove(STOP);                          // если писатель завершился раньше
+        threadWrite = null;
+    }
+
+    private void startWriter()
+    {
+        threadWrite = new Thread(this::writerThread);
+        threadWrite.start();
+    }
+
+    /**
+     * Освобождение занятых ресурсов при окончательном завершении сеанса
+     * (неотправленное выбрасывается, писатель, если он еще жив, останавливается).
      */
     private void close() {
+        outgoing.clear();
+        outgoing.add(STOP);
         closeSocket();
         closeReader();
         closeWriter();
@@ -123,27 +250,108 @@ public class Client {
 
     /**
      * Поток чтения сообщений от сервера.
+     * При обрыве связи (не по желанию пользователя) клиент сам переподключается
+     * и предъявляет токен сеанса: сервер ждал его и отдаст все, что накопилось.
      */
     private void readerThread()
     {
+        userClosed = false;
+        sessionToken = null;
+        lastSeen = -1;                                  // новый вход (окно очищено): нужна вся свежая история
+        failures = 0;
         if (!connect(account))
         {
             switchConnectedStatus(ConnectStatus.DISCONNECTED, "Connect error: server not found!");
             return;
         }
+        outgoing.clear();
+        startWriter();
         switchConnectedStatus(ConnectStatus.CONNECTED, "\u001B[30mConnected!");
+        while (true)
+        {
+            sessionConfirmed = false;
+            readMessages();
+            stopWriter();
+            if (userClosed || sessionToken == null)
+                break;
+            // соединение, оборвавшееся до выдачи токена, тоже считаем неудачной попыткой
+            failures = sessionConfirmed ? 0 : failures + 1;
+            if (!reconnect())
+                break;
+            startWriter();
+            view.showMessage("\u001B[30mReconnected!");
+        }
+        sessionToken = null;
+        switchConnectedStatus(ConnectStatus.DISCONNECTED, "Connect closed.");
+        close();
+    }
+
+    /**
+     * Чтение сообщений от сервера, пока соединение не оборвется.
+     */
+    private void readMessages()
+    {
+        long seen = -1;                                         // наибольший номер, полученный в этом соединении
         try
         {
             while (!Thread.currentThread().isInterrupted() && !socket.isClosed())
             {
-                Message message = (Message) reader.readObject();
+                Message message = codec.read(reader);
                 if (message == null)
                     break;                                      // потеря связи с сервером
+                if (message.getType() == MessageType.SESSION)
+                {
+                    sessionToken = message.getMessage().isEmpty() ? null : message.getMessage();  // пустой: сервер не держит сеансы
+                    sessionConfirmed = true;
+                    if (message.getEpoch() != serverEpoch)
+                    {
+                        // другая эпоха: прежние номера ничего не значат, сервер прислал историю заново
+                        serverEpoch = message.getEpoch();
+                        lastSeen = seen;
+                    }
+                    continue;
+                }
+                if (message.getType() == MessageType.PING)
+                {
+                    outgoing.addFirst(PONG);                    // сервер проверяет, жив ли клиент
+                    continue;
+                }
+                if (message.getOffset() >= 0)
+                {
+                    seen = Math.max(seen, message.getOffset());
+                    lastSeen = Math.max(lastSeen, message.getOffset());    // шарды сервера могут прислать не по порядку
+                }
                 view.innerMessage(message);
             }
         } catch (Exception ignored) {}
-        switchConnectedStatus(ConnectStatus.DISCONNECTED, "Connect closed.");
-        close();
+        closeSocket();
+    }
+
+    /**
+     * Переподключение после обрыва связи. Паузы между попытками растут вдвое
+     * и выбираются со случайным разбросом, чтобы после сбоя сети клиенты
+     * не подключались к серверу все разом.
+     * @return true - соединение восстановлено.
+     */
+    private boolean reconnect()
+    {
+        while (!userClosed && failures < MAX_RECONNECTS)
+        {
+            long delay = Math.min(RECONNECT_MAX_DELAY, RECONNECT_MIN_DELAY << Math.min(failures, 16));
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            view.errorMessage(String.format(Locale.ROOT, "Connection lost, reconnect in %.1f s...", delay / 1000.0));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            if (userClosed)
+                return false;
+            if (connect(account))
+                return true;
+            failures++;
+        }
+        return false;
     }
 
     /**
@@ -171,13 +379,30 @@ public class Client {
         {
             int port = Integer.parseInt(account.getPort());
             String ip = account.getIp();
-            socket = new Socket(ip, port);
-            writer = new ObjectOutputStream(socket.getOutputStream());
-            reader = new ObjectInputStream(socket.getInputStream());
-            sendMessage("connect");
+            socket = new Socket();
+            TCP_OPTIONS.apply(socket);                  // до connect, чтобы учесть размер окна приема
+            socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+            writer = new BufferedOutputStream(socket.getOutputStream());
+            reader = new BufferedInputStream(socket.getInputStream());
+            // согласуем с сервером формат кадров
+            Handshake.writeOffer(writer, Codecs.all());
+            codec = Codecs.create(Handshake.readAnswer(reader));
+            if (codec == null)
+                throw new IOException("No common codec!");
+            // представляемся серверу (с токеном, если возобновляем сеанс)
+            String token = sessionToken;
+            Message login = new Message(account, null, token == null ? "" : token, MessageType.LOGIN);
+            login.setOffset(lastSeen);
+            login.setEpoch(serverEpoch);
+            writer.write(codec.encode(login));
+            writer.flush();
         } catch (Exception e)
         {
-            close();        // закрываем возможно открытые ресурсы
+            // закрываем возможно открытые ресурсы, но не очередь: неотправленное
+            // должно дождаться следующей попытки, а STOP остановил бы нового писателя
+            closeSocket();
+            closeReader();
+            closeWriter();
             return false;
         }
         return true;
@@ -201,11 +426,26 @@ public class Client {
     }
 
     /**
-     * Извлекает тело сообщения из личного сообщения
+     * Извлекает тело сообщения из личного сообщения (или сообщения в комнату)
+     * @param target Адресат вместе с префиксом (@имя или #комната).
+     */
+    private String getBodyMessage(String target, String source)
+    {
+        return source.substring(target.length()).trim();
+    }
+
+    /**
+     * Разбор команды входа в комнату или выхода из нее.
+     * @param command Команда вида /join комната или /leave комната (# перед именем можно не писать).
      */
-    private String getBodyMessage(String name, String source)
+    private Message getRoomCommand(String command)
     {
-        return source.replaceFirst("@" + name, "").trim();
+        boolean join = command.startsWith("/join ");
+        String room = command.substring(join ? 6 : 7).trim();
+        if (!room.isEmpty() && room.charAt(0) != Message.ROOM_PREFIX)
+            room = Message.ROOM_PREFIX + room;
+        return join ? new Message(account, room, "join", MessageType.JOIN)
+                    : new Message(account, room, "leave", MessageType.LEAVE);
     }
 
     /*
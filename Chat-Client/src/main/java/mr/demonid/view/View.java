@@ -10,7 +10,7 @@ public interface View {
 
     /**
      * Вывод в поле истории сообщения
-     * Контролирует, чтобы выполнение происходило в EDT.
+     * Можно вызывать из любого потока: вывод идет в EDT, вызывающий его не ждет.
      */
     void showMessage(String message);
     void errorMessage(String message);
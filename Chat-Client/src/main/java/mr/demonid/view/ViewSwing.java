@@ -4,6 +4,11 @@ import mr.demonid.commons.Account;
 import mr.demonid.commons.ConnectStatus;
 import mr.demonid.commons.Message;
 import mr.demonid.view.controllers.ANSITextPane;
+import mr.demonid.view.controllers.AnsiLine;
+import mr.demonid.view.controllers.AnsiParser;
+import mr.demonid.view.controllers.HistoryView;
+import mr.demonid.view.controllers.InboundBuffer;
+import mr.demonid.view.controllers.VirtualHistoryView;
 import mr.demonid.view.listeners.*;
 
 import javax.swing.*;
@@ -15,6 +20,7 @@ import java.awt.event.KeyEvent;
 import java.awt.event.WindowEvent;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.List;
 
 
 public class ViewSwing extends JFrame implements View {
@@ -31,8 +37,17 @@ public class ViewSwing extends JFrame implements View {
     private static final int WINDOW_POS_X = 300;
     private static final int WINDOW_POS_Y = 0;
 
+    // Сколько строк может ждать вывода, пока EDT занят
+    private static final int INBOX_SIZE = 10_000;
+
+    // Поле истории: document - обычный текст, virtual - рисуются только видимые строки
+    private static final boolean VIRTUAL_HISTORY = "virtual".equals(System.getProperty("chat.client.history.view"));
+    // Ограничения истории (самые старые строки вытесняются)
+    private static final int HISTORY_LINES = Integer.getInteger("chat.client.history.lines", VIRTUAL_HISTORY ? 100_000 : 5_000);
+    private static final int HISTORY_CHARS = Integer.getInteger("chat.client.history.chars", VIRTUAL_HISTORY ? 16 << 20 : 1 << 20);
+
     JPanel controlPanel;
-    ANSITextPane historyPane;
+    HistoryView historyPane;
     JTextField inpIP;
     JTextField inpPort;
     JTextField inpName;
@@ -45,6 +60,11 @@ public class ViewSwing extends JFrame implements View {
     ConnectStatus connectStatus;
 
     private final EventListenerList listenerList;
+    // строки разбираются на стили в вызывающем потоке, EDT их только вставляет
+    private final AnsiParser parser = new AnsiParser();
+    // сетевой поток не ждет отрисовки: строки копятся здесь и выводятся пачками
+    private final InboundBuffer<AnsiLine> inbox = new InboundBuffer<>(INBOX_SIZE, this::appendLines,
+            n -> new AnsiParser().parseLine("... пропущено строк: " + n));
 
 
     public ViewSwing() throws HeadlessException {
@@ -54,22 +74,26 @@ public class ViewSwing extends JFrame implements View {
         setVisible(true);
     }
 
+    /**
+     * Вывод строки в историю. Строка разбирается на участки стилей прямо здесь,
+     * в вызывающем потоке, и ставится в очередь на вывод; EDT вызывающий поток не ждет.
+     * Стиль переходит от строки к строке, поэтому разбор и постановка в очередь
+     * идут под одной блокировкой - иначе строки из разных потоков перепутали бы стили.
+     */
     @Override
     public void showMessage(String message) {
-        if (SwingUtilities.isEventDispatchThread()) {
-            historyPane.appendANSI(message);
-            historyPane.appendANSI("\n");
-        } else {
-            // Вызов не из потока EDT, поэтому перенаправляем в EDT и ждем выполнения
-            try {
-                SwingUtilities.invokeAndWait(() -> {
-                    historyPane.appendANSI(message);
-                    historyPane.appendANSI("\n");
-                });
-            } catch (InterruptedException | InvocationTargetException ignored) {}
+        synchronized (parser) {
+            inbox.add(parser.parseLine(message));
         }
     }
 
+    /**
+     * Вывод пачки строк в историю (в EDT).
+     */
+    private void appendLines(List<AnsiLine> lines) {
+        historyPane.appendLines(lines);
+    }
+
 
     @Override
     public void errorMessage(String message) {
@@ -80,6 +104,9 @@ public class ViewSwing extends JFrame implements View {
     public void innerMessage(Message message) {
         if (message.getTargetName() == null)
             showMessage(AUTHOR_STYLE + message.getAuthorName() + DEFAULT_STYLE + ": " + message.getMessage());
+        else if (message.isRoom())
+            showMessage(AUTHOR_STYLE + message.getAuthorName() + " " + message.getTargetName()
+                    + DEFAULT_STYLE + ": " + message.getMessage());
         else
             showMessage(PRIVATE_STYLE + message.getAuthorName()
                     + " to " + message.getTargetName()
@@ -169,7 +196,7 @@ public class ViewSwing extends JFrame implements View {
         if (connectStatus == ConnectStatus.CONNECTED)
         {
             controlPanel.setVisible(false);
-            historyPane.setText("");
+            historyPane.clear();
         }
         else
             controlPanel.setVisible(true);
@@ -282,8 +309,14 @@ public class ViewSwing extends JFrame implements View {
 
     private Component createHistoryPanel()
     {
-        historyPane = new ANSITextPane();
-        return new JScrollPane(historyPane);
+        if (VIRTUAL_HISTORY) {
+            VirtualHistoryView list = new VirtualHistoryView(HISTORY_LINES, HISTORY_CHARS);
+            historyPane = list;
+            return new JScrollPane(list);
+        }
+        ANSITextPane pane = new ANSITextPane(HISTORY_LINES, HISTORY_CHARS);
+        historyPane = pane;
+        return new JScrollPane(pane);
     }
 
     private Component createSendPanel()
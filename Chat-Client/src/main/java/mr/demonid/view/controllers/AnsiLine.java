@@ -0,0 +1,13 @@
+package mr.demonid.view.controllers;
+
+import java.util.List;
+
+/**
+ * Строка истории: исходный текст с ANSI-кодами, стиль на ее начало
+ * (стиль переходит из строки в строку, как в терминале) и уже разобранные
+ * из нее участки (вместе с завершающим переводом строки).
+ * Разбор делается вне EDT, в EDT остается только вставка в документ.
+ * @param style Стиль на начало строки, см. AnsiParser.getStyle().
+ */
+public record AnsiLine(String raw, long style, List<AnsiRun> runs) {
+}
@@ -0,0 +1,269 @@
+package mr.demonid.view.controllers;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyleContext;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Разбор текста с ANSI-кодами стилей (ESC [ n;n;... m) за один проход по символам.
+ * <p>
+ * Текущий стиль хранится в трех числах (цвет текста, цвет фона, флаги начертания),
+ * а наборы атрибутов для Swing берутся из общего кэша по этим числам,
+ * так что участки одного стиля во всех строках разделяют один неизменяемый AttributeSet.
+ * Стиль переходит из одного вызова parse() в следующий, как в терминале.
+ * Экземпляр не потокобезопасен; кэш стилей общий и потокобезопасный.
+ */
+public class AnsiParser {
+
+    private static final char ESC = 27;
+    private static final int MAX_PARAMS = 16;
+    private static final int MAX_STYLES = 4096;     // RGB-кодов может быть сколько угодно, кэш не раздуваем
+
+    private static final int BOLD = 1;
+    private static final int ITALIC = 2;
+    private static final int UNDERLINE = 4;
+    private static final int STRIKE = 8;
+
+    private static final int DEFAULT_FG = 0x000000;
+    private static final int DEFAULT_BG = 0xFFFFFF;
+
+    /**
+     * Исходный стиль в виде getStyle().
+     */
+    public static final long DEFAULT_STYLE = pack(DEFAULT_FG, DEFAULT_BG, 0);
+
+    // стандартные цвета: 30–37 и яркие 90–97
+    private static final int[] COLORS = rgb(Color.BLACK, Color.RED, Color.GREEN, Color.YELLOW,
+            Color.BLUE, Color.MAGENTA, Color.CYAN, Color.LIGHT_GRAY);
+    private static final int[] BRIGHT = rgb(new Color(128, 128, 128), Color.RED.brighter(), Color.GREEN.brighter(),
+            Color.YELLOW.brighter(), Color.BLUE.brighter(), Color.MAGENTA.brighter(), Color.CYAN.brighter(), Color.WHITE);
+
+    private static final ConcurrentHashMap<Long, AttributeSet> STYLES = new ConcurrentHashMap<>();
+
+    private enum State {TEXT, ESCAPE, PARAMS}
+
+    private final int[] params = new int[MAX_PARAMS];
+    private int fg = DEFAULT_FG;
+    private int bg = DEFAULT_BG;
+    private int flags;
+    // последний выданный стиль: соседние участки чаще всего одного стиля
+    private long lastKey = -1;
+    private AttributeSet lastStyle;
+
+
+    /**
+     * Сброс стиля к исходному.
+     */
+    public void reset() {
+        fg = DEFAULT_FG;
+        bg = DEFAULT_BG;
+        flags = 0;
+    }
+
+    /**
+     * Текущий стиль одним числом: его можно сохранить и позже
+     * продолжить разбор с того же места (setStyle()).
+     */
+    public long getStyle() {
+        return pack(fg, bg, flags);
+    }
+
+    public void setStyle(long style) {
+        fg = (int) (style >>> 32);
+        bg = (int) (style >>> 8) & 0xFFFFFF;
+        flags = (int) style & 0xFF;
+    }
+
+    /**
+     * Разбор строки истории (к ее участкам добавляется перевод строки).
+     * Вместе с участками запоминается стиль на начало строки.
+     */
+    public AnsiLine parseLine(String line) {
+        long start = getStyle();
+        List<AnsiRun> runs = new ArrayList<>(4);
+        parse(line, runs);
+        runs.add(new AnsiRun("\n", style()));
+        return new AnsiLine(line, start, runs);
+    }
+
+    public List<AnsiRun> parse(String text) {
+        List<AnsiRun> runs = new ArrayList<>(4);
+        parse(text, runs);
+        return runs;
+    }
+
+    /**
+     * Разбор текста на участки одного стиля.
+     * Незавершенная или неизвестная последовательность выводится как текст.
+     */
+    private void parse(String text, List<AnsiRun> runs) {
+        State state = State.TEXT;
+        int start = 0;          // начало текущего участка текста
+        int seq = 0;            // начало управляющей последовательности
+        int count = 0;          // число параметров
+        int value = 0;
+        int len = text.length();
+        for (int i = 0; i < len; i++) {
+            char ch = text.charAt(i);
+            switch (state) {
+                case TEXT -> {
+                    if (ch == ESC) {
+                        seq = i;
+                        state = State.ESCAPE;
+                    }
+                }
+                case ESCAPE -> {
+                    if (ch == '[') {
+                        count = 0;
+                        value = 0;
+                        state = State.PARAMS;
+                    } else {
+                        state = State.TEXT;         // ESC без '[' остается в тексте
+                        i--;
+                    }
+                }
+                case PARAMS -> {
+                    if (ch >= '0' && ch <= '9') {
+                        value = Math.min(value * 10 + (ch - '0'), 0xFFFF);
+                    } else if (ch == ';' || ch == 'm') {
+                        if (count < MAX_PARAMS)
+                            params[count++] = value;
+                        value = 0;
+                        if (ch == 'm') {
+                            addRun(runs, text, start, seq);
+                            apply(count);
+                            start = i + 1;
+                            state = State.TEXT;
+                        }
+                    } else {
+                        state = State.TEXT;         // не наш код, выводим как есть
+                        i--;
+                    }
+                }
+            }
+        }
+        addRun(runs, text, start, len);
+    }
+
+    private void addRun(List<AnsiRun> runs, String text, int from, int to) {
+        if (to > from)
+            runs.add(new AnsiRun(text.substring(from, to), style()));
+    }
+
+    /**
+     * Применение кодов SGR.
+     */
+    private void apply(int count) {
+        for (int i = 0; i < count; i++) {
+            int code = params[i];
+            switch (code) {
+                case 0 -> reset();
+                case 1 -> flags |= BOLD;
+                case 3 -> flags |= ITALIC;
+                case 4 -> flags |= UNDERLINE;
+                case 9 -> flags |= STRIKE;
+                case 22 -> flags &= ~BOLD;
+                case 23 -> flags &= ~ITALIC;
+                case 24 -> flags &= ~UNDERLINE;
+                case 29 -> flags &= ~STRIKE;
+                case 38, 48 -> {
+                    // 38;5;n / 38;2;r;g;b - расширенный цвет текста, 48 - фона
+                    int color = -1;
+                    if (i + 2 < count && params[i + 1] == 5) {
+                        color = color256(params[i + 2]);
+                        i += 2;
+                    } else if (i + 4 < count && params[i + 1] == 2) {
+                        color = (clamp(params[i + 2]) << 16) | (clamp(params[i + 3]) << 8) | clamp(params[i + 4]);
+                        i += 4;
+                    } else if (i + 1 < count) {
+                        i++;
+                    }
+                    if (color >= 0) {
+                        if (code == 38)
+                            fg = color;
+                        else
+                            bg = color;
+                    }
+                }
+                default -> {
+                    if (code >= 30 && code <= 37)
+                        fg = COLORS[code - 30];
+                    else if (code >= 90 && code <= 97)
+                        fg = BRIGHT[code - 90];
+                    else if (code >= 40 && code <= 47)
+                        bg = COLORS[code - 40];
+                    else if (code >= 100 && code <= 107)
+                        bg = BRIGHT[code - 100];
+                }
+            }
+        }
+    }
+
+    /**
+     * Общий набор атрибутов для текущего стиля.
+     */
+    private AttributeSet style() {
+        long key = getStyle();
+        if (key != lastKey) {
+            lastStyle = STYLES.get(key);
+            if (lastStyle == null) {
+                lastStyle = createStyle(fg, bg, flags);
+                if (STYLES.size() < MAX_STYLES)
+                    STYLES.putIfAbsent(key, lastStyle);
+            }
+            lastKey = key;
+        }
+        return lastStyle;
+    }
+
+    private static long pack(int fg, int bg, int flags) {
+        return ((long) fg << 32) | ((long) bg << 8) | flags;
+    }
+
+    private static AttributeSet createStyle(int fg, int bg, int flags) {
+        SimpleAttributeSet attrs = new SimpleAttributeSet();
+        StyleConstants.setForeground(attrs, new Color(fg));
+        StyleConstants.setBackground(attrs, new Color(bg));
+        StyleConstants.setBold(attrs, (flags & BOLD) != 0);
+        StyleConstants.setItalic(attrs, (flags & ITALIC) != 0);
+        StyleConstants.setUnderline(attrs, (flags & UNDERLINE) != 0);
+        StyleConstants.setStrikeThrough(attrs, (flags & STRIKE) != 0);
+        // неизменяемая копия, которую можно разделять между документами
+        return StyleContext.getDefaultStyleContext().addAttributes(SimpleAttributeSet.EMPTY, attrs);
+    }
+
+    /**
+     * 8-битный цвет.
+     */
+    private static int color256(int index) {
+        if (index < 8)
+            return COLORS[index];
+        if (index < 16)
+            return BRIGHT[index - 8];
+        if (index < 232) {
+            int base = index - 16;
+            return ((base / 36) * 51 << 16) | ((base / 6) % 6 * 51 << 8) | (base % 6 * 51);
+        }
+        if (index < 256) {
+            int gray = (index - 232) * 10 + 8;
+            return (gray << 16) | (gray << 8) | gray;
+        }
+        return 0xFFFFFF;
+    }
+
+    private static int clamp(int c) {
+        return Math.min(c, 255);
+    }
+
+    private static int[] rgb(Color... colors) {
+        int[] res = new int[colors.length];
+        for (int i = 0; i < colors.length; i++)
+            res[i] = colors[i].getRGB() & 0xFFFFFF;
+        return res;
+    }
+}
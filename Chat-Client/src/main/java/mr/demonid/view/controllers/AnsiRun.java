@@ -0,0 +1,11 @@
+package mr.demonid.view.controllers;
+
+import javax.swing.text.AttributeSet;
+
+/**
+ * Участок текста с одним стилем.
+ * @param text       Текст без управляющих кодов.
+ * @param attributes Неизменяемый (общий для всех участков этого стиля) набор атрибутов.
+ */
+public record AnsiRun(String text, AttributeSet attributes) {
+}
@@ -0,0 +1,81 @@
+package mr.demonid.view.controllers;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Документ истории с пакетным добавлением.
+ * Вся пачка участков превращается в один массив ElementSpec и вставляется
+ * одной правкой: одно событие документа, одна перестройка разметки и одна
+ * перерисовка вместо отдельных insertString() на каждый участок и перевод строки.
+ */
+class HistoryDocument extends DefaultStyledDocument {
+
+    /**
+     * Добавление участков в конец документа одной правкой.
+     * Переводы строк внутри участков разбивают текст на абзацы, как при insertString().
+     */
+    void append(List<AnsiRun> runs) throws BadLocationException {
+        // весь текст пачки - в один массив, из которого нарезаются элементы
+        StringBuilder sb = new StringBuilder();
+        for (AnsiRun run : runs)
+            sb.append(run.text());
+        if (sb.isEmpty())
+            return;
+        char[] text = new char[sb.length()];
+        sb.getChars(0, text.length, text, 0);
+
+        int offset = getLength();
+        AttributeSet paragraph = getParagraphElement(offset).getAttributes();
+        List<ElementSpec> specs = new ArrayList<>(runs.size() + 8);
+        ElementSpec lastStart = null;
+        boolean afterNewline = offset > 0 && getText(offset - 1, 1).charAt(0) == '\n';
+        if (afterNewline) {
+            // вставка сразу после перевода строки начинается с нового абзаца
+            specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+            lastStart = new ElementSpec(paragraph, ElementSpec.StartTagType);
+            specs.add(lastStart);
+        }
+        int start = 0;                  // начало текста, еще не попавшего в элементы
+        int pos = 0;
+        AttributeSet attrs = null;
+        for (AnsiRun run : runs) {
+            // соседние участки одного стиля (наборы общие) - один элемент
+            if (run.attributes() != attrs && pos > start) {
+                specs.add(content(attrs, text, start, pos));
+                start = pos;
+            }
+            attrs = run.attributes();
+            int end = pos + run.text().length();
+            for (; pos < end; pos++) {
+                if (text[pos] == '\n') {
+                    // перевод строки закрывает абзац и открывает следующий
+                    specs.add(content(attrs, text, start, pos + 1));
+                    specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+                    lastStart = new ElementSpec(paragraph, ElementSpec.StartTagType);
+                    specs.add(lastStart);
+                    start = pos + 1;
+                }
+            }
+        }
+        if (pos > start)
+            specs.add(content(attrs, text, start, pos));
+        // последний новый абзац соединяется с остатком документа (его завершающим
+        // переводом строки) - так же, как это делает insertString()
+        if (lastStart != null)
+            lastStart.setDirection(afterNewline ? ElementSpec.JoinNextDirection : ElementSpec.JoinFractureDirection);
+        insert(offset, specs.toArray(new ElementSpec[0]));
+    }
+
+    /**
+     * Элемент текста. У каждого свой массив: ElementSpec.getArray() отдает копию
+     * массива целиком, и общий массив на всю пачку копировался бы для каждого элемента.
+     */
+    private static ElementSpec content(AttributeSet attrs, char[] text, int from, int to) {
+        return new ElementSpec(attrs, ElementSpec.ContentType, Arrays.copyOfRange(text, from, to), 0, to - from);
+    }
+}
@@ -0,0 +1,120 @@
+package mr.demonid.view.controllers;
+
+import javax.swing.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Компактная модель истории: кольцевой буфер исходных строк (с ANSI-кодами).
+ * Разобранные участки здесь не хранятся, их строит отрисовщик только для видимых строк;
+ * для каждой строки хранится лишь стиль на ее начало (одно число), чтобы
+ * стиль, заданный в одной строке и не сброшенный, действовал и в следующих.
+ * Ограничена по числу строк и символов, самые старые строки вытесняются.
+ * Используется только в EDT.
+ */
+public class HistoryModel extends AbstractListModel<String> {
+
+    private final String[] lines;
+    private final long[] styles;                // стиль на начало строки, см. AnsiParser.getStyle()
+    private final long maxChars;
+    private int head;
+    private int count;
+    private long chars;
+    private int maxWidth;                       // самая длинная строка (без ANSI-кодов), символов
+
+
+    public HistoryModel(int maxLines, long maxChars) {
+        this.lines = new String[Math.max(1, maxLines)];
+        this.styles = new long[lines.length];
+        this.maxChars = Math.max(1, maxChars);
+    }
+
+    @Override
+    public int getSize() {
+        return count;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(head + index) % lines.length];
+    }
+
+    /**
+     * Стиль на начало строки.
+     */
+    public long getStyleAt(int index) {
+        return styles[(head + index) % lines.length];
+    }
+
+    /**
+     * Ширина самой длинной из добавленных строк (в символах, без ANSI-кодов).
+     * После вытеснения строк не уменьшается.
+     */
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    /**
+     * Добавление строк в конец (одним событием добавления и, при вытеснении, одним событием удаления).
+     */
+    public void addAll(List<AnsiLine> batch) {
+        int oldSize = count;
+        int removed = 0;
+        for (AnsiLine line : batch) {
+            if (count == lines.length) {
+                removeFirst();
+                removed++;
+            }
+            int slot = (head + count++) % lines.length;
+            lines[slot] = line.raw();
+            styles[slot] = line.style();
+            chars += line.raw().length();
+            maxWidth = Math.max(maxWidth, visibleLength(line.raw()));
+        }
+        while (chars > maxChars && count > 1) {
+            removeFirst();
+            removed++;
+        }
+        // часть вытесненных могла быть из только что добавленных
+        int removedOld = Math.min(removed, oldSize);
+        if (removedOld > 0)
+            fireIntervalRemoved(this, 0, removedOld - 1);
+        int added = count - (oldSize - removedOld);
+        if (added > 0)
+            fireIntervalAdded(this, count - added, count - 1);
+    }
+
+    public void clear() {
+        int oldSize = count;
+        Arrays.fill(lines, null);
+        head = count = 0;
+        chars = 0;
+        maxWidth = 0;
+        if (oldSize > 0)
+            fireIntervalRemoved(this, 0, oldSize - 1);
+    }
+
+    private void removeFirst() {
+        chars -= lines[head].length();
+        lines[head] = null;
+        head = (head + 1) % lines.length;
+        count--;
+    }
+
+    /**
+     * Длина строки без управляющих последовательностей ESC [ ... m.
+     */
+    static int visibleLength(String line) {
+        int n = 0;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == 27 && i + 1 < line.length() && line.charAt(i + 1) == '[') {
+                i += 2;
+                while (i < line.length() && line.charAt(i) != 'm')
+                    i++;
+            } else {
+                n++;
+            }
+        }
+        return n;
+    }
+}
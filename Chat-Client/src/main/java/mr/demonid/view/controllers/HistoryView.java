@@ -0,0 +1,22 @@
+package mr.demonid.view.controllers;
+
+import java.util.List;
+
+/**
+ * Поле истории сообщений.
+ * Методы вызываются только в EDT.
+ */
+public interface HistoryView {
+
+    /**
+     * Вывод строк в конец истории. Строки уже разобраны на участки
+     * (AnsiParser), здесь они только вставляются.
+     * Если история ограничена, самые старые строки при этом вытесняются.
+     */
+    void appendLines(List<AnsiLine> lines);
+
+    /**
+     * Очистка истории.
+     */
+    void clear();
+}
@@ -0,0 +1,89 @@
+package mr.demonid.view.controllers;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Буфер строк между сетевым потоком и EDT.
+ * Сетевой поток только кладет строку в очередь без блокировок и не ждет отрисовки,
+ * а EDT по таймеру забирает все накопившееся разом и выводит одной пачкой.
+ * Пока пачка не выведена, новые строки лишь добавляются к ней (таймер не перезапускается).
+ * Если EDT совсем не успевает, самые старые строки выбрасываются,
+ * а в начало пачки добавляется строка с их числом.
+ */
+public class InboundBuffer<T> {
+
+    private static final int DELAY = 20;                // мс, до 50 отрисовок в секунду
+    private static final int MAX_BATCH = 2000;          // строк за один проход EDT
+
+    private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final int capacity;
+    private final Consumer<List<T>> sink;
+    private final IntFunction<T> skippedNotice;
+    private final Timer timer;
+
+
+    /**
+     * @param capacity Наибольшее число строк, ждущих вывода.
+     * @param sink     Вывод пачки строк (вызывается в EDT).
+     * @param skippedNotice Строка с числом выброшенных строк.
+     */
+    public InboundBuffer(int capacity, Consumer<List<T>> sink, IntFunction<T> skippedNotice) {
+        this.capacity = Math.max(MAX_BATCH, capacity);
+        this.sink = sink;
+        this.skippedNotice = skippedNotice;
+        this.timer = new Timer(DELAY, e -> drain());
+        this.timer.setRepeats(false);
+        // склейкой занимается флаг scheduled; склейка таймера теряла бы срабатывание,
+        // пришедшее, пока EDT еще выводит предыдущую пачку
+        this.timer.setCoalesce(false);
+    }
+
+    /**
+     * Добавление строки (из любого потока, в том числе из EDT - тогда
+     * строка выводится ближайшим проходом, вслед за уже ждущими).
+     */
+    public void add(T line)
+    {
+        queue.add(line);
+        if (size.incrementAndGet() > capacity && queue.poll() != null)
+        {
+            size.decrementAndGet();
+            skipped.incrementAndGet();
+        }
+        if (scheduled.compareAndSet(false, true))
+            timer.restart();
+    }
+
+    /**
+     * Вывод накопившегося (в EDT).
+     */
+    private void drain()
+    {
+        scheduled.set(false);
+        List<T> batch = new ArrayList<>(Math.min(size.get() + 1, MAX_BATCH + 1));
+        int lost = skipped.getAndSet(0);
+        if (lost > 0)
+            batch.add(skippedNotice.apply(lost));
+        T line;
+        while (batch.size() < MAX_BATCH && (line = queue.poll()) != null)
+        {
+            size.decrementAndGet();
+            batch.add(line);
+        }
+        if (!batch.isEmpty())
+            sink.accept(batch);
+        // остаток - следующим проходом, чтобы EDT успевал обрабатывать ввод
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+            timer.restart();
+    }
+}
@@ -0,0 +1,85 @@
+package mr.demonid.view.controllers;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Виртуализированное поле истории: список строк фиксированной высоты,
+ * в котором стили строятся и рисуются только для видимых на экране строк.
+ * Вся история хранится в компактной модели (HistoryModel), поэтому
+ * ни память, ни время отрисовки не зависят от того, сколько сообщений
+ * накопилось. Строки не переносятся - длинные прокручиваются по горизонтали.
+ */
+public class VirtualHistoryView extends JList<String> implements HistoryView {
+
+    private final HistoryModel model;
+    private final int charWidth;
+
+
+    public VirtualHistoryView(int maxLines, long maxChars) {
+        model = new HistoryModel(maxLines, maxChars);
+        setModel(model);
+        setFont(new Font(Font.MONOSPACED, Font.PLAIN, 14));
+        setCellRenderer(new LineRenderer(model, getFont()));
+        // фиксированные размеры ячеек: JList не измеряет все строки ради размеров списка
+        FontMetrics metrics = getFontMetrics(getFont());
+        charWidth = metrics.charWidth('m');
+        setFixedCellHeight(metrics.getHeight() + 2);
+        setFixedCellWidth(charWidth);
+    }
+
+    @Override
+    public void appendLines(List<AnsiLine> lines) {
+        int last = model.getSize() - 1;
+        boolean atBottom = last < 0 || getLastVisibleIndex() >= last;
+        // модель хранит только исходные строки, участки строит отрисовщик видимых строк
+        model.addAll(lines);
+        int width = (model.getMaxWidth() + 1) * charWidth;
+        if (width > getFixedCellWidth())
+            setFixedCellWidth(width);
+        // прокручиваем к новым строкам, только если пользователь и так был внизу
+        if (atBottom && model.getSize() > 0)
+            ensureIndexIsVisible(model.getSize() - 1);
+    }
+
+    @Override
+    public void clear() {
+        model.clear();
+        setFixedCellWidth(charWidth);
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        // узкий список растягиваем на всю ширину, широкий - прокручиваем
+        Container parent = getParent();
+        return parent instanceof JViewport && parent.getWidth() > getPreferredSize().width;
+    }
+
+    /**
+     * Отрисовщик строки: одна панель ANSITextPane на все ячейки,
+     * документ которой заполняется заново для каждой видимой строки,
+     * начиная со стиля, действовавшего на начало этой строки.
+     */
+    private static class LineRenderer implements ListCellRenderer<String> {
+
+        private final ANSITextPane pane = new ANSITextPane();
+        private final HistoryModel model;
+
+
+        LineRenderer(HistoryModel model, Font font) {
+            this.model = model;
+            pane.setFont(font);
+            pane.setBorder(BorderFactory.createEmptyBorder(1, 2, 1, 2));
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends String> list, String value, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            pane.reset(model.getStyleAt(index));
+            pane.appendANSI(value);
+            pane.setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+            return pane;
+        }
+    }
+}
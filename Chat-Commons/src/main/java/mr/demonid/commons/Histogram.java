@@ -0,0 +1,139 @@
+package mr.demonid.commons;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма значений (обычно времени в наносекундах) без блокировок.
+ * <p>
+ * Ячейки устроены как в HdrHistogram: значения до 16 учитываются точно,
+ * а каждый следующий диапазон [2^k, 2^(k+1)) делится на 16 равных ячеек,
+ * поэтому относительная погрешность не больше 1/16 при любом масштабе,
+ * а вся гистограмма - несколько сотен счетчиков фиксированного размера.
+ * Запись - одно атомарное приращение, без выделения памяти.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_BITS = 44;                 // 2^44 нс - почти 5 часов
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private final boolean nanos;
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_BITS - SUB_BITS + 1) * SUB);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+
+    /**
+     * @param nanos Значения - время в наносекундах (выводится в микросекундах).
+     */
+    public Histogram(boolean nanos) {
+        this.nanos = nanos;
+    }
+
+    public void record(long value)
+    {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Запись времени, прошедшего с момента start (System.nanoTime).
+     */
+    public void recordSince(long start)
+    {
+        record(System.nanoTime() - start);
+    }
+
+    public boolean isNanos()
+    {
+        return nanos;
+    }
+
+    /**
+     * Снимок для вывода. Счетчики читаются не атомарно все сразу,
+     * но для статистики под нагрузкой этого достаточно.
+     */
+    public Snapshot snapshot()
+    {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++)
+            copy[i] = counts.get(i);
+        return new Snapshot(copy, count.sum(), sum.sum(), max.get());
+    }
+
+    static int indexOf(long value)
+    {
+        if (value < SUB)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /**
+     * Наибольшее значение, попадающее в ячейку.
+     */
+    static long upperBound(int index)
+    {
+        if (index < SUB)
+            return index;
+        int group = index >>> SUB_BITS;
+        long width = 1L << (group - 1);
+        return (SUB + (index & (SUB - 1))) * width + width - 1;
+    }
+
+    /**
+     * Неизменяемый снимок гистограммы.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Значение, не больше которого доля q всех записанных (q от 0 до 1).
+         */
+        public long percentile(double q) {
+            long total = 0;
+            for (long c : counts)
+                total += c;
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(upperBound(i), max);
+            }
+            return max;
+        }
+    }
+}
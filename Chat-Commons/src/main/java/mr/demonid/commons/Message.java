@@ -5,17 +5,63 @@ import java.io.Serializable;
 
 public class Message implements Serializable {
 
+    /**
+     * Признак комнаты в имени адресата (#имя).
+     */
+    public static final char ROOM_PREFIX = '#';
+
     private Account from;
     private String to;
     private String text;
+    private MessageType type;
+    private long offset = -1;
+    private long epoch;
 
 
     public Message(Account from, String to, String text) {
+        this(from, to, text, MessageType.TEXT);
+    }
+
+    public Message(Account from, String to, String text, MessageType type) {
         this.from = from;
         this.to = to;
         this.text = text;
+        this.type = type;
+    }
+
+
+    public Account getAuthor() {
+        return from;
     }
 
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Номер сообщения в истории сервера, или -1, если его нет.
+     * В сообщении LOGIN - номер последнего сообщения, полученного клиентом ранее.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * Эпоха истории сервера, или 0, если она не известна. Номера сообщений имеют смысл
+     * только в пределах одной эпохи: после перезапуска сервера без журнала они начинаются заново.
+     * В сообщении SESSION - эпоха сервера, в LOGIN - эпоха, к которой относится номер.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
 
     public String getAuthorName() {
         return from == null ? "" : from.getName();
@@ -37,14 +83,32 @@ public class Message implements Serializable {
         this.text = text;
     }
 
+    /**
+     * Есть ли у сообщения адресат (пользователь или комната).
+     */
+    public boolean hasTarget() {
+        return to != null && !to.isEmpty();
+    }
+
+    /**
+     * Личное сообщение пользователю.
+     */
     public boolean isPrivate() {
-        return to == null ? false : !to.isEmpty();
+        return hasTarget() && to.charAt(0) != ROOM_PREFIX;
+    }
+
+    /**
+     * Сообщение в комнату (адресат вида #имя).
+     */
+    public boolean isRoom() {
+        return hasTarget() && to.charAt(0) == ROOM_PREFIX;
     }
 
     @Override
     public String toString() {
         return "Message{" +
-                "from=" + from +
+                "type=" + type +
+                ", from=" + from +
                 ", to='" + to + '\'' +
                 ", text='" + text + '\'' +
                 '}';
@@ -0,0 +1,14 @@
+package mr.demonid.commons;
+
+/**
+ * Тип сообщения.
+ */
+public enum MessageType {
+    TEXT,           // обычное, личное или сообщение в комнату
+    LOGIN,          // представление клиента серверу при подключении (текст - токен возобновляемого сеанса)
+    JOIN,           // вход в комнату (адресат - имя комнаты)
+    LEAVE,          // выход из комнаты
+    SESSION,        // подтверждение входа: токен сеанса (пустой - без переподключения) и эпоха сервера
+    PING,           // проверка связи
+    PONG            // ответ на PING
+}
@@ -0,0 +1,94 @@
+package mr.demonid.commons;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.function.BiFunction;
+
+/**
+ * Настройки TCP-сокета: TCP_NODELAY и размеры буферов.
+ * Не заданные значения не трогаются (остаются системными).
+ * <pre>
+ * [префикс]nodelay - true/false, отключение алгоритма Нейгла
+ * [префикс]sndbuf  - размер буфера отправки, байт
+ * [префикс]rcvbuf  - размер буфера приема, байт
+ * </pre>
+ */
+public class TcpOptions {
+
+    private final Boolean noDelay;
+    private final int sendBuffer;
+    private final int receiveBuffer;
+
+
+    /**
+     * @param noDelay       TCP_NODELAY, или null - оставить системное значение.
+     * @param sendBuffer    Размер буфера отправки, или 0 - системный.
+     * @param receiveBuffer Размер буфера приема, или 0 - системный.
+     */
+    public TcpOptions(Boolean noDelay, int sendBuffer, int receiveBuffer) {
+        this.noDelay = noDelay;
+        this.sendBuffer = Math.max(0, sendBuffer);
+        this.receiveBuffer = Math.max(0, receiveBuffer);
+    }
+
+    /**
+     * Чтение настроек.
+     * @param props  Источник значений: (ключ, значение по умолчанию) -> значение.
+     * @param prefix Префикс ключей, например "chat.server.tcp."
+     */
+    public static TcpOptions of(BiFunction<String, String, String> props, String prefix) {
+        String nd = props.apply(prefix + "nodelay", null);
+        return new TcpOptions(nd == null ? null : Boolean.parseBoolean(nd.trim()),
+                parseInt(props.apply(prefix + "sndbuf", null)),
+                parseInt(props.apply(prefix + "rcvbuf", null)));
+    }
+
+    /**
+     * Чтение настроек из системных свойств.
+     */
+    public static TcpOptions fromSystem(String prefix) {
+        return of(System::getProperty, prefix);
+    }
+
+    /**
+     * Настройка подключенного сокета (в том числе сокета SocketChannel).
+     */
+    public void apply(Socket socket) throws SocketException {
+        if (noDelay != null)
+            socket.setTcpNoDelay(noDelay);
+        if (sendBuffer > 0)
+            socket.setSendBufferSize(sendBuffer);
+        if (receiveBuffer > 0)
+            socket.setReceiveBufferSize(receiveBuffer);
+    }
+
+    /**
+     * Настройка слушающего сокета, до bind(): размер окна приема
+     * согласуется при установке соединения, поэтому задается заранее.
+     */
+    public void apply(ServerSocket socket) throws SocketException {
+        if (receiveBuffer > 0)
+            socket.setReceiveBufferSize(receiveBuffer);
+    }
+
+    public Boolean getNoDelay() {
+        return noDelay;
+    }
+
+    public int getSendBuffer() {
+        return sendBuffer;
+    }
+
+    public int getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return value == null ? 0 : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package mr.demonid.commons.codec;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Компактный двоичный кодек.
+ * <pre>
+ * кадр:    [varint длина][тип][тело]
+ * DEFINE:  [varint id][строка имя]                    - привязка номера к имени отправителя
+ * LOGIN:   [строка имя][строка пароль][varlong номер+1][строка токен][varlong эпоха]   - представление клиента
+ *          (единственный кадр с паролем); номер последнего полученного сообщения, токен возобновляемого сеанса
+ *          и эпоха истории, к которой относится номер, необязательны
+ * TEXT:    [varint id отправителя][строка текст]
+ * PRIVATE: [varint id отправителя][строка адресат][строка текст]   - адресат: имя или #комната
+ * Если в типе TEXT или PRIVATE выставлен бит HAS_OFFSET, сразу за типом идет [varlong номер в истории].
+ * JOIN:    [строка комната]                           - вход в комнату (только от клиента)
+ * LEAVE:   [строка комната]                           - выход из комнаты (только от клиента)
+ * SESSION: [строка токен][varlong эпоха]              - токен сеанса и эпоха истории (только от сервера)
+ * PING:    []                                         - проверка связи
+ * PONG:    []                                         - ответ на PING
+ * строка:  [varint длина в байтах][UTF-8]
+ * </pre>
+ * Перед первым сообщением очередного отправителя в поток вставляется кадр DEFINE
+ * (и снова, если номер с тех пор отдан другому имени - номера переиспользуются, см. SenderIds),
+ * поэтому кодек хранит состояние соединения и не потокобезопасен:
+ * кодирование и запись кадра в сокет должны выполняться под одной блокировкой.
+ * <p>
+ * Номера отправителей назначает только сервер. Клиент отправляет свои сообщения
+ * с номером 0 (автора сервер знает по соединению), а кодек сервера отвергает
+ * кадры DEFINE: иначе клиент мог бы заставить его хранить таблицу любого размера.
+ */
+public class BinaryCodec implements MessageCodec {
+
+    public static final byte ID = 2;
+    public static final int MAX_FRAME = 1024 * 1024;
+
+    static final byte DEFINE = 1;
+    static final byte LOGIN = 2;
+    static final byte TEXT = 3;
+    static final byte PRIVATE = 4;
+    static final byte JOIN = 5;
+    static final byte LEAVE = 6;
+    static final byte SESSION = 7;
+    static final byte PING = 8;
+    static final byte PONG = 9;
+    static final int HAS_OFFSET = 0x80;
+
+    private static final Account NOBODY = new Account("", "", "", "");
+
+    private final SenderIds senderIds;              // null - кодек клиента
+    private String[] peerNames = new String[16];    // имена номеров, уже сообщенные другой стороне
+    private Account[] senders = new Account[16];    // номера, полученные от другой стороны
+
+
+    /**
+     * Кодек клиента: свои сообщения без номера отправителя, номера сервера принимаются.
+     */
+    public BinaryCodec() {
+        this(null);
+    }
+
+    /**
+     * Кодек сервера.
+     * @param senderIds Таблица номеров отправителей (может быть общей для всех соединений).
+     */
+    public BinaryCodec(SenderIds senderIds) {
+        this.senderIds = senderIds;
+        senders[0] = NOBODY;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        byte[] body = encodeShared(message);
+        byte[] define = message.getType() == MessageType.TEXT ? defineIfUnknown(senderOf(body), message.getAuthorName()) : null;
+        if (define == null)
+            return body;
+        byte[] res = Arrays.copyOf(define, define.length + body.length);
+        System.arraycopy(body, 0, res, define.length, body.length);
+        return res;
+    }
+
+    @Override
+    public byte[] encodeShared(Message message) {
+        return switch (message.getType()) {
+            case LOGIN -> encodeLogin(message);
+            case JOIN -> encodeRoom(JOIN, message);
+            case LEAVE -> encodeRoom(LEAVE, message);
+            case SESSION -> encodeSession(message);
+            case PING -> encodeEmpty(PING);
+            case PONG -> encodeEmpty(PONG);
+            case TEXT -> encodeText(senderIds == null ? 0 : senderIds.idOf(message.getAuthorName()), message);
+        };
+    }
+
+    /**
+     * Кадр DEFINE, если другая сторона еще не знает номер автора сообщения.
+     * Номер берется из уже закодированной общей части: с тех пор, как она
+     * закодирована, номер мог перейти к другому имени.
+     */
+    @Override
+    public byte[] encodePrefix(SharedFrame frame) throws IOException {
+        Message message = frame.getMessage();
+        if (message.getType() != MessageType.TEXT)
+            return null;
+        return defineIfUnknown(senderOf(frame.bytes(this)), message.getAuthorName());
+    }
+
+    private byte[] defineIfUnknown(int id, String name) {
+        if (id == 0 || id < peerNames.length && name.equals(peerNames[id]))
+            return null;
+        if (id >= peerNames.length)
+            peerNames = Arrays.copyOf(peerNames, Math.max(id + 1, peerNames.length * 2));
+        peerNames[id] = name;
+        return encodeDefine(id, name);
+    }
+
+    /**
+     * Номер отправителя из кадра TEXT или PRIVATE.
+     */
+    private static int senderOf(byte[] frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        Varint.get(buffer);                             // длина
+        if ((buffer.get() & HAS_OFFSET) != 0)
+            Varint.getLong(buffer);
+        return Varint.get(buffer);
+    }
+
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException {
+        while (true) {
+            int start = buffer.position();
+            int len = Varint.tryGet(buffer);
+            if (len < 0)
+                return null;
+            checkLength(len);
+            if (buffer.remaining() < len) {
+                buffer.position(start);
+                return null;
+            }
+            ByteBuffer frame = buffer.slice(buffer.position(), len);
+            buffer.position(buffer.position() + len);
+            Message message = parse(frame);
+            if (message != null)
+                return message;
+        }
+    }
+
+    @Override
+    public Message read(InputStream in) throws IOException {
+        DataInputStream data = in instanceof DataInputStream d ? d : new DataInputStream(in);
+        while (true) {
+            byte[] frame = new byte[checkLength(Varint.read(data))];
+            data.readFully(frame);
+            Message message = parse(ByteBuffer.wrap(frame));
+            if (message != null)
+                return message;
+        }
+    }
+
+    /*
+        Кодирование кадров
+     */
+
+    private byte[] encodeLogin(Message message) {
+        byte[] name = utf8(message.getAuthorName());
+        byte[] password = utf8(message.getAuthorPassword());
+        byte[] token = utf8(message.getMessage());
+        long last = Math.max(-1, message.getOffset());
+        long epoch = message.getEpoch();
+        boolean hasToken = token.length > 0 || epoch != 0;  // эпоха идет только после токена,
+        boolean hasLast = last >= 0 || hasToken;            // а токен - только после номера
+        ByteBuffer frame = allocate(1 + sizeOf(name) + sizeOf(password) + (hasLast ? Varint.sizeLong(last + 1) : 0)
+                + (hasToken ? sizeOf(token) : 0) + (epoch != 0 ? Varint.sizeLong(epoch) : 0));
+        frame.put(LOGIN);
+        putString(frame, name);
+        putString(frame, password);
+        if (hasLast)
+            Varint.putLong(frame, last + 1);
+        if (hasToken)
+            putString(frame, token);
+        if (epoch != 0)
+            Varint.putLong(frame, epoch);
+        return frame.array();
+    }
+
+    private byte[] encodeSession(Message message) {
+        byte[] token = utf8(message.getMessage());
+        long epoch = message.getEpoch();
+        ByteBuffer frame = allocate(1 + sizeOf(token) + (epoch != 0 ? Varint.sizeLong(epoch) : 0));
+        frame.put(SESSION);
+        putString(frame, token);
+        if (epoch != 0)
+            Varint.putLong(frame, epoch);
+        return frame.array();
+    }
+
+    private byte[] encodeEmpty(byte type) {
+        ByteBuffer frame = allocate(1);
+        frame.put(type);
+        return frame.array();
+    }
+
+    private byte[] encodeDefine(int id, String name) {
+        byte[] bytes = utf8(name);
+        ByteBuffer frame = allocate(1 + Varint.size(id) + sizeOf(bytes));
+        frame.put(DEFINE);
+        Varint.put(frame, id);
+        putString(frame, bytes);
+        return frame.array();
+    }
+
+    private byte[] encodeRoom(byte type, Message message) {
+        byte[] room = utf8(message.getTargetName());
+        ByteBuffer frame = allocate(1 + sizeOf(room));
+        frame.put(type);
+        putString(frame, room);
+        return frame.array();
+    }
+
+    private byte[] encodeText(int id, Message message) {
+        byte[] text = utf8(message.getMessage());
+        long offset = message.getOffset();
+        int offsetSize = offset < 0 ? 0 : Varint.sizeLong(offset);
+        if (!message.hasTarget()) {
+            ByteBuffer frame = allocate(1 + offsetSize + Varint.size(id) + sizeOf(text));
+            putType(frame, TEXT, offset);
+            Varint.put(frame, id);
+            putString(frame, text);
+            return frame.array();
+        }
+        byte[] target = utf8(message.getTargetName());
+        ByteBuffer frame = allocate(1 + offsetSize + Varint.size(id) + sizeOf(target) + sizeOf(text));
+        putType(frame, PRIVATE, offset);
+        Varint.put(frame, id);
+        putString(frame, target);
+        putString(frame, text);
+        return frame.array();
+    }
+
+    /**
+     * Тип кадра и, если есть, номер сообщения в истории.
+     */
+    private static void putType(ByteBuffer frame, byte type, long offset) {
+        if (offset < 0) {
+            frame.put(type);
+            return;
+        }
+        frame.put((byte) (type | HAS_OFFSET));
+        Varint.putLong(frame, offset);
+    }
+
+    /**
+     * Выделение кадра под тело заданного размера с уже записанной длиной.
+     */
+    private static ByteBuffer allocate(int bodySize) {
+        ByteBuffer frame = ByteBuffer.allocate(Varint.size(bodySize) + bodySize);
+        Varint.put(frame, bodySize);
+        return frame;
+    }
+
+    private static int sizeOf(byte[] str) {
+        return Varint.size(str.length) + str.length;
+    }
+
+    private static void putString(ByteBuffer frame, byte[] str) {
+        Varint.put(frame, str.length);
+        frame.put(str);
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+        Разбор кадров
+     */
+
+    /**
+     * Разбор тела кадра.
+     * @return Сообщение, или null для служебного кадра.
+     */
+    private Message parse(ByteBuffer frame) throws IOException {
+        if (!frame.hasRemaining())
+            throw new IOException("Empty frame!");
+        int type = frame.get() & 0xFF;
+        long offset = -1;
+        if ((type & HAS_OFFSET) != 0) {
+            type &= ~HAS_OFFSET;
+            if (type != TEXT && type != PRIVATE)
+                throw new IOException("Unexpected offset in frame type: " + type);
+            offset = Varint.getLong(frame);
+        }
+        switch (type) {
+            case DEFINE -> {
+                if (senderIds != null)
+                    throw new IOException("Unexpected DEFINE from client!");
+                int id = checkSender(Varint.get(frame));
+                define(id, new Account(getString(frame), "", "", ""));
+                return null;
+            }
+            case LOGIN -> {
+                String name = getString(frame);
+                String password = getString(frame);
+                Message login = new Message(new Account(name, password, "", ""), null, "", MessageType.LOGIN);
+                if (frame.hasRemaining())
+                    login.setOffset(Varint.getLong(frame) - 1);
+                if (frame.hasRemaining())
+                    login.setMessage(getString(frame));
+                if (frame.hasRemaining())
+                    login.setEpoch(Varint.getLong(frame));
+                return login;
+            }
+            case TEXT -> {
+                Account from = sender(Varint.get(frame));
+                return withOffset(new Message(from, null, getString(frame)), offset);
+            }
+            case PRIVATE -> {
+                Account from = sender(Varint.get(frame));
+                String to = getString(frame);
+                return withOffset(new Message(from, to, getString(frame)), offset);
+            }
+            case JOIN -> {
+                return new Message(NOBODY, getString(frame), "join", MessageType.JOIN);
+            }
+            case LEAVE -> {
+                return new Message(NOBODY, getString(frame), "leave", MessageType.LEAVE);
+            }
+            case SESSION -> {
+                Message session = new Message(NOBODY, null, getString(frame), MessageType.SESSION);
+                if (frame.hasRemaining())
+                    session.setEpoch(Varint.getLong(frame));
+                return session;
+            }
+            case PING -> {
+                return new Message(NOBODY, null, "ping", MessageType.PING);
+            }
+            case PONG -> {
+                return new Message(NOBODY, null, "pong", MessageType.PONG);
+            }
+            default -> throw new IOException("Unknown frame type: " + type);
+        }
+    }
+
+    private static Message withOffset(Message message, long offset) {
+        message.setOffset(offset);
+        return message;
+    }
+
+    private String getString(ByteBuffer frame) throws IOException {
+        int len = Varint.get(frame);
+        if (len > frame.remaining())
+            throw new IOException("Truncated string!");
+        if (!frame.hasArray()) {
+            byte[] bytes = new byte[len];
+            frame.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String res = new String(frame.array(), frame.arrayOffset() + frame.position(), len, StandardCharsets.UTF_8);
+        frame.position(frame.position() + len);
+        return res;
+    }
+
+    private void define(int id, Account account) {
+        if (id >= senders.length)
+            senders = Arrays.copyOf(senders, Math.max(id + 1, senders.length * 2));
+        senders[id] = account;
+    }
+
+    private Account sender(int id) throws IOException {
+        if (id >= senders.length || senders[id] == null)
+            throw new IOException("Unknown sender id: " + id);
+        return senders[id];
+    }
+
+    private static int checkSender(int id) throws IOException {
+        if (id <= 0 || id > SenderIds.MAX_CAPACITY)
+            throw new IOException("Bad sender id: " + id);
+        return id;
+    }
+
+    private static int checkLength(int len) throws IOException {
+        if (len <= 0 || len > MAX_FRAME)
+            throw new IOException("Bad frame length: " + len);
+        return len;
+    }
+}
@@ -0,0 +1,58 @@
+package mr.demonid.commons.codec;
+
+/**
+ * Реестр доступных кодеков.
+ */
+public final class Codecs {
+
+    /**
+     * Наибольший допустимый идентификатор кодека.
+     */
+    public static final int MAX_ID = 7;
+
+    private Codecs() {}
+
+    /**
+     * Идентификаторы всех известных кодеков, в порядке предпочтения.
+     */
+    public static byte[] all() {
+        return new byte[] {BinaryCodec.ID, SerialCodec.ID};
+    }
+
+    /**
+     * Создание нового экземпляра кодека для клиента.
+     * @param id Идентификатор кодека.
+     * @return Кодек, или null, если такой не известен.
+     */
+    public static MessageCodec create(byte id) {
+        return switch (id) {
+            case BinaryCodec.ID -> new BinaryCodec();
+            case SerialCodec.ID -> new SerialCodec();
+            default -> null;
+        };
+    }
+
+    /**
+     * Создание кодека для сервера с общей таблицей отправителей.
+     * Кодеки с одной таблицей кодируют общую часть кадра одинаково.
+     */
+    public static MessageCodec create(byte id, SenderIds senderIds) {
+        return switch (id) {
+            case BinaryCodec.ID -> new BinaryCodec(senderIds);
+            case SerialCodec.ID -> new SerialCodec();
+            default -> null;
+        };
+    }
+
+    /**
+     * Поиск по имени (для файлов настроек).
+     * @return Идентификатор кодека, или 0, если имя не известно.
+     */
+    public static byte idOf(String name) {
+        return switch (name.trim().toLowerCase()) {
+            case "binary" -> BinaryCodec.ID;
+            case "serial" -> SerialCodec.ID;
+            default -> 0;
+        };
+    }
+}
@@ -0,0 +1,126 @@
+package mr.demonid.commons.codec;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Согласование кодека при подключении.
+ * <pre>
+ *   клиент -> сервер: "CHAT", версия, число кодеков N, N идентификаторов (по предпочтению)
+ *   сервер -> клиент: "CHAT", версия, выбранный идентификатор (0 - общих кодеков нет)
+ * </pre>
+ * После этого обе стороны обмениваются кадрами выбранного кодека.
+ */
+public final class Handshake {
+
+    public static final byte[] MAGIC = {'C', 'H', 'A', 'T'};
+    public static final byte VERSION = 1;
+    public static final byte NONE = 0;
+
+    private static final int HEADER = MAGIC.length + 1;
+
+    private Handshake() {}
+
+    /**
+     * Предложение клиента.
+     */
+    public static byte[] offer(byte[] codecs) {
+        byte[] res = Arrays.copyOf(MAGIC, HEADER + 1 + codecs.length);
+        res[MAGIC.length] = VERSION;
+        res[HEADER] = (byte) codecs.length;
+        System.arraycopy(codecs, 0, res, HEADER + 1, codecs.length);
+        return res;
+    }
+
+    /**
+     * Ответ сервера.
+     */
+    public static byte[] answer(byte codec) {
+        byte[] res = Arrays.copyOf(MAGIC, HEADER + 1);
+        res[MAGIC.length] = VERSION;
+        res[HEADER] = codec;
+        return res;
+    }
+
+    public static void writeOffer(OutputStream out, byte[] codecs) throws IOException {
+        out.write(offer(codecs));
+        out.flush();
+    }
+
+    public static void writeAnswer(OutputStream out, byte codec) throws IOException {
+        out.write(answer(codec));
+        out.flush();
+    }
+
+    /**
+     * Блокирующее чтение предложения клиента.
+     * @return Список предложенных кодеков.
+     */
+    public static byte[] readOffer(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        readHeader(data);
+        byte[] codecs = new byte[data.readUnsignedByte()];
+        data.readFully(codecs);
+        return codecs;
+    }
+
+    /**
+     * Блокирующее чтение ответа сервера.
+     * @return Выбранный сервером кодек, или NONE.
+     */
+    public static byte readAnswer(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        readHeader(data);
+        return data.readByte();
+    }
+
+    /**
+     * Неблокирующий разбор предложения клиента.
+     * @return Список кодеков, или null, если данных пока недостаточно.
+     */
+    public static byte[] parseOffer(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER + 1)
+            return null;
+        int start = buffer.position();
+        int count = buffer.get(start + HEADER) & 0xFF;
+        if (buffer.remaining() < HEADER + 1 + count)
+            return null;
+        byte[] header = new byte[HEADER];
+        buffer.get(header);
+        checkHeader(header);
+        buffer.get();
+        byte[] codecs = new byte[count];
+        buffer.get(codecs);
+        return codecs;
+    }
+
+    /**
+     * Выбор первого из предложенных кодеков, который поддерживается сервером.
+     */
+    public static byte choose(byte[] offered, byte[] supported) {
+        for (byte id : offered) {
+            for (byte s : supported) {
+                if (id == s)
+                    return id;
+            }
+        }
+        return NONE;
+    }
+
+    private static void readHeader(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER];
+        in.readFully(header);
+        checkHeader(header);
+    }
+
+    private static void checkHeader(byte[] header) throws IOException {
+        if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length))
+            throw new IOException("Bad handshake: unknown protocol!");
+        if (header[MAGIC.length] != VERSION)
+            throw new IOException("Bad handshake: unsupported version " + header[MAGIC.length]);
+    }
+}
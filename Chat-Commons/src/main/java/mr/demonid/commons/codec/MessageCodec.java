@@ -0,0 +1,60 @@
+package mr.demonid.commons.codec;
+
+import mr.demonid.commons.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Кодек сообщений: превращает Message в кадр для передачи по сети и обратно.
+ * Каждый кадр самодостаточен (содержит свою длину), поэтому его можно
+ * выделять как из блокирующего потока, так и из неблокирующего буфера.
+ * Экземпляр кодека может хранить состояние соединения, поэтому
+ * на каждое соединение создается свой экземпляр (см. Codecs.create()).
+ */
+public interface MessageCodec {
+
+    /**
+     * Идентификатор кодека, передаваемый при согласовании протокола.
+     */
+    byte getId();
+
+    /**
+     * Кодирование сообщения в кадр, готовый к отправке.
+     */
+    byte[] encode(Message message) throws IOException;
+
+    /**
+     * Кодирование части кадра, не зависящей от состояния соединения.
+     * Результат одинаков для всех экземпляров кодека с одной таблицей отправителей,
+     * поэтому при рассылке его можно получить один раз на всех получателей (см. SharedFrame).
+     */
+    default byte[] encodeShared(Message message) throws IOException {
+        return encode(message);
+    }
+
+    /**
+     * Служебные кадры, которые нужно отправить этому соединению перед общей частью
+     * (frame.bytes(this)): они могут зависеть от того, как она закодирована.
+     * @return Байты, или null, если ничего отправлять не нужно.
+     */
+    default byte[] encodePrefix(SharedFrame frame) throws IOException {
+        return null;
+    }
+
+    /**
+     * Извлечение очередного кадра из буфера (неблокирующий режим).
+     * @param buffer Буфер в режиме чтения.
+     * @return Сообщение, или null, если кадр получен не полностью.
+     *         В последнем случае позиция буфера остается в начале неполного кадра
+     *         (служебные кадры перед ним при этом могут быть уже разобраны).
+     */
+    Message decode(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Блокирующее чтение очередного кадра из потока.
+     */
+    Message read(InputStream in) throws IOException;
+
+}
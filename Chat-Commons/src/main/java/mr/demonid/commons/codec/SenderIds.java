@@ -0,0 +1,98 @@
+package mr.demonid.commons.codec;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Таблица числовых идентификаторов отправителей.
+ * Вместо имени автора в каждом сообщении передается его номер,
+ * а само имя - один раз на соединение (кадр DEFINE).
+ * Таблица может быть общей для нескольких кодеков: тогда одно и то же
+ * сообщение кодируется для всех получателей одинаково.
+ * Номер 0 зарезервирован за пустым именем.
+ * <p>
+ * Номера ограничены емкостью таблицы и переиспользуются: номер ушедшего
+ * пользователя (release) отдается следующему новому имени, а когда свободных
+ * нет, вытесняется одно из имен по кругу. Поэтому таблица и состояние
+ * соединений растут не с числом всех когда-либо писавших, а с числом активных.
+ * Переназначение безопасно: кодек сверяет имя для номера с тем, что уже
+ * сообщил своей стороне, и при расхождении посылает DEFINE заново.
+ */
+public class SenderIds {
+
+    /**
+     * Наибольшая емкость таблицы; номера больше этого получатель отвергает.
+     */
+    public static final int MAX_CAPACITY = 1 << 16;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final BitSet released = new BitSet();   // номера ушедших, отдаются в первую очередь
+    private String[] names = new String[16];        // имя по номеру
+    private int next = 1;
+    private int hand;                               // следующий кандидат на вытеснение
+
+
+    public SenderIds() {
+        this(MAX_CAPACITY);
+    }
+
+    /**
+     * @param capacity Наибольший номер отправителя.
+     */
+    public SenderIds(int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Bad sender table capacity: " + capacity);
+        this.capacity = capacity;
+    }
+
+    public int idOf(String name) {
+        if (name == null || name.isEmpty())
+            return 0;
+        Integer id = ids.get(name);
+        return id != null ? id : allocate(name);
+    }
+
+    /**
+     * Отправитель ушел: его номер можно отдать другому имени.
+     * До этого номер остается за ним (например, для прощального сообщения).
+     */
+    public synchronized void release(String name) {
+        Integer id = name == null ? null : ids.get(name);
+        if (id != null)
+            released.set(id);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    private synchronized int allocate(String name) {
+        Integer known = ids.get(name);
+        if (known != null)
+            return known;
+        int id = released.nextSetBit(1);            // меньший номер - короче varint и массивы соединений
+        if (id >= 0)
+            evict(id);
+        else if (next <= capacity)
+            id = next++;
+        else {
+            hand = hand % capacity + 1;             // таблица полна: вытесняем по кругу
+            id = hand;
+            evict(id);
+        }
+        if (id >= names.length)
+            names = Arrays.copyOf(names, Math.min(capacity + 1, Math.max(id + 1, names.length * 2)));
+        names[id] = name;
+        ids.put(name, id);
+        return id;
+    }
+
+    private void evict(int id) {
+        released.clear(id);
+        if (names[id] != null)
+            ids.remove(names[id], id);
+        names[id] = null;
+    }
+}
@@ -0,0 +1,84 @@
+package mr.demonid.commons.codec;
+
+import mr.demonid.commons.Message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Кодек на основе стандартной сериализации Java.
+ * Формат кадра: [int длина][сериализованный объект Message].
+ * Каждый кадр сериализуется отдельным ObjectOutputStream, поэтому его
+ * можно декодировать независимо от предыдущих.
+ */
+public class SerialCodec implements MessageCodec {
+
+    public static final byte ID = 1;
+    public static final int MAX_FRAME = 1024 * 1024;
+
+    // принимаем только свои классы и строки
+    private static final ObjectInputFilter FILTER =
+            ObjectInputFilter.Config.createFilter("mr.demonid.commons.*;java.lang.*;!*");
+
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);                                // место под длину
+        try (ObjectOutputStream obj = new ObjectOutputStream(out)) {
+            obj.writeObject(message);
+        }
+        byte[] frame = bytes.toByteArray();
+        int len = frame.length - Integer.BYTES;
+        frame[0] = (byte) (len >>> 24);
+        frame[1] = (byte) (len >>> 16);
+        frame[2] = (byte) (len >>> 8);
+        frame[3] = (byte) len;
+        return frame;
+    }
+
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES)
+            return null;
+        int len = checkLength(buffer.getInt(buffer.position()));
+        if (buffer.remaining() < Integer.BYTES + len)
+            return null;
+        buffer.position(buffer.position() + Integer.BYTES);
+        byte[] body = new byte[len];
+        buffer.get(body);
+        return deserialize(body);
+    }
+
+    @Override
+    public Message read(InputStream in) throws IOException {
+        DataInputStream data = in instanceof DataInputStream d ? d : new DataInputStream(in);
+        int len = checkLength(data.readInt());
+        byte[] body = new byte[len];
+        data.readFully(body);
+        return deserialize(body);
+    }
+
+    private int checkLength(int len) throws IOException {
+        if (len <= 0 || len > MAX_FRAME)
+            throw new IOException("Bad frame length: " + len);
+        return len;
+    }
+
+    private Message deserialize(byte[] body) throws IOException {
+        try (ObjectInputStream obj = new ObjectInputStream(new ByteArrayInputStream(body))) {
+            obj.setObjectInputFilter(FILTER);
+            if (obj.readObject() instanceof Message message)
+                return message;
+            throw new IOException("Unexpected object in frame!");
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
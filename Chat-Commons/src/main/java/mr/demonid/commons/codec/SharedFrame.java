@@ -0,0 +1,49 @@
+package mr.demonid.commons.codec;
+
+import mr.demonid.commons.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Сообщение, закодированное один раз для многих получателей.
+ * Общая часть кадра кодируется при первом обращении для каждого кодека
+ * и дальше раздается всем соединениям с тем же кодеком.
+ * Возвращаемые массивы разделяются между потоками, изменять их нельзя.
+ */
+public final class SharedFrame {
+
+    private final Message message;
+    private final AtomicReferenceArray<byte[]> frames = new AtomicReferenceArray<>(Codecs.MAX_ID + 1);
+
+
+    public SharedFrame(Message message) {
+        this.message = message;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Общая часть кадра для заданного кодека.
+     */
+    public byte[] bytes(MessageCodec codec) throws IOException {
+        int id = codec.getId();
+        byte[] res = frames.get(id);
+        if (res == null) {
+            res = codec.encodeShared(message);
+            if (!frames.compareAndSet(id, null, res))
+                res = frames.get(id);               // параллельно закодировал другой поток
+        }
+        return res;
+    }
+
+    /**
+     * Общая часть кадра в виде буфера только для чтения (для записи в канал).
+     */
+    public ByteBuffer buffer(MessageCodec codec) throws IOException {
+        return ByteBuffer.wrap(bytes(codec)).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,124 @@
+package mr.demonid.commons.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Целые числа переменной длины (по 7 бит в байте, старший бит - признак продолжения).
+ * Поддерживаются только неотрицательные int (от 1 до 5 байт) и long (до 9 байт).
+ */
+public final class Varint {
+
+    public static final int MAX_BYTES = 5;
+    public static final int MAX_LONG_BYTES = 9;
+
+    private Varint() {}
+
+    /**
+     * Число байт, занимаемых значением.
+     */
+    public static int size(int value) {
+        int n = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    public static void put(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Чтение значения из буфера.
+     * @return Значение, или -1, если в буфере нет всех его байт
+     *         (позиция буфера в этом случае не меняется).
+     */
+    public static int tryGet(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int value = 0;
+        for (int i = 0; i < MAX_BYTES; i++) {
+            if (!buffer.hasRemaining()) {
+                buffer.position(start);
+                return -1;
+            }
+            int b = buffer.get();
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0)
+                return check(value);
+        }
+        throw new IOException("Malformed varint!");
+    }
+
+    /**
+     * Чтение значения, которое гарантированно целиком находится в буфере.
+     */
+    public static int get(ByteBuffer buffer) throws IOException {
+        int value = tryGet(buffer);
+        if (value < 0)
+            throw new IOException("Truncated varint!");
+        return value;
+    }
+
+    public static int read(InputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < MAX_BYTES; i++) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0)
+                return check(value);
+        }
+        throw new IOException("Malformed varint!");
+    }
+
+    /**
+     * Число байт, занимаемых значением типа long.
+     */
+    public static int sizeLong(long value) {
+        int n = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    public static void putLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Чтение значения типа long, которое гарантированно целиком находится в буфере.
+     */
+    public static long getLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int i = 0; i < MAX_LONG_BYTES; i++) {
+            if (!buffer.hasRemaining())
+                throw new IOException("Truncated varint!");
+            int b = buffer.get();
+            value |= (long) (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint!");
+    }
+
+    private static int check(int value) throws IOException {
+        if (value < 0)
+            throw new IOException("Varint out of range!");
+        return value;
+    }
+}
@@ -0,0 +1,199 @@
+package mr.demonid.commons.codec;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCodecTest {
+
+    private static Account user(String name) {
+        return new Account(name, "", "", "");
+    }
+
+    @Test
+    void textRoundTrip() throws IOException {
+        MessageCodec server = Codecs.create(BinaryCodec.ID, new SenderIds());
+        MessageCodec client = Codecs.create(BinaryCodec.ID);
+        Message message = new Message(user("alice"), null, "привет");
+        message.setOffset(42);
+
+        Message res = client.read(new ByteArrayInputStream(server.encode(message)));
+        assertEquals(MessageType.TEXT, res.getType());
+        assertEquals("alice", res.getAuthorName());
+        assertNull(res.getTargetName());
+        assertEquals("привет", res.getMessage());
+        assertEquals(42, res.getOffset());
+    }
+
+    @Test
+    void privateAndRoomRoundTrip() throws IOException {
+        MessageCodec server = Codecs.create(BinaryCodec.ID, new SenderIds());
+        MessageCodec client = Codecs.create(BinaryCodec.ID);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(server.encode(new Message(user("alice"), "bob", "лично")));
+        out.write(server.encode(new Message(user("alice"), "#dev", "в комнату")));
+
+        // неблокирующий разбор: кадры целиком в одном буфере
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+        Message first = client.decode(buffer);
+        Message second = client.decode(buffer);
+        assertEquals("bob", first.getTargetName());
+        assertEquals("лично", first.getMessage());
+        assertEquals(-1, first.getOffset());
+        assertTrue(second.isRoom());
+        assertEquals("alice", second.getAuthorName());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void partialFrameIsNotConsumed() throws IOException {
+        MessageCodec server = Codecs.create(BinaryCodec.ID, new SenderIds());
+        MessageCodec client = Codecs.create(BinaryCodec.ID);
+        byte[] frame = server.encode(new Message(user("alice"), null, "text"));
+
+        ByteBuffer buffer = ByteBuffer.allocate(frame.length);
+        buffer.put(frame, 0, frame.length - 1).flip();
+        assertNull(client.decode(buffer));
+        buffer.compact().put(frame[frame.length - 1]).flip();
+        assertEquals("text", client.decode(buffer).getMessage());
+    }
+
+    @Test
+    void loginRoundTrip() throws IOException {
+        MessageCodec client = Codecs.create(BinaryCodec.ID);
+        MessageCodec server = Codecs.create(BinaryCodec.ID, new SenderIds());
+        Message login = new Message(new Account("alice", "secret", "", ""), null, "token", MessageType.LOGIN);
+        login.setOffset(7);
+        login.setEpoch(123456789L);
+
+        Message res = server.read(new ByteArrayInputStream(client.encode(login)));
+        assertEquals(MessageType.LOGIN, res.getType());
+        assertEquals("alice", res.getAuthorName());
+        assertEquals("secret", res.getAuthorPassword());
+        assertEquals("token", res.getMessage());
+        assertEquals(7, res.getOffset());
+        assertEquals(123456789L, res.getEpoch());
+
+        // без необязательных полей
+        res = server.read(new ByteArrayInputStream(client.encode(new Message(user("bob"), null, "", MessageType.LOGIN))));
+        assertEquals(-1, res.getOffset());
+        assertEquals("", res.getMessage());
+        assertEquals(0, res.getEpoch());
+    }
+
+    @Test
+    void sessionRoundTrip() throws IOException {
+        MessageCodec server = Codecs.create(BinaryCodec.ID, new SenderIds());
+        MessageCodec client = Codecs.create(BinaryCodec.ID);
+        Message session = new Message(user(""), null, "", MessageType.SESSION);
+        session.setEpoch(5);
+
+        Message res = client.read(new ByteArrayInputStream(server.encode(session)));
+        assertEquals(MessageType.SESSION, res.getType());
+        assertEquals("", res.getMessage());
+        assertEquals(5, res.getEpoch());
+    }
+
+    @Test
+    void defineIsSentOncePerSender() throws IOException {
+        MessageCodec server = Codecs.create(BinaryCodec.ID, new SenderIds());
+        byte[] first = server.encode(new Message(user("alice"), null, "1"));
+        byte[] second = server.encode(new Message(user("alice"), null, "1"));
+        assertTrue(first.length > second.length);
+        assertEquals(BinaryCodec.DEFINE, first[1]);
+        assertEquals(BinaryCodec.TEXT, second[1]);
+    }
+
+    @Test
+    void clientSendsNoDefine() throws IOException {
+        MessageCodec client = Codecs.create(BinaryCodec.ID);
+        MessageCodec server = Codecs.create(BinaryCodec.ID, new SenderIds());
+        byte[] frame = client.encode(new Message(user("alice"), null, "hi"));
+        assertEquals(BinaryCodec.TEXT, frame[1]);
+        // автора сервер знает по соединению, в кадре его нет
+        assertEquals("", server.read(new ByteArrayInputStream(frame)).getAuthorName());
+    }
+
+    @Test
+    void serverRejectsDefine() throws IOException {
+        byte[] frames = Codecs.create(BinaryCodec.ID, new SenderIds()).encode(new Message(user("alice"), null, "hi"));
+        MessageCodec server = Codecs.create(BinaryCodec.ID, new SenderIds());
+        assertThrows(IOException.class, () -> server.read(new ByteArrayInputStream(frames)));
+        assertThrows(IOException.class, () -> server.decode(ByteBuffer.wrap(frames)));
+    }
+
+    @Test
+    void clientRejectsOutOfRangeSender() {
+        MessageCodec client = Codecs.create(BinaryCodec.ID);
+        byte[] name = {'x'};
+        int id = SenderIds.MAX_CAPACITY + 1;
+        int body = 1 + Varint.size(id) + 1 + name.length;
+        ByteBuffer frame = ByteBuffer.allocate(Varint.size(body) + body);
+        Varint.put(frame, body);
+        frame.put(BinaryCodec.DEFINE);
+        Varint.put(frame, id);
+        Varint.put(frame, name.length);
+        frame.put(name);
+        assertThrows(IOException.class, () -> client.read(new ByteArrayInputStream(frame.array())));
+    }
+
+    @Test
+    void recycledIdIsDefinedAgain() throws IOException {
+        SenderIds ids = new SenderIds();
+        MessageCodec server = Codecs.create(BinaryCodec.ID, ids);
+        MessageCodec client = Codecs.create(BinaryCodec.ID);
+
+        Message fromAlice = client.read(new ByteArrayInputStream(server.encode(new Message(user("alice"), null, "a"))));
+        ids.release("alice");
+        byte[] frame = server.encode(new Message(user("bob"), null, "b"));
+        assertEquals(1, ids.idOf("bob"));                   // номер alice достался bob
+        assertEquals(BinaryCodec.DEFINE, frame[1]);
+        Message fromBob = client.read(new ByteArrayInputStream(frame));
+
+        assertEquals("alice", fromAlice.getAuthorName());
+        assertEquals("bob", fromBob.getAuthorName());
+    }
+
+    @Test
+    void sharedFramePrefixFollowsRecycling() throws IOException {
+        SenderIds ids = new SenderIds();
+        MessageCodec server = Codecs.create(BinaryCodec.ID, ids);
+        MessageCodec client = Codecs.create(BinaryCodec.ID);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String name : new String[]{"alice", "bob", "alice"}) {
+            SharedFrame frame = new SharedFrame(new Message(user(name), null, name));
+            byte[] prefix = server.encodePrefix(frame);
+            if (prefix != null)
+                out.write(prefix);
+            out.write(frame.bytes(server));
+            ids.release(name);
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (String name : new String[]{"alice", "bob", "alice"}) {
+            Message res = client.read(in);
+            assertEquals(name, res.getAuthorName());
+            assertEquals(name, res.getMessage());
+        }
+    }
+
+    @Test
+    void serialRoundTrip() throws IOException {
+        MessageCodec server = Codecs.create(SerialCodec.ID, new SenderIds());
+        MessageCodec client = Codecs.create(SerialCodec.ID);
+        Message message = new Message(user("alice"), "bob", "text");
+        message.setOffset(3);
+
+        Message res = client.decode(ByteBuffer.wrap(server.encode(message)));
+        assertEquals("alice", res.getAuthorName());
+        assertEquals("bob", res.getTargetName());
+        assertEquals(3, res.getOffset());
+    }
+}
@@ -0,0 +1,67 @@
+package mr.demonid.commons.codec;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SenderIdsTest {
+
+    @Test
+    void emptyNameIsZero() {
+        SenderIds ids = new SenderIds();
+        assertEquals(0, ids.idOf(""));
+        assertEquals(0, ids.idOf(null));
+        assertEquals(0, ids.size());
+    }
+
+    @Test
+    void idsAreStable() {
+        SenderIds ids = new SenderIds();
+        assertEquals(1, ids.idOf("alice"));
+        assertEquals(2, ids.idOf("bob"));
+        assertEquals(1, ids.idOf("alice"));
+        assertEquals(2, ids.size());
+    }
+
+    @Test
+    void releasedIdKeepsNameUntilReused() {
+        SenderIds ids = new SenderIds();
+        ids.idOf("alice");
+        ids.idOf("bob");
+        ids.release("alice");
+        assertEquals(1, ids.idOf("alice"));                 // до переиспользования номер за прежним именем
+        assertEquals(1, ids.idOf("carol"));
+        assertEquals(3, ids.idOf("alice"));
+        assertEquals(3, ids.size());
+    }
+
+    @Test
+    void lowestReleasedIdFirst() {
+        SenderIds ids = new SenderIds();
+        for (String name : new String[]{"a", "b", "c", "d"})
+            ids.idOf(name);
+        ids.release("d");
+        ids.release("b");
+        assertEquals(2, ids.idOf("x"));
+        assertEquals(4, ids.idOf("y"));
+        assertEquals(5, ids.idOf("z"));
+    }
+
+    @Test
+    void fullTableEvictsRoundRobin() {
+        SenderIds ids = new SenderIds(3);
+        ids.idOf("a");
+        ids.idOf("b");
+        ids.idOf("c");
+        assertEquals(1, ids.idOf("d"));
+        assertEquals(2, ids.idOf("e"));
+        assertEquals(3, ids.size());
+        assertEquals(3, ids.idOf("a"));                     // "a" вытеснен и получает новый номер
+    }
+
+    @Test
+    void capacityIsLimited() {
+        assertThrows(IllegalArgumentException.class, () -> new SenderIds(0));
+        assertThrows(IllegalArgumentException.class, () -> new SenderIds(SenderIds.MAX_CAPACITY + 1));
+    }
+}
@@ -0,0 +1,14 @@
+package mr.demonid;
+
+
+import mr.demonid.load.LoadConfig;
+import mr.demonid.load.LoadGenerator;
+
+
+public class Main {
+    public static void main(String[] args) throws InterruptedException {
+
+        new LoadGenerator(new LoadConfig(args)).run();
+
+    }
+}
@@ -0,0 +1,119 @@
+package mr.demonid.load;
+
+import mr.demonid.commons.ConnectConfig;
+import mr.demonid.commons.codec.Codecs;
+
+import java.util.Properties;
+
+/**
+ * Параметры нагрузочного теста.
+ * Задаются в командной строке в виде --ключ=значение (например --users=2000),
+ * либо системными свойствами с префиксом chat.load. (-Dchat.load.users=2000).
+ */
+public class LoadConfig {
+
+    private final Properties props = new Properties();
+
+
+    public LoadConfig(String[] args) {
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("chat.load."))
+                props.setProperty(name.substring("chat.load.".length()), System.getProperty(name));
+        }
+        for (String arg : args) {
+            if (!arg.startsWith("--"))
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                props.setProperty(arg.substring(2), "true");
+            else
+                props.setProperty(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+    }
+
+    public String getHost() {
+        return props.getProperty("host", "127.0.0.1");
+    }
+
+    public int getPort() {
+        return getInt("port", ConnectConfig.getPort());
+    }
+
+    /**
+     * Число одновременных соединений (пользователей).
+     */
+    public int getUsers() {
+        return Math.max(2, getInt("users", 1000));
+    }
+
+    /**
+     * Сколько соединений открывать в секунду при разгоне.
+     */
+    public int getConnectRate() {
+        return Math.max(1, getInt("connect.rate", 500));
+    }
+
+    /**
+     * Сколько сообщений в секунду отправляют все пользователи вместе.
+     */
+    public int getRate() {
+        return Math.max(1, getInt("rate", 100));
+    }
+
+    /**
+     * Доля личных сообщений (@имя), от 0 до 1; остальные - в общий чат.
+     */
+    public double getPrivateShare() {
+        return Math.max(0, Math.min(1, Double.parseDouble(props.getProperty("private", "0.2"))));
+    }
+
+    /**
+     * Размер текста сообщения (символов).
+     */
+    public int getSize() {
+        return Math.max(32, getInt("size", 64));
+    }
+
+    /**
+     * Разогрев (с), в статистику не входит.
+     */
+    public int getWarmupSeconds() {
+        return Math.max(0, getInt("warmup", 5));
+    }
+
+    /**
+     * Длительность замера (с).
+     */
+    public int getDurationSeconds() {
+        return Math.max(1, getInt("duration", 30));
+    }
+
+    /**
+     * Сколько секунд после остановки отправки ждать недоставленное.
+     */
+    public int getDrainSeconds() {
+        return Math.max(0, getInt("drain", 10));
+    }
+
+    /**
+     * Кодеки, предлагаемые серверу (через запятую, по убыванию предпочтения).
+     */
+    public byte[] getCodecs() {
+        String list = props.getProperty("codecs");
+        if (list == null)
+            return Codecs.all();
+        String[] names = list.split(",");
+        byte[] ids = new byte[names.length];
+        for (int i = 0; i < names.length; i++) {
+            ids[i] = Codecs.idOf(names[i]);
+            if (ids[i] == 0)
+                throw new IllegalArgumentException("Unknown codec: " + names[i].trim());
+        }
+        return ids;
+    }
+
+    private int getInt(String key, int def) {
+        String value = props.getProperty(key);
+        return value == null ? def : Integer.parseInt(value.trim());
+    }
+}
@@ -0,0 +1,233 @@
+package mr.demonid.load;
+
+import mr.demonid.commons.Histogram;
+import mr.demonid.commons.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Нагрузочный тест сервера.
+ * <p>
+ * Открывает заданное число соединений (читатель каждого - виртуальный поток),
+ * затем с постоянной частотой отправляет от случайных пользователей сообщения
+ * в общий чат и личные (@имя) случайным адресатам. В текст сообщения
+ * вписывается время, когда оно должно было уйти по графику, поэтому задержка
+ * считается от него: если отправка отстает (сервер не успевает принимать),
+ * отставание тоже попадает в задержку, а не прячется.
+ * <p>
+ * Ожидаемое число доставок: для общего сообщения - все вошедшие, кроме автора,
+ * для личного - один адресат. Потери - разница ожидаемого и полученного
+ * за время замера (после ожидания недоставленного).
+ */
+public class LoadGenerator {
+
+    private static final String PREFIX = "load:";
+
+    private final LoadConfig config;
+    private final List<SimClient> clients = new ArrayList<>();
+    private final Histogram latency = new Histogram(true);
+    private final LongAdder connectFailed = new LongAdder();
+    private final LongAdder sendFailed = new LongAdder();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong expected = new AtomicLong();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder received = new LongAdder();         // все тестовые, вместе с разогревом
+
+    private volatile long measureStart = Long.MAX_VALUE;        // окно замера по времени отправки
+    private volatile long measureEnd = Long.MAX_VALUE;
+
+
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+    }
+
+    public void run() throws InterruptedException
+    {
+        try (ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor()) {
+            connectAll(readers);
+            int ready = countReady();
+            System.out.printf("Connected: %d of %d (failed %d)%n", ready, config.getUsers(), connectFailed.sum());
+            if (ready < 2) {
+                System.out.println("Not enough users, stop.");
+            } else {
+                sendLoad();
+                drain();
+                report();
+            }
+            clients.forEach(SimClient::close);
+        }
+    }
+
+    /**
+     * Подключение пользователей с частотой connect.rate и ожидание их входа.
+     */
+    private void connectAll(ExecutorService readers) throws InterruptedException
+    {
+        byte[] codecs = config.getCodecs();                 // неизвестное имя - ошибка до подключений
+        long interval = TimeUnit.SECONDS.toNanos(1) / config.getConnectRate();
+        long start = System.nanoTime();
+        for (int i = 0; i < config.getUsers(); i++)
+        {
+            SimClient client = new SimClient("load-" + i, config.getHost(), config.getPort());
+            clients.add(client);
+            readers.execute(() -> {
+                try {
+                    client.connect(codecs);
+                } catch (Exception e) {
+                    connectFailed.increment();
+                    client.close();
+                    return;
+                }
+                client.read(this::onMessage);
+            });
+            parkUntil(start + (i + 1) * interval);
+        }
+        // ждем входа всех (кроме не сумевших подключиться), но не дольше 30 с
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (countReady() + connectFailed.sum() < clients.size() && System.nanoTime() < deadline)
+            Thread.sleep(100);
+    }
+
+    /**
+     * Отправка сообщений по графику: разогрев, затем замер.
+     */
+    private void sendLoad()
+    {
+        long interval = TimeUnit.SECONDS.toNanos(1) / config.getRate();
+        long start = System.nanoTime();
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+        measureStart = warmupEnd;
+        measureEnd = end;
+        String padding = "x".repeat(config.getSize());
+        double privateShare = config.getPrivateShare();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long total = 0, lastSent = 0, lastReceived = 0;
+        int ready = countReady();                               // пересчитывается раз в секунду
+        for (long seq = 0; ; seq++)
+        {
+            long due = start + seq * interval;
+            if (due >= end)
+                break;
+            parkUntil(due);
+            SimClient author = clients.get(random.nextInt(clients.size()));
+            if (!author.isReady())
+                continue;
+            String header = PREFIX + seq + ":" + due + ":";
+            String text = header + padding.substring(Math.min(header.length(), padding.length()));
+            boolean personal = random.nextDouble() < privateShare;
+            Message message;
+            long recipients;
+            if (personal) {
+                SimClient target;
+                do {
+                    target = clients.get(random.nextInt(clients.size()));
+                } while (target == author);
+                message = new Message(author.getAccount(), target.getAccount().getName(), text);
+                recipients = 1;
+            } else {
+                message = new Message(author.getAccount(), null, text);
+                recipients = ready - 1;
+            }
+            try {
+                author.send(message);
+                total++;
+                if (due >= warmupEnd) {
+                    sent.incrementAndGet();
+                    expected.addAndGet(recipients);
+                }
+            } catch (Exception e) {
+                sendFailed.increment();
+            }
+            long now = System.nanoTime();
+            if (now >= nextReport)
+            {
+                long r = received.sum();
+                System.out.printf("%s %3d s: sent %d/s, delivered %d/s, users %d%n",
+                        due < warmupEnd ? "warmup " : "measure", TimeUnit.NANOSECONDS.toSeconds(now - start),
+                        total - lastSent, r - lastReceived, ready);
+                ready = countReady();
+                lastSent = total;
+                lastReceived = r;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+    }
+
+    /**
+     * Ожидание недоставленного после остановки отправки.
+     */
+    private void drain() throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getDrainSeconds());
+        while (delivered.sum() < expected.get() && System.nanoTime() < deadline)
+            Thread.sleep(50);
+    }
+
+    private void report()
+    {
+        Histogram.Snapshot s = latency.snapshot();
+        long exp = expected.get();
+        long got = delivered.sum();
+        double seconds = config.getDurationSeconds();
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Users:       %d, rate %d msg/s, private %.0f%%, size %d%n",
+                countReady(), config.getRate(), config.getPrivateShare() * 100, config.getSize());
+        System.out.printf(Locale.ROOT, "Sent:        %d (%.1f msg/s), send errors %d%n", sent.get(), sent.get() / seconds, sendFailed.sum());
+        System.out.printf(Locale.ROOT, "Delivered:   %d of %d (%.1f msg/s)%n", got, exp, got / seconds);
+        System.out.printf(Locale.ROOT, "Lost:        %d (%.3f%%)%n", Math.max(0, exp - got), exp == 0 ? 0.0 : 100.0 * Math.max(0, exp - got) / exp);
+        System.out.printf(Locale.ROOT, "Latency, ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  (mean %.2f)%n",
+                millis(s.percentile(0.5)), millis(s.percentile(0.9)), millis(s.percentile(0.99)),
+                millis(s.percentile(0.999)), millis(s.getMax()), s.getMean() / 1e6);
+    }
+
+    /**
+     * Сообщение, принятое кем-то из пользователей (в потоке его читателя).
+     */
+    private void onMessage(Message message)
+    {
+        String text = message.getMessage();
+        if (!text.startsWith(PREFIX))
+            return;                                             // вход и выход пользователей и т.п.
+        long now = System.nanoTime();
+        received.increment();
+        int from = text.indexOf(':', PREFIX.length()) + 1;
+        long due = Long.parseLong(text, from, text.indexOf(':', from), 10);
+        if (due >= measureStart && due < measureEnd)
+        {
+            delivered.increment();
+            latency.record(now - due);
+        }
+    }
+
+    private int countReady()
+    {
+        int n = 0;
+        for (SimClient client : clients)
+            if (client.isReady())
+                n++;
+        return n;
+    }
+
+    private static double millis(long nanos)
+    {
+        return nanos / 1e6;
+    }
+
+    private static void parkUntil(long deadline)
+    {
+        long delay;
+        while ((delay = deadline - System.nanoTime()) > 0)
+            LockSupport.parkNanos(delay);
+    }
+}
@@ -0,0 +1,117 @@
+package mr.demonid.load;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+import mr.demonid.commons.codec.Codecs;
+import mr.demonid.commons.codec.Handshake;
+import mr.demonid.commons.codec.MessageCodec;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Имитация пользователя: соединение с сервером по тому же протоколу,
+ * что и у настоящего клиента (согласование кодека, вход, PING/PONG),
+ * но без интерфейса. Принятые сообщения передаются обработчику.
+ * Писать могут поток нагрузки и читатель (ответы PONG), поэтому запись - под блокировкой;
+ * ReentrantLock, а не synchronized, чтобы не прикалывать виртуальные потоки.
+ */
+class SimClient {
+
+    private static final int CONNECT_TIMEOUT = 10_000;
+    private static final Message PONG = new Message(new Account("", "", "", ""), null, "pong", MessageType.PONG);
+
+    private final Account account;
+    private final ReentrantLock lock = new ReentrantLock();
+    private Socket socket;
+    private InputStream reader;
+    private OutputStream writer;
+    private MessageCodec codec;
+
+    private volatile boolean ready;                 // сервер подтвердил вход (SESSION или первое сообщение)
+    private volatile boolean closed;
+
+
+    SimClient(String name, String host, int port) {
+        this.account = new Account(name, "", host, String.valueOf(port));
+    }
+
+    Account getAccount() {
+        return account;
+    }
+
+    boolean isReady() {
+        return ready && !closed;
+    }
+
+    /**
+     * Подключение и вход (без ожидания ответа сервера).
+     */
+    void connect(byte[] codecs) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(account.getIp(), Integer.parseInt(account.getPort())), CONNECT_TIMEOUT);
+        writer = new BufferedOutputStream(socket.getOutputStream());
+        reader = new BufferedInputStream(socket.getInputStream());
+        Handshake.writeOffer(writer, codecs);
+        codec = Codecs.create(Handshake.readAnswer(reader));
+        if (codec == null)
+            throw new IOException("No common codec!");
+        send(new Message(account, null, "", MessageType.LOGIN));
+    }
+
+    /**
+     * Чтение сообщений сервера до закрытия соединения (в вызывающем потоке).
+     * @param handler Получает все сообщения, кроме служебных.
+     */
+    void read(Consumer<Message> handler) {
+        try {
+            Message message;
+            while ((message = codec.read(reader)) != null) {
+                switch (message.getType()) {
+                    case SESSION -> ready = true;
+                    case PING -> send(PONG);
+                    case PONG -> {}
+                    default -> {
+                        ready = true;
+                        handler.accept(message);
+                    }
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        closed = true;
+    }
+
+    void send(Message message) throws IOException {
+        lock.lock();
+        try {
+            writer.write(codec.encode(message));
+            writer.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Выход (пустое сообщение) и закрытие соединения.
+     */
+    void close() {
+        if (socket == null)
+            return;
+        try {
+            if (!closed && codec != null)
+                send(new Message(account, null, ""));
+        } catch (IOException ignored) {
+        }
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
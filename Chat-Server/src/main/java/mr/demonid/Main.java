@@ -1,14 +1,65 @@
 package mr.demonid;
 
 
+import mr.demonid.controller.Listener;
 import mr.demonid.controller.Server;
+import mr.demonid.controller.ServerConfig;
+import mr.demonid.view.ViewHeadless;
 import mr.demonid.view.ViewSwing;
 
 import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.util.stream.Collectors;
 
 public class Main {
+
+    private static final String USAGE = """
+            Параметры: [--ключ=значение ...], ключ - имя свойства без префикса chat.server., например:
+              --config=server.properties  файл настроек (ключи те же)
+              --headless                  без окна: сервер запускается сразу, консоль - в файл
+              --console.file=server.log   файл консоли в режиме headless ("-" - стандартный вывод)
+              --port=4310                 порт
+              --listen=4310,host:4311     несколько портов и адресов, --accept.backlog=N - очередь приема
+              --accept.reuseport          SO_REUSEPORT, --accept.threads=N - потоков приема на каждом адресе
+              --io=blocking|virtual|nio   режим ввода-вывода, --io.threads=N - число реакторов nio
+              --dispatch.shards=N         потоки обработки, --dispatch.queue=N - их очереди
+              --out.queue=N               очередь исходящих одного клиента, --out.policy=... - при переполнении
+              --log=true                  вести журнал сообщений на диске (--log.dir=chat-log)
+            Значения также берутся из -Dchat.server.<ключ>=... (командная строка важнее, файл - слабее всех).""";
+
     public static void main(String[] args) {
 
+        long begin = System.nanoTime();
+        if (args.length == 1 && (args[0].equals("--help") || args[0].equals("-h")))
+        {
+            System.out.println(USAGE);
+            return;
+        }
+        ServerConfig config = ServerConfig.getInstance();
+        try {
+            config.configure(args);                                     // с проверкой всех значений
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println("Config error! " + e.getMessage());
+            System.out.println(USAGE);
+            System.exit(2);
+        }
+
+        if (config.isHeadless() || GraphicsEnvironment.isHeadless())
+        {
+            // без окна: консоль пишется в файл, сервер запускается сразу
+            ViewHeadless view = new ViewHeadless();
+            Server server = new Server(view);
+            Runtime.getRuntime().addShutdownHook(new Thread(view::stop, "shutdown"));
+            view.start();
+            if (!server.isRunning())
+                System.exit(1);                                         // причина уже в консоли
+            String addresses = config.getListenAddresses().stream().map(Listener::format).collect(Collectors.joining(", "));
+            System.out.println("Server: " + addresses + ", " + config.getIoMode().name().toLowerCase()
+                    + ", ready in " + (System.nanoTime() - begin) / 1_000_000 + " ms");
+            return;
+        }
+
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -16,4 +67,4 @@ public class Main {
             }
         });
     }
-}
\ No newline at end of file
+}
@@ -2,21 +2,44 @@ package mr.demonid.controller;
 
 
 import mr.demonid.commons.Account;
+import mr.demonid.commons.Histogram;
 import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+import mr.demonid.commons.codec.Handshake;
+import mr.demonid.commons.codec.MessageCodec;
+import mr.demonid.commons.codec.SharedFrame;
+import mr.demonid.controller.metrics.Metrics;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.List;
 
 /**
- * Соединение с клиентом. Работает в отдельном потоке.
+ * Соединение с клиентом. Чтение и запись работают в двух отдельных потоках
+ * (обычных или виртуальных), которые выделяет ClientManager.
+ * Рассылка лишь ставит сообщения в очередь клиента, а отправляет их писатель.
  */
-public class Client extends Thread {
+public class Client implements Runnable, Connection {
+
+    private static final Histogram DECODE_TIME = Metrics.getInstance().timer("inbound.decode");
+    private static final Histogram FLUSH_TIME = Metrics.getInstance().timer("outbound.flush");
 
     private Socket socket;
     private Account account;
+    private MessageCodec codec;
+    private long lastSeen = -1;
+    private String token;
+
+    private InputStream reader;
+    private OutputStream writer;
+    private final OutboundQueue outbound = ClientManager.getInstance().createOutboundQueue();
 
-    private ObjectInputStream reader;
-    private ObjectOutputStream writer;
+    private volatile Thread thread;
+    private volatile boolean closed;
+    private volatile boolean lost;                      // связь оборвалась (а не закрыта пользователем)
+    private volatile long lastRead = System.nanoTime();
 
     public Client(Socket socket) {
         this.socket = socket;
@@ -25,40 +48,160 @@ public class Client extends Thread {
 
     @Override
     public void run() {
+        thread = Thread.currentThread();
         try {
-            while (!isInterrupted() && !socket.isClosed())
+            while (!closed && !thread.isInterrupted() && !socket.isClosed())
             {
-                Message message = (Message) reader.readObject();
-                if (message == null || message.getMessage().isEmpty())
-                    break;                                  // на том конце разорвали связь
-                ClientManager.getInstance().putMessageFromClient(message);
+                // ждем начала кадра отдельно, чтобы в метрику попал только разбор
+                Message message = null;
+                if (awaitData())
+                {
+                    long start = System.nanoTime();
+                    message = codec.read(reader);
+                    DECODE_TIME.recordSince(start);
+                }
+                lastRead = System.nanoTime();
+                if (message == null)
+                {
+                    lost = true;                            // на том конце разорвали связь
+                    break;
+                }
+                if (message.getMessage().isEmpty())
+                    break;                                  // пользователь вышел сам
+                if (message.getType() == MessageType.PONG || message.getType() == MessageType.PING)
+                    continue;                               // проверка связи, lastRead уже обновлен
+                if (message.getType() != MessageType.LOGIN)
+                    ClientManager.getInstance().putMessageFromClientOrWait(relay(message));
             }
         } catch (Exception ignored) {
+            lost = true;
         }
         ClientManager.getInstance().unregisterUser(this);
         closeResource();
     }
 
     /**
-     * Отправка сообщения клиенту
+     * Ожидание первого байта очередного кадра (байт остается в потоке).
+     * @return false - поток закрыт.
      */
-    public void sendMessage(Message message)
+    private boolean awaitData() throws IOException
     {
-        try {
-            writer.writeObject(message);
-            writer.flush();
-        } catch (Exception e)
+        reader.mark(1);
+        if (reader.read() < 0)
+            return false;
+        reader.reset();
+        return true;
+    }
+
+    /**
+     * Отправка сообщения клиенту: только постановка в очередь
+     */
+    @Override
+    public void send(SharedFrame frame)
+    {
+        if (!outbound.offer(frame))
         {
+            System.out.println("Client " + account.getName() + " is too slow, disconnect.");
             ClientManager.getInstance().unregisterUser(this);
             closeResource();
         }
     }
 
+    @Override
+    public void sendPriority(SharedFrame frame)
+    {
+        outbound.offerPriority(frame);
+    }
+
+    /**
+     * Поток-писатель: отправляет клиенту накопленные в очереди сообщения.
+     * Все, что успело накопиться (а с задержкой linger - и что придет за это время),
+     * уходит одной пачкой: кадры собираются в буфере писателя размером с пачку,
+     * и в сокет идет одна запись вместо записи на каждое сообщение.
+     */
+    public void runWriter()
+    {
+        long linger = ServerConfig.getInstance().getLingerMicros() * 1000;
+        try {
+            SharedFrame frame;
+            while ((frame = outbound.take()) != null)
+            {
+                long deadline = System.nanoTime() + linger;
+                do {
+                    // служебная часть зависит от состояния кодека, но писатель у клиента один
+                    byte[] prefix = codec.encodePrefix(frame);
+                    if (prefix != null)
+                        writer.write(prefix);
+                    writer.write(frame.bytes(codec));       // при переполнении буфер уйдет в сокет сам
+                    frame = outbound.poll();
+                    if (frame == null && linger > 0)
+                        frame = outbound.poll(deadline - System.nanoTime());
+                } while (frame != null);
+                long start = System.nanoTime();
+                writer.flush();
+                FLUSH_TIME.recordSince(start);
+            }
+        } catch (Exception ignored) {
+            lost = true;
+        }
+        ClientManager.getInstance().unregisterUser(this);
+        closeResource();
+    }
+
+    @Override
+    public void reject(String reason)
+    {
+        try {
+            writer.write(codec.encode(new Message(ClientManager.SERVER, null, reason)));
+            writer.flush();
+        } catch (Exception ignored) {
+        }
+        closeResource();
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return outbound.size();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return !closed && !socket.isClosed();
+    }
+
+    @Override
+    public long getLastReadNanos()
+    {
+        return lastRead;
+    }
+
+    @Override
+    public void timeout()
+    {
+        lost = true;
+        closeResource();                                    // читатель проснется и снимет регистрацию
+    }
+
+    @Override
+    public boolean isResumable()
+    {
+        return lost && !closed && account != null;
+    }
+
+    @Override
+    public List<SharedFrame> takeUnsent()
+    {
+        return outbound.closeAndDrain();
+    }
+
     /**
      * Освобождение занятых клиентом ресурсов (закрытие сокета и потоков)
      */
     public void closeResource()
     {
+        outbound.close();
         closeSocket();
         closeWriter();
         closeReader();
@@ -67,25 +210,42 @@ public class Client extends Thread {
     /**
      * Остановка клиента и освобождение ресурсов.
      */
+    @Override
     public void close()
     {
-        interrupt();
+        closed = true;
+        Thread t = thread;
+        if (t != null)
+            t.interrupt();
         closeResource();
     }
 
     /**
-     * Инициализация клиента: выделение ресурсов и получения данных о пользователе.
+     * Инициализация клиента: выделение ресурсов, согласование кодека
+     * и получение данных о пользователе.
      * @return Данные о пользователе, или null в случае ошибки
      */
     private Account init()
     {
         try {
-            reader = new ObjectInputStream(socket.getInputStream());
-            writer = new ObjectOutputStream(socket.getOutputStream());
-            Message msg = (Message) reader.readObject();
-            if (msg.getMessage().equalsIgnoreCase("connect"))
+            ServerConfig config = ServerConfig.getInstance();
+            config.getTcpOptions().apply(socket);
+            // молчащий клиент не должен навечно занять поток соединения
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(config.getIdleTimeoutSeconds()));
+            reader = new BufferedInputStream(socket.getInputStream(), config.getReadBufferSize());
+            writer = new BufferedOutputStream(socket.getOutputStream(), config.getBatchSize());
+            byte id = Handshake.choose(Handshake.readOffer(reader), config.getCodecs());
+            Handshake.writeAnswer(writer, id);
+            codec = ClientManager.getInstance().createCodec(id);
+            if (codec == null)
+                throw new IOException("No common codec!");
+            Message msg = codec.read(reader);
+            if (msg.getType() == MessageType.LOGIN)
             {
-                return new Account(msg.getAuthorName(), msg.getAuthorPassword(), "", "");
+                lastSeen = ClientManager.getInstance().lastSeenOf(msg);
+                token = msg.getMessage();
+                socket.setSoTimeout(0);                     // дальше простой отслеживает IdleReaper
+                return new Account(msg.getAuthorName(), "", "", "");   // пароль дальше не храним
             }
             throw new IOException("Unexpected body connection message!");
         } catch (Exception e)
@@ -97,14 +257,43 @@ public class Client extends Thread {
         return null;
     }
 
+    /**
+     * Сообщение для пересылки: автором всегда считается владелец соединения,
+     * что исключает подмену имени и утечку чужих данных из Account.
+     */
+    private Message relay(Message message)
+    {
+        return new Message(account, message.getTargetName(), message.getMessage(), message.getType());
+    }
+
+    @Override
     public Account getAccount() {
         return account;
     }
 
+    /**
+     * Номер последнего сообщения, полученного клиентом в прошлом сеансе, или -1.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Токен сеанса, который клиент предъявил для возобновления, или пустая строка.
+     */
+    public String getSessionToken() {
+        return token;
+    }
+
     public Socket getSocket() {
         return socket;
     }
 
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return socket.getRemoteSocketAddress();     // остается доступным и после закрытия сокета
+    }
+
     /*
         Освобождение ресурсов клиента
      */
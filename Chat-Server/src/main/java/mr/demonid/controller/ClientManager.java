@@ -2,28 +2,100 @@ package mr.demonid.controller;
 
 
 import mr.demonid.commons.Account;
+import mr.demonid.commons.Histogram;
 import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+import mr.demonid.commons.codec.Codecs;
+import mr.demonid.commons.codec.MessageCodec;
+import mr.demonid.commons.codec.SenderIds;
+import mr.demonid.commons.codec.SharedFrame;
+import mr.demonid.controller.metrics.Metrics;
+import mr.demonid.controller.metrics.MetricsServer;
+import mr.demonid.controller.nio.Reactor;
+import mr.demonid.controller.store.HistoryBuffer;
+import mr.demonid.controller.store.LogRecord;
+import mr.demonid.controller.store.MessageLog;
+import mr.demonid.controller.store.OfflineMailbox;
 
+import java.io.IOException;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Менеджер подключений клиентов.
- * Для него скорость не критична, поэтому в целях потокобезопасности
- * применяется простой synchronized(clients).
- * Хотя это скорее подстраховка на случай ввода слушателей для
- * нескольких портов.
- * (кроме удаления, которое могут запросить несколько пользователей сразу).
+ * Клиенты хранятся в ClientRegistry: поиск адресата личного сообщения
+ * и проверка занятости имени - за O(1), а рассылка идет по снимку списка без блокировок.
+ * Сообщения в комнату рассылаются только ее участникам (RoomRegistry).
+ * Клиенту, потерявшему связь, место в реестре и в комнатах сохраняется
+ * на время ожидания (DetachedSession), и по токену сеанса он может вернуться
+ * без повторного входа и без потери адресованных ему сообщений.
+ * Также владеет потоками, обслуживающими соединения: обычными или
+ * виртуальными (по одному на клиента), либо пулом реакторов в режиме NIO.
  * Реализован как синглтон.
  */
 public class ClientManager {
 
+    /**
+     * Автор служебных сообщений сервера.
+     */
+    public static final Account SERVER = new Account("Server", "", "", "");
+
     private static final ClientManager instance = new ClientManager();
 
-    private final List<Client> clients = new ArrayList<>();
-    private final ArrayBlockingQueue<Message> fromClients = new ArrayBlockingQueue<>(1000);
+    // время постановки сообщения в очередь одному получателю и число получателей рассылки
+    private static final Histogram SEND_TIME = Metrics.getInstance().timer("send.enqueue");
+    private static final Histogram FANOUT = Metrics.getInstance().histogram("send.fanout");
+
+    private final ClientRegistry clients = new ClientRegistry();
+    private final RoomRegistry rooms = new RoomRegistry();
+    private volatile Dispatcher dispatcher;
+    private volatile boolean backpressure = true;
+    private volatile MessageLog messageLog;
+    private volatile HistoryBuffer history = new HistoryBuffer(1);
+    private final AtomicLong memoryOffsets = new AtomicLong();  // смещения, если журнал не ведется
+    private volatile long epoch;                                // эпоха номеров сообщений (см. Message.getEpoch)
+    private volatile int replayCount;
+    // настройки очередей исходящих разбираются один раз при запуске, а не в каждом соединении
+    private volatile int outQueueSize = 1024;
+    private volatile SlowConsumerPolicy outPolicy = SlowConsumerPolicy.DISCONNECT;
+    private volatile long outLagMillis = 10_000;
+    private volatile OfflineMailbox mailbox;
+    private volatile Path mailboxFile;
+    // токены сеансов по именам пользователей
+    private final ConcurrentHashMap<String, String> sessions = new ConcurrentHashMap<>();
+    private volatile long graceMillis;
+    private volatile int graceBuffer;
+    // таймер для проверок на простой и ожидания переподключений
+    private volatile TimerWheel timer;
+    private volatile IdleReaper reaper;
+    private final LongAdder detachedCount = new LongAdder();
+    private final LongAdder resumedCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+    // общая таблица отправителей: одно сообщение кодируется одинаково для всех получателей
+    private final SenderIds senderIds = new SenderIds();
+
+    private volatile ExecutorService executor;
+    // регистрация входящих в режиме NIO: выборка истории может читать журнал, реактор ее не ждет
+    private volatile ExecutorService logins;
+    // сокеты, еще не прошедшие согласование протокола (закрываются при остановке)
+    private final Set<Socket> handshakes = ConcurrentHashMap.newKeySet();
+    private volatile Reactor[] reactors = new Reactor[0];
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private volatile MetricsServer metricsServer;
 
 
     private ClientManager() {}
@@ -34,30 +106,168 @@ public class ClientManager {
 
 
     /**
-     * Блокирующая потокобезопасная функция выборки сообщений от клиентов
-     * @return
+     * Потокобезопасное помещение сообщения от клиента в очередь на обработку
+     * @return true - если сообщение удалось поместить в очередь, false - в случае переполненной очереди
      */
-    public Message getMessageFromClient() throws InterruptedException {
-        return fromClients.take();
+    public boolean putMessageFromClient(Message message) {
+        Dispatcher d = dispatcher;
+        return d != null && d.submit(message);
     }
 
     /**
-     * Потокобезопасное помещение сообщения от клиента в очередь
-     * @return true - если сообщение удалось поместить в очередь, false - в случае переполненной очереди
+     * Помещение сообщения в очередь на обработку для потока-читателя клиента.
+     * При переполненной очереди поток ждет, пока в ней появится место.
      */
-    public boolean putMessageFromClient(Message message) {
-        return fromClients.offer(message);
+    public void putMessageFromClientOrWait(Message message) throws InterruptedException {
+        Dispatcher d = dispatcher;
+        if (d == null)
+            return;
+        if (backpressure)
+            d.submitOrWait(message);
+        else
+            d.submit(message);
+    }
+
+    /**
+     * Помещение сообщения в очередь на обработку без ожидания (для реакторов NIO).
+     * @param onReady Вызывается, когда в переполненной очереди освободится место.
+     * @return false - сообщение не принято, повторить его после вызова onReady.
+     */
+    public boolean putMessageFromClient(Message message, Runnable onReady) {
+        Dispatcher d = dispatcher;
+        if (d == null)
+            return true;                                    // сервер останавливается, сообщение некуда деть
+        if (backpressure)
+            return d.trySubmit(message, onReady);
+        d.submit(message);
+        return true;
+    }
+
+    /**
+     * Запись сообщения в историю: присвоение смещения, в кольцевой буфер
+     * последних сообщений и в журнал (асинхронно, обработку не задерживает).
+     * @return Смещение сообщения, или -1, если журнал переполнен и сообщение в историю не попало.
+     */
+    public long storeMessage(Message message)
+    {
+        MessageLog log = messageLog;
+        long offset = log == null ? memoryOffsets.getAndIncrement() : log.append(message);
+        if (offset >= 0)
+        {
+            message.setOffset(offset);
+            history.add(new SharedFrame(message));
+        }
+        return offset;
+    }
+
+    /**
+     * История для входящего пользователя: сообщения после lastSeen,
+     * либо (если клиент новый или его номер неизвестен серверу) последние replayCount.
+     * Свежие сообщения берутся из кольцевого буфера, более старые - из журнала
+     * через разреженный индекс, поэтому полного просмотра журнала не бывает.
+     * @param name Имя пользователя: из личных сообщений ему отдаются только его собственные.
+     */
+    public List<SharedFrame> getHistory(String name, long lastSeen)
+    {
+        List<SharedFrame> res = new ArrayList<>();
+        int count = replayCount;
+        if (count <= 0)
+            return res;
+        MessageLog log = messageLog;
+        HistoryBuffer ring = history;
+        long next = log == null ? memoryOffsets.get() : log.getNextOffset();
+        long from = lastSeen < 0 || lastSeen >= next ? next - count : Math.max(lastSeen + 1, next - count);
+        from = Math.max(0, from);
+        long ringStart = ring.getFirstOffset();
+        if (log != null && from < ringStart)
+        {
+            for (LogRecord record : log.read(from, Math.min(ringStart, next), count))
+            {
+                Message message = record.getMessage();
+                message.setOffset(record.getOffset());
+                if (isVisible(message, name))
+                    res.add(new SharedFrame(message));
+            }
+        }
+        for (SharedFrame frame : ring.range(Math.max(from, ringStart), next))
+        {
+            if (isVisible(frame.getMessage(), name))
+                res.add(frame);
+        }
+        if (lastSeen >= 0 && lastSeen < next && from > lastSeen + 1)
+            res.add(0, new SharedFrame(new Message(SERVER, null, "пропущено сообщений: " + (from - lastSeen - 1))));
+        return res;
     }
 
     /**
-     * Рассылка сообщения всем подключенным клиентам, кроме автора сообщения
+     * Видно ли сообщение из истории пользователю: общие - всем, личные - только участникам,
+     * сообщения комнат при входе не отдаются (пользователь еще ни в одной комнате).
+     */
+    private boolean isVisible(Message message, String name)
+    {
+        if (message.isRoom())
+            return false;
+        if (!message.isPrivate() || message.getAuthorName().equals(name))
+            return true;
+        // полученные без нас личные сообщения лежат в ящике, из истории их не дублируем
+        return mailbox == null && message.getTargetName().equals(name);
+    }
+
+    /**
+     * Очередь исходящих сообщений для нового соединения (по настройкам, разобранным при запуске).
+     */
+    public OutboundQueue createOutboundQueue()
+    {
+        return new OutboundQueue(outQueueSize, outPolicy, outLagMillis);
+    }
+
+    /**
+     * Номер последнего сообщения, полученного клиентом ранее, из его LOGIN.
+     * Номер из другой эпохи (сервер перезапускался без журнала) ничего не значит:
+     * такой клиент получает историю как новый.
+     */
+    public long lastSeenOf(Message login)
+    {
+        return login.getEpoch() == epoch ? login.getOffset() : -1;
+    }
+
+    /**
+     * Журнал сообщений, или null, если он не ведется.
+     */
+    public MessageLog getMessageLog()
+    {
+        return messageLog;
+    }
+
+    /**
+     * Кодек для нового соединения.
+     * @return Кодек, или null, если идентификатор не известен.
+     */
+    public MessageCodec createCodec(byte id)
+    {
+        return Codecs.create(id, senderIds);
+    }
+
+    /**
+     * Рассылка сообщения всем подключенным клиентам, кроме автора сообщения.
+     * Сообщение кодируется один раз, получатели разделяют готовые байты.
+     * Клиентам сообщение лишь ставится в очередь, отправляют его их писатели,
+     * поэтому медленный клиент не задерживает рассылку остальным.
      */
     public void broadcastMessage(Message message)
     {
-        clients.forEach(e -> {
-            if (!e.getAccount().getName().equals(message.getAuthorName()))
-                e.sendMessage(message);
-        });
+        SharedFrame frame = new SharedFrame(message);
+        String author = message.getAuthorName();
+        int count = 0;
+        for (Connection e : clients.snapshot()) {
+            if (!e.getAccount().getName().equals(author)) {
+                long start = System.nanoTime();
+                e.send(frame);
+                SEND_TIME.recordSince(start);
+                count++;
+            }
+        }
+        FANOUT.record(count);
     }
 
     /**
@@ -65,61 +275,679 @@ public class ClientManager {
      */
     public void resendPrivateMessage(Message message)
     {
-        for (Client client : clients) {
-            if (client.getAccount().getName().equals(message.getTargetName()))
-            {
-                client.sendMessage(message);
-                break;
-            }
+        Connection client = clients.get(message.getTargetName());
+        if (client != null)
+        {
+            long start = System.nanoTime();
+            client.sendMessage(message);
+            SEND_TIME.recordSince(start);
+            return;
         }
+        // адресат не в сети - оставляем в его ящике и сообщаем автору
+        OfflineMailbox box = mailbox;
+        if (box == null)
+            return;
+        String notice = switch (box.put(message)) {
+            case STORED -> message.getTargetName() + " не в сети, сообщение будет доставлено при входе.";
+            case USER_QUOTA -> "Ящик " + message.getTargetName() + " переполнен, сообщение не доставлено!";
+            case TOTAL_QUOTA -> "Нет места для сообщений, сообщение для " + message.getTargetName() + " не доставлено!";
+        };
+        Connection author = clients.get(message.getAuthorName());
+        if (author != null)
+            author.sendMessage(new Message(SERVER, null, notice));
     }
 
     /**
-     * Добавляем нового пользователя, в отдельный поток
+     * Ящик сообщений для пользователей не в сети, или null, если он не ведется.
+     */
+    public OfflineMailbox getMailbox()
+    {
+        return mailbox;
+    }
+
+    /**
+     * Вход автора сообщения в комнату, указанную адресатом.
+     * Участники комнаты (и сам автор) получают об этом уведомление.
+     * @return false - если вход не состоялся.
+     */
+    public boolean joinRoom(Message message)
+    {
+        Connection client = clients.get(message.getAuthorName());
+        if (client == null)
+            return false;
+        String room = message.getTargetName();
+        if (!RoomRegistry.isValidName(room))
+        {
+            client.sendMessage(new Message(SERVER, null, "Некорректное имя комнаты: " + room));
+            return false;
+        }
+        if (!rooms.join(room, client))
+            return false;
+        if (clients.get(message.getAuthorName()) != client)
+        {
+            rooms.leave(room, client);                      // успел отключиться
+            return false;
+        }
+        sendToRoom(new Message(client.getAccount(), room, "вошел в комнату"), null);
+        return true;
+    }
+
+    /**
+     * Выход автора сообщения из комнаты.
+     * @return false - если автора в комнате не было.
+     */
+    public boolean leaveRoom(Message message)
+    {
+        Connection client = clients.get(message.getAuthorName());
+        if (client == null || !rooms.leave(message.getTargetName(), client))
+            return false;
+        Message notice = new Message(client.getAccount(), message.getTargetName(), "покинул комнату");
+        client.sendMessage(notice);
+        sendToRoom(notice, null);
+        return true;
+    }
+
+    /**
+     * Сохранение и рассылка сообщения участникам комнаты, кроме автора.
+     * Писать в комнату могут только ее участники. Номер в истории назначается
+     * до рассылки, чтобы кадры ушли уже с ним (по нему клиент догоняет пропущенное).
+     * @return false - если автор не состоит в комнате (сообщение не сохраняется).
+     */
+    public boolean roomMessage(Message message)
+    {
+        Connection client = clients.get(message.getAuthorName());
+        if (client == null)
+            return false;
+        if (!rooms.isMember(message.getTargetName(), client))
+        {
+            client.sendMessage(new Message(SERVER, null, "Вы не состоите в комнате " + message.getTargetName()));
+            return false;
+        }
+        storeMessage(message);
+        sendToRoom(message, message.getAuthorName());
+        return true;
+    }
+
+    /**
+     * Глубина очередей исходящих сообщений по именам клиентов.
+     */
+    public Map<String, Integer> getQueueDepths()
+    {
+        Map<String, Integer> res = new LinkedHashMap<>();
+        for (Connection e : clients.snapshot())
+            res.put(e.getAccount().getName(), e.getQueueDepth());
+        return res;
+    }
+
+    /**
+     * Счетчики переполнения очереди входящих сообщений: потеряно сообщений,
+     * задержано читателей, приостановлено чтений (NIO).
+     */
+    public Map<String, Long> getDispatchStats()
+    {
+        Map<String, Long> res = new LinkedHashMap<>();
+        Dispatcher d = dispatcher;
+        res.put("dropped", d == null ? 0 : d.getDroppedCount());
+        res.put("delayed", d == null ? 0 : d.getDelayedCount());
+        res.put("paused", d == null ? 0 : d.getPausedCount());
+        return res;
+    }
+
+    /**
+     * Счетчики проверки на простой: отправлено PING, разорвано молчащих соединений.
+     */
+    public Map<String, Long> getIdleStats()
+    {
+        Map<String, Long> res = new LinkedHashMap<>();
+        IdleReaper r = reaper;
+        res.put("pings", r == null ? 0 : r.getPingCount());
+        res.put("reaped", r == null ? 0 : r.getReapedCount());
+        return res;
+    }
+
+    /**
+     * Счетчики сеансов: сохранено при потере связи, возобновлено, истекло без возвращения клиента.
+     */
+    public Map<String, Long> getSessionStats()
+    {
+        Map<String, Long> res = new LinkedHashMap<>();
+        res.put("detached", detachedCount.sum());
+        res.put("resumed", resumedCount.sum());
+        res.put("expired", expiredCount.sum());
+        return res;
+    }
+
+    /**
+     * Добавляем нового пользователя (вызывается потоком слушателя).
+     * Согласование протокола и вход идут уже в потоке соединения, который
+     * затем становится его читателем, - слушатель сразу возвращается к приему.
      */
     public void addUser(Socket socket)
     {
-        boolean found = clients.stream().anyMatch(e -> e.getSocket().equals(socket));
-        if (!found)
+        if (clients.contains(socket.getRemoteSocketAddress()))
+            return;
+        handshakes.add(socket);
+        try {
+            executor.execute(() -> connect(socket));
+        } catch (RejectedExecutionException e) {
+            handshakes.remove(socket);
+            try {
+                socket.close();                             // сервер останавливается
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Инициализация и регистрация нового клиента, затем чтение от него (в потоке соединения).
+     */
+    private void connect(Socket socket)
+    {
+        Client client;
+        try {
+            client = new Client(socket);
+        } finally {
+            handshakes.remove(socket);
+        }
+        if (client.getAccount() == null)
+            return;                                         // не смог представиться, уже отключен
+        if (!registerUser(client, client.getLastSeen(), client.getSessionToken()))
+            return;
+        watch(client);
+        try {
+            executor.execute(client::runWriter);
+        } catch (RejectedExecutionException e) {
+            client.close();                                 // сервер останавливается
+            unregisterUser(client);
+            return;
+        }
+        client.run();
+    }
+
+    /**
+     * Наблюдение за соединением: PING при молчании клиента и разрыв по таймауту простоя.
+     */
+    public void watch(Connection client)
+    {
+        IdleReaper r = reaper;
+        if (r != null && timer != null)
+            r.watch(client);
+    }
+
+    /**
+     * Добавляем нового пользователя в режиме NIO: соединение передается
+     * одному из реакторов, а регистрация произойдет после согласования протокола.
+     */
+    public void addUser(SocketChannel channel)
+    {
+        Reactor[] pool = reactors;
+        if (pool.length == 0)
         {
-            Client client = new Client(socket);
-            synchronized (clients) {
-                clients.add(client);
-            }
-            client.start();
-            // оповещаем сервер о новом подключении
-            putMessageFromClient(new Message(client.getAccount(), null, "присоединился к нам"));
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            return;
+        }
+        pool[Math.floorMod(nextReactor.getAndIncrement(), pool.length)].register(channel);
+    }
+
+    /**
+     * Регистрирует пользователя, успешно прошедшего инициализацию,
+     * и отправляет ему накопившиеся личные сообщения и пропущенную историю.
+     * Повторный вход под уже занятым именем отклоняется, если только клиент
+     * не предъявил токен этого сеанса - тогда сеанс возобновляется.
+     * @param lastSeen Номер последнего сообщения, полученного клиентом ранее, или -1.
+     * @param token    Токен сеанса, выданный клиенту ранее, или null.
+     * @return false - если пользователю отказано (соединение при этом закрывается).
+     */
+    public boolean registerUser(Connection client, long lastSeen, String token)
+    {
+        String name = client.getAccount().getName();
+        if (token != null && !token.isEmpty() && token.equals(sessions.get(name)) && resume(client, lastSeen))
+            return true;
+        // история ставится в очередь до регистрации, чтобы прийти раньше новых сообщений
+        for (SharedFrame frame : getHistory(name, lastSeen))
+            client.send(frame);
+        if (!clients.add(client))
+        {
+            client.reject("Имя " + name + " уже занято!");
+            return false;
+        }
+        deliverMail(client);                                // только теперь, когда имя за клиентом
+        issueToken(client);
+        // оповещаем сервер о новом подключении
+        putMessageFromClient(new Message(client.getAccount(), null, "присоединился к нам"));
+        return true;
+    }
+
+    /**
+     * Регистрация без задержки вызывающего потока (для реакторов NIO): история
+     * может читаться из журнала на диске, поэтому registerUser() идет в отдельном виртуальном потоке.
+     * @param done Получает результат регистрации (false - отказ, либо соединение закрылось
+     *             за это время); вызывается в потоке регистрации.
+     */
+    public void registerUserAsync(Connection client, long lastSeen, String token, Consumer<Boolean> done)
+    {
+        try {
+            logins.execute(() -> {
+                boolean ok = registerUser(client, lastSeen, token);
+                if (ok && !client.isOpen())
+                {
+                    unregisterUser(client);                 // соединение закрылось, пока шла регистрация
+                    ok = false;
+                }
+                done.accept(ok);
+            });
+        } catch (RejectedExecutionException e) {
+            client.close();                                 // сервер останавливается
         }
     }
 
     /**
-     * Удаляет клиента из списка
+     * Отправка клиенту личных сообщений, пришедших, пока его не было.
+     * Из ящика они уже изъяты, поэтому идут вне очереди (sendPriority): раньше
+     * остальных и без риска быть выброшенными политикой переполнения очереди.
+     */
+    private void deliverMail(Connection client)
+    {
+        OfflineMailbox box = mailbox;
+        if (box == null)
+            return;
+        for (Message message : box.take(client.getAccount().getName()))
+            client.sendPriority(new SharedFrame(message));
+    }
+
+    /**
+     * Возобновление сеанса новым соединением. Клиент получает пропущенную историю
+     * (то, что ушло в оборванное соединение), затем все, что копилось для него
+     * во время ожидания, и занимает место сеанса в реестре и в комнатах.
+     * Если прежнее соединение еще числится живым (полуоткрытое TCP), оно закрывается.
+     * Сеанс захватывается до того, как клиенту что-либо отправлено: истечь одновременно
+     * с возобновлением он уже не может, и клиент не получит накопленное дважды.
+     * @return false - если возобновлять нечего (сеанс истек), нужен обычный вход.
      */
-    public void unregisterUser(Client client)
+    private boolean resume(Connection client, long lastSeen)
     {
-        synchronized (clients) {
-            if (clients.remove(client))
+        Connection old = clients.get(client.getAccount().getName());
+        DetachedSession session;
+        if (old instanceof DetachedSession d) {
+            session = d;
+        } else if (old != null && (session = detach(old)) != null) {
+            old.close();
+        } else {
+            return false;
+        }
+        if (!session.claim())
+            return false;                                   // истек прямо сейчас: ничего не отправлено
+        issueToken(client);
+        Set<Long> delivered = new HashSet<>();
+        if (lastSeen >= 0)
+        {
+            for (SharedFrame frame : getHistory(client.getAccount().getName(), lastSeen))
             {
-                Account cl = client.getAccount();
-                putMessageFromClient(new Message(cl, null, "покинул нас!"));
+                client.send(frame);
+                delivered.add(frame.getMessage().getOffset());
             }
         }
+        // пока идет замена, сеанс передает приходящее новому соединению
+        session.resume(client, delivered);
+        if (!clients.replace(session, client))
+        {
+            client.close();                                 // реестр очищен: сервер останавливается
+            return true;
+        }
+        rooms.replace(session, client);
+        resumedCount.increment();
+        return true;
+    }
+
+    /**
+     * Сохранение сеанса клиента, потерявшего связь: его место в реестре
+     * и в комнатах занимает DetachedSession, туда же переходят неотправленные сообщения.
+     * Если клиент не вернется за время ожидания, сеанс завершится как обычный выход.
+     * @return Сохраненный сеанс, или null, если сохранить нельзя.
+     */
+    private DetachedSession detach(Connection client)
+    {
+        TimerWheel t = timer;
+        if (t == null || graceMillis <= 0 || client.getAccount() == null)
+            return null;
+        String token = sessions.get(client.getAccount().getName());
+        if (token == null)
+            return null;
+        DetachedSession session = new DetachedSession(client.getAccount(), token, graceBuffer);
+        if (!clients.replace(client, session))
+            return null;
+        rooms.replace(client, session);
+        session.addUnsent(client.takeUnsent());
+        session.setExpiry(t.schedule(() -> expire(session), graceMillis, TimeUnit.MILLISECONDS));
+        detachedCount.increment();
+        return session;
+    }
+
+    /**
+     * Клиент не вернулся за время ожидания: сеанс завершается,
+     * а не дождавшиеся его личные сообщения переходят в почтовый ящик.
+     */
+    private void expire(DetachedSession session)
+    {
+        List<SharedFrame> unsent = session.expire();
+        if (unsent == null || !clients.remove(session))
+            return;                                         // уже возобновляется
+        String name = session.getAccount().getName();
+        sessions.remove(name, session.getToken());
+        rooms.leaveAll(session);
+        senderIds.release(name);                            // номер достанется следующему новому имени
+        OfflineMailbox box = mailbox;
+        for (SharedFrame frame : unsent)
+        {
+            Message message = frame.getMessage();
+            if (box != null && message.isPrivate() && name.equals(message.getTargetName()))
+                box.put(message);
+        }
+        expiredCount.increment();
+        putMessageFromClient(new Message(session.getAccount(), null, "покинул нас!"));
+    }
+
+    /**
+     * Генератор токенов создается при первом входе, а не при запуске:
+     * инициализация SecureRandom заметно удлиняет старт сервера.
+     */
+    private static final class Tokens
+    {
+        static final SecureRandom RANDOM = new SecureRandom();
+    }
+
+    /**
+     * Подтверждение входа: кадр SESSION с эпохой сервера и новым токеном сеанса.
+     * Если возобновление сеансов выключено, токен пустой, но кадр все равно
+     * уходит - по нему клиент узнает, что вход состоялся.
+     */
+    private void issueToken(Connection client)
+    {
+        String token = "";
+        if (graceMillis > 0)
+        {
+            byte[] bytes = new byte[16];
+            Tokens.RANDOM.nextBytes(bytes);
+            token = HexFormat.of().formatHex(bytes);
+            sessions.put(client.getAccount().getName(), token);
+        }
+        Message session = new Message(SERVER, null, token, MessageType.SESSION);
+        session.setEpoch(epoch);
+        client.sendMessage(session);
+    }
+
+    /**
+     * Удаляет клиента из списка. Если связь с клиентом потеряна,
+     * его сеанс сохраняется на время ожидания переподключения.
+     */
+    public void unregisterUser(Connection client)
+    {
+        if (client.isResumable() && detach(client) != null)
+            return;
+        if (clients.remove(client))
+        {
+            sessions.remove(client.getAccount().getName());
+            rooms.leaveAll(client);
+            senderIds.release(client.getAccount().getName());
+            Account cl = client.getAccount();
+            putMessageFromClient(new Message(cl, null, "покинул нас!"));
+        }
     }
 
     public void removeAllUsers()
     {
-        boolean isClear;
-        synchronized (clients) {
-            isClear = !clients.isEmpty();
-            while (!clients.isEmpty())
-            {
-                Client client = clients.removeLast();
-                client.close();
-            }
+        Connection[] all = clients.clear();
+        rooms.clear();
+        sessions.clear();
+        for (Connection client : all)
+        {
+            senderIds.release(client.getAccount().getName());
+            client.close();
         }
-        fromClients.clear();
-        if (isClear)
+        Dispatcher d = dispatcher;
+        if (d != null)
+            d.clear();
+        if (all.length > 0)
             putMessageFromClient(new Message(new Account("ClientManager", "", "", ""), null, "Все клиенты отключены!"));
     }
 
+    /**
+     * Рассылка участникам комнаты (один раз закодированного) сообщения.
+     * @param skip Имя пользователя, которому не отправлять, или null.
+     */
+    private void sendToRoom(Message message, String skip)
+    {
+        SharedFrame frame = new SharedFrame(message);
+        int count = 0;
+        for (Connection e : rooms.members(message.getTargetName())) {
+            if (!e.getAccount().getName().equals(skip)) {
+                long start = System.nanoTime();
+                e.send(frame);
+                SEND_TIME.recordSince(start);
+                count++;
+            }
+        }
+        FANOUT.record(count);
+    }
+
+    /**
+     * Запуск потоков обслуживания соединений и обработки сообщений.
+     * @param handler Обработчик входящих сообщений (вызывается потоками шардов).
+     * @param console Консоль сервера.
+     */
+    public void start(ServerConfig config, Consumer<Message> handler, Consumer<String> console) throws IOException
+    {
+        stop();
+        outPolicy = config.getSlowConsumerPolicy();        // неверное значение - отказ в запуске
+        outQueueSize = config.getOutboundQueueSize();
+        outLagMillis = config.getMaxLagMillis();
+        IoMode mode = config.getIoMode();
+        ThreadFactory factory = mode == IoMode.VIRTUAL
+                ? Thread.ofVirtual().name("client-", 0).factory()
+                : Thread.ofPlatform().name("client-", 0).factory();
+        executor = Executors.newThreadPerTaskExecutor(factory);
+        logins = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("login-", 0).factory());
+        if (config.isLogEnabled())
+        {
+            MessageLog log = new MessageLog(config.getLogDir(), config.getLogSegmentSize(), config.getLogSyncMillis(),
+                    config.getLogRetentionHours(), config.getLogRetentionBytes(), config.getLogQueueSize());
+            log.open();
+            messageLog = log;
+            epoch = log.getEpoch();
+        } else {
+            epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);   // история только в памяти
+        }
+        history = new HistoryBuffer(config.getHistorySize());
+        preloadHistory();
+        replayCount = config.getReplayCount();
+        if (config.isMailboxEnabled())
+        {
+            OfflineMailbox box = new OfflineMailbox(config.getMailboxUserMessages(), config.getMailboxUserBytes(),
+                    config.getMailboxTotalBytes(), config.getMailboxTtlHours());
+            mailboxFile = config.getMailboxFile();
+            try {
+                if (mailboxFile != null)
+                    box.load(mailboxFile);
+            } catch (IOException e) {
+                System.out.println("Mailbox error! " + e.getMessage());
+            }
+            mailbox = box;
+        }
+        backpressure = config.isBackpressure();
+        graceMillis = TimeUnit.SECONDS.toMillis(config.getSessionGraceSeconds());
+        graceBuffer = config.getSessionBufferSize();
+        TimerWheel wheel = new TimerWheel(config.getTimerTickMillis(), 512);
+        wheel.start("timer-wheel");
+        reaper = new IdleReaper(wheel, config.getPingSeconds(), config.getIdleTimeoutSeconds());
+        timer = wheel;
+        dispatcher = new Dispatcher(config.getDispatchShards(), config.getDispatchQueueSize(), handler, console);
+        dispatcher.start(executor);
+        if (mode == IoMode.NIO)
+            startReactors(config);
+        startMetrics(config, wheel);
+    }
+
+    /**
+     * Заполнение кольцевого буфера хвостом журнала. Иначе после перезапуска буфер пуст,
+     * и каждый вход (а после перезапуска переподключаются все сразу) читал бы историю с диска.
+     */
+    private void preloadHistory()
+    {
+        MessageLog log = messageLog;
+        if (log == null)
+            return;
+        HistoryBuffer ring = history;
+        long next = log.getNextOffset();
+        int size = ring.getCapacity();
+        for (LogRecord record : log.read(Math.max(0, next - size), next, size))
+        {
+            Message message = record.getMessage();
+            message.setOffset(record.getOffset());
+            ring.add(new SharedFrame(message));
+        }
+    }
+
+    /**
+     * Регистрация датчиков, запуск отдачи метрик по HTTP и периодического вывода в консоль.
+     * Ошибка порта метрик сервер не останавливает.
+     */
+    private void startMetrics(ServerConfig config, TimerWheel wheel)
+    {
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("clients", clients::size);
+        metrics.gauge("rooms", rooms::size);
+        metrics.gauge("dispatch.queue", () -> {
+            Dispatcher d = dispatcher;
+            return d == null ? 0 : d.getQueueDepth();
+        });
+        metrics.gauge("outbound.queue", () -> {
+            long depth = 0;
+            for (Connection e : clients.snapshot())
+                depth += e.getQueueDepth();
+            return depth;
+        });
+        getDispatchStats().keySet().forEach(key -> metrics.gauge("dispatch." + key, () -> getDispatchStats().get(key)));
+        getSessionStats().keySet().forEach(key -> metrics.gauge("sessions." + key, () -> getSessionStats().get(key)));
+        getIdleStats().keySet().forEach(key -> metrics.gauge("idle." + key, () -> getIdleStats().get(key)));
+        metrics.gauge("log.next", () -> {
+            MessageLog log = messageLog;
+            return log == null ? memoryOffsets.get() : log.getNextOffset();
+        });
+        metrics.gauge("log.dropped", () -> {
+            MessageLog log = messageLog;
+            return log == null ? 0 : log.getDroppedCount();
+        });
+        metrics.gauge("mailbox.bytes", () -> {
+            OfflineMailbox box = mailbox;
+            return box == null ? 0 : box.getUsedBytes();
+        });
+        if (config.getMetricsPort() > 0)
+        {
+            try {
+                MetricsServer server = new MetricsServer(config.getMetricsPort(), metrics);
+                server.start();
+                metricsServer = server;
+            } catch (IOException e) {
+                System.out.println("Metrics error! " + e.getMessage());
+            }
+        }
+        long dump = config.getMetricsDumpSeconds();
+        if (dump > 0)
+            scheduleDump(wheel, dump);
+    }
+
+    /**
+     * Вывод метрик в консоль раз в seconds секунд, пока работает таймер.
+     */
+    private void scheduleDump(TimerWheel wheel, long seconds)
+    {
+        wheel.schedule(() -> {
+            if (timer != wheel)
+                return;
+            System.out.print("Server metrics:\n" + Metrics.getInstance().toText());
+            scheduleDump(wheel, seconds);
+        }, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Остановка всех потоков. Соединения к этому моменту уже должны быть
+     * закрыты через removeAllUsers(), поэтому потоки завершатся быстро.
+     */
+    public void stop()
+    {
+        stopReactors();
+        MetricsServer m = metricsServer;
+        metricsServer = null;
+        if (m != null)
+            m.stop();
+        TimerWheel t = timer;
+        timer = null;                                       // счетчики reaper остаются доступны
+        if (t != null)
+            t.stop();
+        Dispatcher d = dispatcher;
+        dispatcher = null;
+        if (d != null)
+            d.stop();
+        MessageLog log = messageLog;
+        messageLog = null;
+        if (log != null)
+            log.close();                                    // дописывает принятое
+        OfflineMailbox box = mailbox;
+        mailbox = null;
+        if (box != null && mailboxFile != null)
+        {
+            try {
+                box.save(mailboxFile);
+            } catch (IOException e) {
+                System.out.println("Mailbox error! " + e.getMessage());
+            }
+        }
+        for (Socket socket : handshakes)
+        {
+            try {
+                socket.close();                             // прерывает ожидание данных от клиента
+            } catch (IOException ignored) {}
+        }
+        ExecutorService registering = logins;
+        if (registering != null)
+            registering.shutdownNow();
+        ExecutorService pool = executor;
+        if (pool != null)
+        {
+            pool.shutdownNow();
+            try {
+                if (!pool.awaitTermination(5, TimeUnit.SECONDS))
+                    System.out.println("Server: not all client threads stopped!");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Запуск пула реакторов для режима NIO.
+     */
+    private void startReactors(ServerConfig config) throws IOException
+    {
+        Reactor[] pool = new Reactor[config.getIoThreads()];
+        for (int i = 0; i < pool.length; i++)
+        {
+            pool[i] = new Reactor("reactor-" + i, config.getReadBufferSize(), config.getTcpOptions());
+            pool[i].start();
+        }
+        reactors = pool;
+    }
+
+    /**
+     * Остановка реакторов вместе со всеми их соединениями.
+     */
+    private void stopReactors()
+    {
+        Reactor[] pool = reactors;
+        reactors = new Reactor[0];
+        for (Reactor reactor : pool)
+            reactor.close();
+    }
+
 }
@@ -0,0 +1,143 @@
+package mr.demonid.controller;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Реестр подключенных клиентов.
+ * Поиск по имени и по адресу сокета - за O(1) через ConcurrentHashMap,
+ * а для рассылки хранится неизменяемый снимок-массив, который пересоздается
+ * при каждом входе/выходе (copy-on-write). Рассылки идут намного чаще входов,
+ * поэтому итерация по снимку без блокировок выгоднее.
+ */
+public class ClientRegistry {
+
+    private static final Connection[] EMPTY = new Connection[0];
+
+    private final ConcurrentHashMap<String, Connection> byName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketAddress, Connection> byAddress = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile Connection[] snapshot = EMPTY;
+
+
+    /**
+     * Добавление клиента.
+     * @return false - если клиент с таким именем уже подключен.
+     */
+    public boolean add(Connection client)
+    {
+        writeLock.lock();
+        try {
+            if (byName.putIfAbsent(client.getAccount().getName(), client) != null)
+                return false;
+            SocketAddress address = client.getRemoteAddress();
+            if (address != null)
+                byAddress.put(address, client);
+            Connection[] res = Arrays.copyOf(snapshot, snapshot.length + 1);
+            res[res.length - 1] = client;
+            snapshot = res;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Удаление клиента.
+     * @return false - если этого клиента в реестре не было.
+     */
+    public boolean remove(Connection client)
+    {
+        writeLock.lock();
+        try {
+            if (client.getAccount() == null || !byName.remove(client.getAccount().getName(), client))
+                return false;
+            SocketAddress address = client.getRemoteAddress();
+            if (address != null)
+                byAddress.remove(address, client);
+            Connection[] old = snapshot;
+            Connection[] res = new Connection[old.length - 1];
+            int j = 0;
+            for (Connection c : old) {
+                if (c != client && j < res.length)
+                    res[j++] = c;
+            }
+            snapshot = res;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Замена клиента другим соединением того же пользователя
+     * (при потере связи и при возобновлении сеанса).
+     * @return false - если прежнего клиента в реестре уже нет.
+     */
+    public boolean replace(Connection old, Connection client)
+    {
+        writeLock.lock();
+        try {
+            if (!byName.replace(old.getAccount().getName(), old, client))
+                return false;
+            SocketAddress address = old.getRemoteAddress();
+            if (address != null)
+                byAddress.remove(address, old);
+            address = client.getRemoteAddress();
+            if (address != null)
+                byAddress.put(address, client);
+            Connection[] res = snapshot.clone();
+            for (int i = 0; i < res.length; i++) {
+                if (res[i] == old)
+                    res[i] = client;
+            }
+            snapshot = res;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Удаление всех клиентов.
+     * @return Клиенты, бывшие в реестре.
+     */
+    public Connection[] clear()
+    {
+        writeLock.lock();
+        try {
+            Connection[] res = snapshot;
+            byName.clear();
+            byAddress.clear();
+            snapshot = EMPTY;
+            return res;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public Connection get(String name)
+    {
+        return name == null ? null : byName.get(name);
+    }
+
+    public boolean contains(SocketAddress address)
+    {
+        return address != null && byAddress.containsKey(address);
+    }
+
+    /**
+     * Текущий список клиентов. Массив не меняется, изменять его нельзя.
+     */
+    public Connection[] snapshot()
+    {
+        return snapshot;
+    }
+
+    public int size()
+    {
+        return snapshot.length;
+    }
+}
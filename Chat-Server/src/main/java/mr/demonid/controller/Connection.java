@@ -0,0 +1,100 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.codec.SharedFrame;
+
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * Соединение с клиентом, независимо от способа его обслуживания.
+ * Реализации: Client (поток на соединение) и NioClient (неблокирующий режим).
+ */
+public interface Connection {
+
+    /**
+     * Данные о пользователе, или null, если он еще не представился.
+     */
+    Account getAccount();
+
+    /**
+     * Адрес клиента, или null, если соединение уже закрыто.
+     */
+    SocketAddress getRemoteAddress();
+
+    /**
+     * Отправка сообщения клиенту.
+     */
+    default void sendMessage(Message message) {
+        send(new SharedFrame(message));
+    }
+
+    /**
+     * Отправка уже закодированного сообщения (общего для многих получателей).
+     */
+    void send(SharedFrame frame);
+
+    /**
+     * Отправка сообщения вне очереди: оно уйдет раньше обычных, не занимает места
+     * в очереди и не выбрасывается при ее переполнении (почта, уже изъятая из ящика).
+     */
+    default void sendPriority(SharedFrame frame) {
+        send(frame);
+    }
+
+    /**
+     * Число сообщений, ожидающих отправки клиенту.
+     */
+    int getQueueDepth();
+
+    /**
+     * Отказ в подключении: клиенту отправляется причина, затем соединение закрывается.
+     * Вызывается до того, как клиент начал получать сообщения.
+     */
+    void reject(String reason);
+
+    /**
+     * Разрыв соединения и освобождение ресурсов.
+     */
+    void close();
+
+    /**
+     * Можно ли сохранить сеанс для переподключения клиента:
+     * связь потеряна, а не закрыта пользователем или сервером.
+     */
+    default boolean isResumable() {
+        return false;
+    }
+
+    /**
+     * Открыто ли еще соединение.
+     */
+    default boolean isOpen() {
+        return true;
+    }
+
+    /**
+     * Время (System.nanoTime) последнего приема данных от клиента.
+     */
+    default long getLastReadNanos() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Разрыв соединения из-за простоя: связь считается потерянной,
+     * поэтому сеанс клиента сохраняется для переподключения.
+     */
+    default void timeout() {
+        close();
+    }
+
+    /**
+     * Закрытие очереди исходящих сообщений.
+     * @return Сообщения, которые клиент так и не получил.
+     */
+    default List<SharedFrame> takeUnsent() {
+        return List.of();
+    }
+
+}
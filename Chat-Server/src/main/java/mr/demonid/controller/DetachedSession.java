@@ -0,0 +1,209 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.codec.SharedFrame;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Сеанс клиента, потерявшего связь, на время ожидания его возвращения.
+ * Занимает место соединения в реестре клиентов и в комнатах, поэтому
+ * пользователь для остальных остается в сети, а адресованные ему сообщения
+ * копятся в ограниченном буфере. Если клиент вернется с токеном сеанса,
+ * накопленное уйдет новому соединению (см. ClientManager.registerUser).
+ */
+public class DetachedSession implements Connection {
+
+    private final Account account;
+    private final String token;
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<SharedFrame> frames = new ArrayDeque<>();
+    private int skipped;                                // выброшено из-за переполнения буфера
+    private Connection forward;                         // новое соединение, после возобновления
+    private boolean expired;
+    private boolean claimed;                            // сеанс уже забирает новое соединение
+    private volatile TimerWheel.Timeout expiry;
+
+
+    /**
+     * @param capacity Наибольшее число сообщений, ожидающих клиента.
+     */
+    public DetachedSession(Account account, String token, int capacity) {
+        this.account = account;
+        this.token = token;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    @Override
+    public Account getAccount() {
+        return account;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    /**
+     * Сообщение откладывается до возвращения клиента, а после возобновления
+     * сеанса - передается новому соединению (рассылка могла взять старый снимок реестра).
+     */
+    @Override
+    public void send(SharedFrame frame)
+    {
+        Connection target;
+        lock.lock();
+        try {
+            if (expired)
+                return;
+            target = forward;
+            if (target == null)
+            {
+                if (frames.size() >= capacity)
+                {
+                    frames.pollFirst();
+                    skipped++;
+                }
+                frames.addLast(frame);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        target.send(frame);
+    }
+
+    /**
+     * Добавление сообщений, не отправленных прежним соединением (они идут раньше отложенных).
+     */
+    public void addUnsent(List<SharedFrame> unsent)
+    {
+        lock.lock();
+        try {
+            for (int i = unsent.size() - 1; i >= 0; i--)
+                frames.addFirst(unsent.get(i));
+            while (frames.size() > capacity)
+            {
+                frames.pollFirst();
+                skipped++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Захват сеанса новым соединением: после него сеанс уже не истечет,
+     * поэтому накопленное можно передавать, не опасаясь отправить его дважды.
+     * @return false - сеанс истек или его уже забрало другое соединение.
+     */
+    public boolean claim()
+    {
+        lock.lock();
+        try {
+            if (expired || claimed)
+                return false;
+            claimed = true;
+        } finally {
+            lock.unlock();
+        }
+        cancelExpiry();
+        return true;
+    }
+
+    /**
+     * Передача сеанса новому соединению (захваченного claim()): накопленное ставится ему в очередь
+     * (после уведомления о выброшенном, если буфер переполнялся),
+     * и дальше все сообщения для сеанса идут прямо ему.
+     * @param delivered Номера сообщений, уже отправленных клиенту из истории: они не повторяются.
+     */
+    public void resume(Connection client, Set<Long> delivered)
+    {
+        lock.lock();
+        try {
+            if (skipped > 0)
+                client.sendMessage(new Message(ClientManager.SERVER, null, "пропущено сообщений: " + skipped));
+            for (SharedFrame frame : frames)
+            {
+                long offset = frame.getMessage().getOffset();
+                if (offset < 0 || !delivered.contains(offset))
+                    client.send(frame);
+            }
+            frames.clear();
+            skipped = 0;
+            forward = client;
+        } finally {
+            lock.unlock();
+        }
+        cancelExpiry();
+    }
+
+    /**
+     * Завершение ожидания: сеанс закрывается, дальнейшие сообщения отбрасываются.
+     * @return Сообщения, так и не доставленные клиенту, или null, если сеанс уже захвачен.
+     */
+    public List<SharedFrame> expire()
+    {
+        lock.lock();
+        try {
+            if (claimed)
+                return null;
+            List<SharedFrame> res = new ArrayList<>(frames);
+            frames.clear();
+            expired = true;
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Задача, которая завершит сеанс по истечении времени ожидания.
+     */
+    public void setExpiry(TimerWheel.Timeout expiry)
+    {
+        this.expiry = expiry;
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void reject(String reason) {
+        close();
+    }
+
+    @Override
+    public void close()
+    {
+        expire();
+        cancelExpiry();
+    }
+
+    private void cancelExpiry()
+    {
+        TimerWheel.Timeout t = expiry;
+        if (t != null)
+            t.cancel();
+    }
+}
@@ -0,0 +1,242 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Histogram;
+import mr.demonid.commons.Message;
+import mr.demonid.controller.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Параллельная обработка входящих сообщений.
+ * Сообщения раскладываются по шардам в зависимости от беседы: комната,
+ * пара "отправитель-адресат" для личных сообщений, а в общем чате - автор
+ * (общий порядок там и не нужен: реплики одного автора идут по порядку,
+ * а ответ пишется уже после того, как сообщение разослано). Каждый шард
+ * обслуживается своим потоком, поэтому внутри беседы порядок сообщений
+ * сохраняется, а разные беседы и авторы обрабатываются параллельно.
+ * <p>
+ * При переполнении шарда сообщения не теряются: блокирующий читатель ждет
+ * места в очереди (submitOrWait), а неблокирующий оставляет сообщение у себя,
+ * перестает читать сокет и ждет вызова переданного обработчика (trySubmit).
+ * Шард вызывает ждущих, когда его очередь освободится наполовину.
+ * <p>
+ * Сообщение лежит в очереди вместе со временем постановки, так что в метриках
+ * видно отдельно время ожидания в очереди и время обработки.
+ */
+public class Dispatcher {
+
+    private static final Histogram QUEUE_WAIT = Metrics.getInstance().timer("dispatch.wait");
+    private static final Histogram HANDLE_TIME = Metrics.getInstance().timer("dispatch.handle");
+
+    /**
+     * Сообщение в очереди шарда.
+     */
+    private record Entry(Message message, long queued) {
+        Entry(Message message) {
+            this(message, System.nanoTime());
+        }
+    }
+
+    private final ArrayBlockingQueue<Entry>[] shards;
+    private final Consumer<Message> handler;
+    private final Consumer<String> console;
+    private final ConcurrentLinkedQueue<Runnable>[] waiters;
+    private final int resumeLevel;
+    private final List<Future<?>> workers = new ArrayList<>();
+
+    private final LongAdder dropped = new LongAdder();      // потеряно из-за переполнения
+    private final LongAdder delayed = new LongAdder();      // читатель ждал места в очереди
+    private final LongAdder paused = new LongAdder();       // чтение сокета приостанавливалось
+
+
+    /**
+     * @param console Консоль сервера (для ошибок обработчика).
+     */
+    @SuppressWarnings("unchecked")
+    public Dispatcher(int shardCount, int queueSize, Consumer<Message> handler, Consumer<String> console) {
+        this.shards = (ArrayBlockingQueue<Entry>[]) new ArrayBlockingQueue<?>[Math.max(1, shardCount)];
+        this.waiters = (ConcurrentLinkedQueue<Runnable>[]) new ConcurrentLinkedQueue<?>[shards.length];
+        for (int i = 0; i < shards.length; i++)
+        {
+            shards[i] = new ArrayBlockingQueue<>(queueSize);
+            waiters[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.resumeLevel = queueSize / 2;
+        this.handler = handler;
+        this.console = console;
+    }
+
+    /**
+     * Запуск обработчиков шардов.
+     */
+    public void start(ExecutorService executor)
+    {
+        for (int i = 0; i < shards.length; i++)
+        {
+            int shard = i;
+            workers.add(executor.submit(() -> work(shard)));
+        }
+    }
+
+    /**
+     * Остановка обработчиков (необработанные сообщения теряются).
+     */
+    public void stop()
+    {
+        workers.forEach(f -> f.cancel(true));
+        workers.clear();
+    }
+
+    /**
+     * Потокобезопасное помещение сообщения в очередь его шарда.
+     * @return false - в случае переполненной очереди (сообщение потеряно).
+     */
+    public boolean submit(Message message)
+    {
+        if (shards[shardOf(message)].offer(new Entry(message)))
+            return true;
+        dropped.increment();
+        return false;
+    }
+
+    /**
+     * Помещение сообщения в очередь, с ожиданием места при ее переполнении.
+     * Пока поток ждет, он не читает сокет, и клиента сдерживает уже TCP.
+     */
+    public void submitOrWait(Message message) throws InterruptedException
+    {
+        ArrayBlockingQueue<Entry> queue = shards[shardOf(message)];
+        Entry entry = new Entry(message);
+        if (!queue.offer(entry))
+        {
+            delayed.increment();
+            queue.put(entry);
+        }
+    }
+
+    /**
+     * Попытка поместить сообщение в очередь без ожидания.
+     * @param onReady Вызывается (потоком шарда), когда в очереди освободится место.
+     *                Может быть вызван и лишний раз, обработчик должен это допускать.
+     * @return false - очередь переполнена, сообщение не принято.
+     */
+    public boolean trySubmit(Message message, Runnable onReady)
+    {
+        int shard = shardOf(message);
+        Entry entry = new Entry(message);
+        if (shards[shard].offer(entry))
+            return true;
+        waiters[shard].add(onReady);
+        // шард мог освободиться до того, как мы встали в ожидание
+        if (shards[shard].offer(entry))
+        {
+            waiters[shard].remove(onReady);
+            return true;
+        }
+        paused.increment();
+        return false;
+    }
+
+    /**
+     * Очистка всех очередей (вместе со списками ожидающих).
+     */
+    public void clear()
+    {
+        for (int i = 0; i < shards.length; i++)
+        {
+            shards[i].clear();
+            waiters[i].clear();
+        }
+    }
+
+    public int getShardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * Число сообщений во всех очередях.
+     */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for (ArrayBlockingQueue<Entry> queue : shards)
+            depth += queue.size();
+        return depth;
+    }
+
+    public long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+    public long getDelayedCount()
+    {
+        return delayed.sum();
+    }
+
+    public long getPausedCount()
+    {
+        return paused.sum();
+    }
+
+    /**
+     * Номер шарда для сообщения. Для личных сообщений ключ симметричен,
+     * чтобы реплики обоих собеседников попадали в один шард; общий чат
+     * делится по авторам, иначе самая частая рассылка шла бы одним потоком.
+     */
+    int shardOf(Message message)
+    {
+        int hash;
+        if (message.isPrivate())
+            hash = message.getAuthorName().hashCode() + message.getTargetName().hashCode();
+        else if (message.hasTarget())
+            hash = message.getTargetName().hashCode();      // комната (сообщения, вход и выход)
+        else
+            hash = message.getAuthorName().hashCode();      // общий чат: порядок важен в пределах автора
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, shards.length);
+    }
+
+    private void work(int shard)
+    {
+        ArrayBlockingQueue<Entry> queue = shards[shard];
+        ConcurrentLinkedQueue<Runnable> waiting = waiters[shard];
+        try {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                Entry entry = queue.take();
+                long start = System.nanoTime();
+                QUEUE_WAIT.record(start - entry.queued());
+                if (!waiting.isEmpty() && queue.size() <= resumeLevel)
+                    resume(waiting);
+                try {
+                    handler.accept(entry.message());
+                } catch (RuntimeException e) {
+                    console.accept("Error: шард " + shard + ": ошибка обработки сообщения: " + e);
+                }
+                HANDLE_TIME.recordSince(start);
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    private void resume(ConcurrentLinkedQueue<Runnable> waiting)
+    {
+        Runnable task;
+        while ((task = waiting.poll()) != null)
+        {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                console.accept("Error: возобновление чтения клиента: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+import mr.demonid.commons.codec.SharedFrame;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Проверка соединений на простой.
+ * Полуоткрытое TCP-соединение (клиент пропал без FIN) читатель сам не заметит,
+ * поэтому каждое соединение периодически проверяется по таймеру-колесу:
+ * если от клиента давно ничего не приходило, ему отправляется PING
+ * (живой клиент отвечает PONG), а если молчание длится дольше таймаута -
+ * соединение разрывается как потерявшее связь.
+ * На одно соединение приходится одна задача в колесе, которая переставляется
+ * на следующий срок, поэтому проверки не зависят от числа соединений.
+ */
+public class IdleReaper {
+
+    private static final SharedFrame PING = new SharedFrame(new Message(ClientManager.SERVER, null, "ping", MessageType.PING));
+
+    private final TimerWheel timer;
+    private final long pingNanos;
+    private final long timeoutNanos;
+
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder reaped = new LongAdder();
+
+
+    /**
+     * @param pingSeconds    Через сколько секунд молчания проверять клиента (0 - не проверять).
+     * @param timeoutSeconds Через сколько секунд молчания разрывать соединение (0 - не разрывать).
+     */
+    public IdleReaper(TimerWheel timer, long pingSeconds, long timeoutSeconds) {
+        this.timer = timer;
+        this.pingNanos = TimeUnit.SECONDS.toNanos(Math.max(0, pingSeconds));
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(0, timeoutSeconds));
+    }
+
+    /**
+     * Начало наблюдения за соединением (до его закрытия).
+     */
+    public void watch(Connection client)
+    {
+        if (pingNanos > 0 || timeoutNanos > 0)
+            schedule(client, interval());
+    }
+
+    public long getPingCount()
+    {
+        return pings.sum();
+    }
+
+    /**
+     * Число соединений, разорванных из-за простоя.
+     */
+    public long getReapedCount()
+    {
+        return reaped.sum();
+    }
+
+    /**
+     * Проверка соединения (в потоке таймера).
+     */
+    private void check(Connection client)
+    {
+        if (!client.isOpen())
+            return;
+        long idle = System.nanoTime() - client.getLastReadNanos();
+        if (timeoutNanos > 0 && idle >= timeoutNanos)
+        {
+            reaped.increment();
+            System.out.println("Client " + name(client) + " is idle, disconnect.");
+            client.timeout();
+            return;
+        }
+        if (pingNanos > 0 && idle >= pingNanos)
+        {
+            client.send(PING);
+            pings.increment();
+            // следующая проверка - когда истечет таймаут (или пора будет снова пинговать)
+            schedule(client, timeoutNanos > 0 ? timeoutNanos - idle : pingNanos);
+        } else {
+            schedule(client, interval() - idle);
+        }
+    }
+
+    private void schedule(Connection client, long delayNanos)
+    {
+        timer.schedule(() -> check(client), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private long interval()
+    {
+        return pingNanos > 0 ? pingNanos : timeoutNanos;
+    }
+
+    private static String name(Connection client)
+    {
+        return client.getAccount() == null ? String.valueOf(client.getRemoteAddress()) : client.getAccount().getName();
+    }
+}
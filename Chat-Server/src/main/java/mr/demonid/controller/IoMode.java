@@ -0,0 +1,10 @@
+package mr.demonid.controller;
+
+/**
+ * Режим обслуживания соединений.
+ */
+public enum IoMode {
+    BLOCKING,       // отдельный поток на каждого клиента
+    VIRTUAL,        // отдельный виртуальный поток на каждого клиента
+    NIO             // несколько потоков-реакторов на Selector
+}
@@ -1,46 +1,154 @@
 package mr.demonid.controller;
 
+import mr.demonid.commons.TcpOptions;
+
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
- * Слушатель подключений пользователей
+ * Слушатель подключений пользователей на одном адресе.
+ * Поток только принимает соединения и сразу передает их ClientManager:
+ * согласование протокола идет уже в потоке соединения (или в реакторе NIO),
+ * поэтому медленный клиент не задерживает прием остальных.
+ * В режиме NIO принимает соединения через ServerSocketChannel.
+ * С SO_REUSEPORT на одном порту может работать несколько слушателей,
+ * каждый со своим сокетом, - ядро распределяет соединения между ними.
  */
 public class Listener extends Thread {
 
+    private static final long RETRY_MILLIS = 100;
+
+    private final IoMode mode;
+    private final InetSocketAddress address;
+    private volatile boolean closed;
     private ServerSocket listener;
+    private ServerSocketChannel channel;
 
-    public Listener(int port) {
+    /**
+     * Открытие слушающего сокета.
+     * @param backlog   Длина очереди еще не принятых соединений.
+     * @param reusePort Открыть сокет с SO_REUSEPORT.
+     * @throws IOException Адрес занят или недоступен, либо SO_REUSEPORT не поддерживается.
+     */
+    public Listener(InetSocketAddress address, IoMode mode, int backlog, boolean reusePort) throws IOException {
+        super("listener-" + address.getPort());
+        this.mode = mode;
         try {
-            listener = new ServerSocket(port);
-        } catch (Exception e)
+            TcpOptions options = ServerConfig.getInstance().getTcpOptions();
+            if (mode == IoMode.NIO)
+            {
+                channel = ServerSocketChannel.open();
+                options.apply(channel.socket());
+                if (reusePort)
+                    reusePort(channel.socket());
+                channel.bind(address, backlog);
+                this.address = (InetSocketAddress) channel.getLocalAddress();
+            } else {
+                listener = new ServerSocket();
+                options.apply(listener);
+                if (reusePort)
+                    reusePort(listener);
+                listener.bind(address, backlog);
+                this.address = (InetSocketAddress) listener.getLocalSocketAddress();
+            }
+        } catch (IOException e)
         {
-            close();
+            closeSocket();
+            throw new IOException(format(address) + ": " + e.getMessage(), e);
         }
     }
 
+    private static void reusePort(ServerSocket socket) throws IOException
+    {
+        if (!socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+            throw new IOException("SO_REUSEPORT не поддерживается");
+        socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+    }
+
+    /**
+     * Адрес, на котором принимаются соединения.
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Адрес в виде хост:порт.
+     */
+    public static String format(InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
     @Override
     public void run() {
-        while (!isInterrupted() && !listener.isClosed())
+        if (mode == IoMode.NIO)
+            acceptChannels();
+        else
+            acceptSockets();
+        closeSocket();
+    }
+
+    public void close()
+    {
+        try {
+            closed = true;
+            interrupt();
+            closeSocket();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private void acceptSockets()
+    {
+        ServerSocket server = listener;
+        while (!closed && server != null && !server.isClosed())
         {
             try {
-                Socket socket = listener.accept();
+                Socket socket = server.accept();
                 ClientManager.getInstance().addUser(socket);    // подключаем нового пользователя
             } catch (IOException e) {
-                break;
+                if (!failed(e))
+                    break;
             }
         }
-        closeSocket();
     }
 
-    public void close()
+    private void acceptChannels()
     {
+        ServerSocketChannel server = channel;
+        while (!closed && server != null && server.isOpen())
+        {
+            try {
+                SocketChannel client = server.accept();
+                ClientManager.getInstance().addUser(client);    // передаем соединение реактору
+            } catch (IOException e) {
+                if (!failed(e))
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Ошибка приема. Если сокет не закрыт, ошибка временная (например, кончились
+     * дескрипторы) - слушатель делает паузу и продолжает, а не завершается навсегда.
+     * @return false - слушатель закрыт, прием окончен.
+     */
+    private boolean failed(IOException e)
+    {
+        if (closed)
+            return false;
+        System.out.println("Listener error! " + format(address) + ": " + e.getMessage());
         try {
-            interrupt();
-            closeSocket();
-        } catch (Exception ignored) {
+            Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException ie) {
+            return false;
         }
+        return true;
     }
 
     private void closeSocket()
@@ -49,6 +157,11 @@ public class Listener extends Thread {
             if (listener != null)
                 listener.close();
         } catch (IOException ignored) {}
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException ignored) {}
         listener = null;
+        channel = null;
     }
 }
@@ -0,0 +1,296 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Message;
+import mr.demonid.commons.codec.SharedFrame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограниченная очередь исходящих сообщений одного клиента.
+ * Заполняется потоками рассылки, а разбирается писателем клиента
+ * (отдельным потоком, либо реактором в режиме NIO), поэтому медленный
+ * клиент задерживает только самого себя.
+ * Используется ReentrantLock, а не synchronized, чтобы не прикалывать виртуальные потоки.
+ */
+public class OutboundQueue {
+
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final long maxLagNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // кольцевой буфер; растет по мере надобности, чтобы простаивающие клиенты не занимали память
+    private SharedFrame[] frames = new SharedFrame[8];
+    private long[] times = new long[8];             // время постановки в очередь
+    private int head;
+    private int count;
+
+    // вне очереди: уходят первыми, не считаются в емкости и не выбрасываются (почта при входе)
+    private final ArrayDeque<SharedFrame> priority = new ArrayDeque<>();
+
+    private int skipped;                            // пропущено при COALESCE, еще не сообщили клиенту
+    private long dropped;
+    private boolean closed;
+
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy, long maxLagMillis) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+    }
+
+    /**
+     * Постановка сообщения в очередь.
+     * @return false - если клиента нужно отключить как не успевающего.
+     */
+    public boolean offer(SharedFrame frame)
+    {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            if (closed)
+                return true;
+            if (policy == SlowConsumerPolicy.DISCONNECT && count > 0 && now - times[head] > maxLagNanos)
+                return false;
+            if (count >= capacity)
+            {
+                switch (policy)
+                {
+                    case DISCONNECT -> {
+                        return false;
+                    }
+                    case DROP_OLDEST -> {
+                        removeFirst();
+                        dropped++;
+                    }
+                    case COALESCE -> {
+                        coalesce();
+                        if (count >= capacity)
+                        {
+                            // остались одни личные - жертвуем самым старым
+                            removeFirst();
+                            dropped++;
+                        }
+                    }
+                }
+            }
+            addLast(frame, now);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Постановка сообщения вне очереди: оно уйдет раньше обычных,
+     * а политика переполнения его не касается.
+     */
+    public void offerPriority(SharedFrame frame)
+    {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            priority.add(frame);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Блокирующая выборка для потока-писателя.
+     * @return Сообщение, или null, если очередь закрыта.
+     */
+    public SharedFrame take() throws InterruptedException
+    {
+        lock.lock();
+        try {
+            while (isEmpty() && !closed)
+                notEmpty.await();
+            return closed ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Неблокирующая выборка (для реактора).
+     * @return Сообщение, или null, если очередь пуста.
+     */
+    public SharedFrame poll()
+    {
+        lock.lock();
+        try {
+            return closed ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Выборка с ожиданием не дольше заданного (для сбора пачки писателем).
+     * @return Сообщение, или null, если за это время ничего не пришло или очередь закрыта.
+     */
+    public SharedFrame poll(long timeoutNanos) throws InterruptedException
+    {
+        lock.lock();
+        try {
+            while (isEmpty() && !closed && timeoutNanos > 0)
+                timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+            return closed ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Текущая глубина очереди.
+     */
+    public int size()
+    {
+        lock.lock();
+        try {
+            return count + priority.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Число выброшенных из-за переполнения сообщений.
+     */
+    public long getDropped()
+    {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Закрытие очереди с выдачей того, что в ней оставалось.
+     */
+    public List<SharedFrame> closeAndDrain()
+    {
+        lock.lock();
+        try {
+            List<SharedFrame> res = new ArrayList<>(priority.size() + count);
+            res.addAll(priority);
+            for (int i = 0; i < count; i++)
+                res.add(frames[(head + i) % frames.length]);
+            close();
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Закрытие очереди: ожидающий писатель просыпается и получает null.
+     */
+    public void close()
+    {
+        lock.lock();
+        try {
+            closed = true;
+            priority.clear();
+            frames = new SharedFrame[0];
+            times = new long[0];
+            head = 0;
+            count = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isEmpty()
+    {
+        return count == 0 && skipped == 0 && priority.isEmpty();
+    }
+
+    private SharedFrame next()
+    {
+        if (!priority.isEmpty())
+            return priority.poll();
+        if (skipped > 0)
+        {
+            // сначала сообщаем о пропущенном, чтобы пользователь знал о разрыве в истории
+            SharedFrame notice = new SharedFrame(new Message(ClientManager.SERVER, null, "пропущено сообщений: " + skipped));
+            skipped = 0;
+            return notice;
+        }
+        return count == 0 ? null : removeFirst();
+    }
+
+    private void addLast(SharedFrame frame, long time)
+    {
+        if (count == frames.length)
+            grow();
+        int i = (head + count) % frames.length;
+        frames[i] = frame;
+        times[i] = time;
+        count++;
+    }
+
+    private SharedFrame removeFirst()
+    {
+        SharedFrame res = frames[head];
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        count--;
+        return res;
+    }
+
+    private void grow()
+    {
+        int size = Math.min(capacity, Math.max(8, frames.length * 2));
+        SharedFrame[] f = new SharedFrame[size];
+        long[] t = new long[size];
+        for (int i = 0; i < count; i++)
+        {
+            int j = (head + i) % frames.length;
+            f[i] = frames[j];
+            t[i] = times[j];
+        }
+        frames = f;
+        times = t;
+        head = 0;
+    }
+
+    /**
+     * Удаление из очереди всех общих сообщений (с уплотнением оставшихся личных).
+     */
+    private void coalesce()
+    {
+        int kept = 0;
+        for (int i = 0; i < count; i++)
+        {
+            int j = (head + i) % frames.length;
+            SharedFrame f = frames[j];
+            if (f.getMessage().isPrivate())
+            {
+                int k = (head + kept++) % frames.length;
+                frames[k] = f;
+                times[k] = times[j];
+            } else {
+                skipped++;
+                dropped++;
+            }
+        }
+        for (int i = kept; i < count; i++)
+            frames[(head + i) % frames.length] = null;
+        count = kept;
+    }
+}
@@ -0,0 +1,163 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Message;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Комнаты и их участники.
+ * Для каждой комнаты хранится неизменяемый снимок-массив участников, который
+ * пересоздается при входе/выходе (copy-on-write, атомарно через compute),
+ * поэтому рассылка в комнату затрагивает только ее участников и идет без блокировок.
+ * Пустые комнаты удаляются сами.
+ */
+public class RoomRegistry {
+
+    /**
+     * Наибольшая длина имени комнаты (без #).
+     */
+    public static final int MAX_NAME = 32;
+
+    private static final Connection[] EMPTY = new Connection[0];
+
+    private final ConcurrentHashMap<String, Connection[]> rooms = new ConcurrentHashMap<>();
+    // комнаты каждого пользователя, для выхода из всех комнат при отключении
+    private final ConcurrentHashMap<String, Set<String>> roomsOf = new ConcurrentHashMap<>();
+
+
+    /**
+     * Проверка имени комнаты: #имя, без пробелов.
+     */
+    public static boolean isValidName(String room)
+    {
+        if (room == null || room.length() < 2 || room.length() > MAX_NAME + 1 || room.charAt(0) != Message.ROOM_PREFIX)
+            return false;
+        for (int i = 1; i < room.length(); i++) {
+            if (Character.isWhitespace(room.charAt(i)) || Character.isISOControl(room.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Вход в комнату (комната создается при первом входе).
+     * @return false - если клиент уже в этой комнате.
+     */
+    public boolean join(String room, Connection client)
+    {
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (k, members) -> {
+            if (members == null)
+                members = EMPTY;
+            for (Connection c : members) {
+                if (c == client)
+                    return members;
+            }
+            added[0] = true;
+            Connection[] res = Arrays.copyOf(members, members.length + 1);
+            res[res.length - 1] = client;
+            return res;
+        });
+        if (added[0])
+            roomsOf.computeIfAbsent(client.getAccount().getName(), k -> ConcurrentHashMap.newKeySet()).add(room);
+        return added[0];
+    }
+
+    /**
+     * Выход из комнаты.
+     * @return false - если клиента в комнате не было.
+     */
+    public boolean leave(String room, Connection client)
+    {
+        boolean removed = remove(room, client);
+        if (removed)
+        {
+            Set<String> own = roomsOf.get(client.getAccount().getName());
+            if (own != null)
+                own.remove(room);
+        }
+        return removed;
+    }
+
+    /**
+     * Выход клиента из всех комнат (при отключении).
+     */
+    public void leaveAll(Connection client)
+    {
+        Set<String> own = roomsOf.remove(client.getAccount().getName());
+        if (own != null) {
+            for (String room : own)
+                remove(room, client);
+        }
+    }
+
+    /**
+     * Замена участника другим соединением того же пользователя во всех его комнатах.
+     */
+    public void replace(Connection old, Connection client)
+    {
+        Set<String> own = roomsOf.get(old.getAccount().getName());
+        if (own == null)
+            return;
+        for (String room : own) {
+            rooms.computeIfPresent(room, (k, members) -> {
+                Connection[] res = members.clone();
+                for (int i = 0; i < res.length; i++) {
+                    if (res[i] == old)
+                        res[i] = client;
+                }
+                return res;
+            });
+        }
+    }
+
+    /**
+     * Участники комнаты. Массив не меняется, изменять его нельзя.
+     */
+    public Connection[] members(String room)
+    {
+        return rooms.getOrDefault(room, EMPTY);
+    }
+
+    public boolean isMember(String room, Connection client)
+    {
+        for (Connection c : members(room)) {
+            if (c == client)
+                return true;
+        }
+        return false;
+    }
+
+    public int size()
+    {
+        return rooms.size();
+    }
+
+    public void clear()
+    {
+        rooms.clear();
+        roomsOf.clear();
+    }
+
+    private boolean remove(String room, Connection client)
+    {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (k, members) -> {
+            int i = 0;
+            while (i < members.length && members[i] != client)
+                i++;
+            if (i == members.length)
+                return members;
+            removed[0] = true;
+            if (members.length == 1)
+                return null;                                // последний участник, удаляем комнату
+            Connection[] res = new Connection[members.length - 1];
+            System.arraycopy(members, 0, res, 0, i);
+            System.arraycopy(members, i + 1, res, i, res.length - i);
+            return res;
+        });
+        return removed[0];
+    }
+}
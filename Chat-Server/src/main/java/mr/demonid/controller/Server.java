@@ -1,17 +1,20 @@
 package mr.demonid.controller;
 
 
-import mr.demonid.commons.ConnectConfig;
 import mr.demonid.commons.Message;
 import mr.demonid.view.View;
 import mr.demonid.view.listeners.*;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
 public class Server {
 
     private final View view;
     private boolean isWorked;
-    private Listener connectListener;
-    private Thread threadRead;
+    private final List<Listener> connectListeners = new ArrayList<>();
 
 
     public Server(View view) {
@@ -21,6 +24,14 @@ public class Server {
         setListeners();             // регистрируем слушателей от GUI
     }
 
+    /**
+     * Работает ли сервер (запущен и принимает подключения).
+     */
+    public boolean isRunning()
+    {
+        return isWorked;
+    }
+
     /**
      * Начало работы сервера
      */
@@ -28,50 +39,118 @@ public class Server {
     {
         if (!isWorked)
         {
-            connectListener = new Listener(ConnectConfig.getPort());
-            connectListener.start();
-            isWorked = true;
+            ServerConfig config = ServerConfig.getInstance();
+            try {
+                // запускаем потоки обработки сообщений от пользователей
+                ClientManager.getInstance().start(config, this::dispatch, view::showMessage);
+            } catch (IOException | IllegalArgumentException e) {
+                view.showMessage("Error: не удалось запустить сервер: " + e.getMessage());
+                return;
+            }
             ClientManager.getInstance().removeAllUsers();
-            // запускаем отдельный поток чтения и обработки сообщений от пользователей
-            threadRead = new Thread(this::readThread);
-            threadRead.start();
+            try {
+                startListeners(config);
+            } catch (IllegalArgumentException e) {
+                view.showMessage("Error: " + e.getMessage());
+            }
+            if (connectListeners.isEmpty())
+            {
+                view.showMessage("Error: не удалось запустить сервер: нет ни одного адреса для подключений.");
+                ClientManager.getInstance().stop();
+                return;
+            }
+            isWorked = true;
         }
     }
 
     /**
-     * Приостанавливаем сервер
+     * Открытие слушателей: на каждом адресе один, либо, с SO_REUSEPORT,
+     * несколько со своими сокетами на том же порту.
+     * Адрес, который не удалось открыть, пропускается с сообщением об ошибке.
+     */
+    private void startListeners(ServerConfig config)
+    {
+        int threads = config.getAcceptThreads();
+        boolean reusePort = config.isReusePort();
+        if (threads > 1 && !reusePort)
+        {
+            view.showMessage("Warning: несколько потоков приема на одном адресе работают только с SO_REUSEPORT.");
+            threads = 1;
+        }
+        for (InetSocketAddress address : config.getListenAddresses())
+        {
+            for (int i = 0; i < threads; i++)
+            {
+                try {
+                    Listener listener = new Listener(address, config.getIoMode(), config.getAcceptBacklog(), reusePort);
+                    if (threads > 1)
+                        listener.setName(listener.getName() + "-" + i);
+                    listener.start();
+                    connectListeners.add(listener);
+                    if (i == 0)
+                        view.showMessage("Info: подключения принимаются на " + Listener.format(listener.getAddress())
+                                + (threads > 1 ? " (потоков: " + threads + ")" : ""));
+                } catch (IOException e) {
+                    view.showMessage("Error: " + e.getMessage());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Приостанавливаем сервер.
+     * Сначала перестаем принимать новые подключения, затем отключаем клиентов,
+     * и только потом останавливаем потоки.
      */
     private void stopServer()
     {
         if (isWorked)
         {
+            connectListeners.forEach(Listener::close);
+            connectListeners.clear();
             ClientManager.getInstance().removeAllUsers();
-            threadRead.interrupt();
-            connectListener.close();
+            ClientManager.getInstance().stop();
             isWorked = false;
         }
     }
 
     /**
-     * Поток чтения сообщений от пользователей
+     * Обработка сообщения от пользователя (вызывается потоками шардов диспетчера)
      */
-    private void readThread()
+    private void dispatch(Message message)
     {
-        try {
-            while (!Thread.currentThread().isInterrupted())
-            {
-                Message message = ClientManager.getInstance().getMessageFromClient();
-                if (message.isPrivate())
-                {
-                    ClientManager.getInstance().resendPrivateMessage(message);
-                    view.showMessage(message.getAuthorName() + " to @" + message.getTargetName() + ": " + message.getMessage());
-                } else {
-                    ClientManager.getInstance().broadcastMessage(message);
-                    view.showMessage(message.getAuthorName() + ": " + message.getMessage());
-                }
+        switch (message.getType())
+        {
+            case JOIN -> {
+                if (ClientManager.getInstance().joinRoom(message))
+                    view.showMessage(message.getAuthorName() + " вошел в " + message.getTargetName());
+                return;
+            }
+            case LEAVE -> {
+                if (ClientManager.getInstance().leaveRoom(message))
+                    view.showMessage(message.getAuthorName() + " покинул " + message.getTargetName());
+                return;
+            }
+            case LOGIN, SESSION, PING, PONG -> {
+                return;                                     // служебные, от клиента не пересылаются
             }
-        } catch (InterruptedException ignored) {}
-        System.out.println("Server: thread reader stopped.");
+        }
+        if (message.isRoom())
+        {
+            if (!ClientManager.getInstance().roomMessage(message))
+                return;                                     // автор не в комнате
+            view.showMessage(message.getAuthorName() + " " + message.getTargetName() + ": " + message.getMessage());
+        } else if (message.isPrivate())
+        {
+            ClientManager.getInstance().storeMessage(message);
+            ClientManager.getInstance().resendPrivateMessage(message);
+            view.showMessage(message.getAuthorName() + " to @" + message.getTargetName() + ": " + message.getMessage());
+        } else {
+            ClientManager.getInstance().storeMessage(message);
+            ClientManager.getInstance().broadcastMessage(message);
+            view.showMessage(message.getAuthorName() + ": " + message.getMessage());
+        }
     }
 
 
@@ -109,8 +188,7 @@ public class Server {
                 view.showMessage("Warning: сервер уже запущен.");
             } else {
                 view.showMessage("Info: сервер запущен.");
-                startServer();
-                isWorked = true;
+                startServer();                          // при ошибке сервер остается остановленным
             }
         }
     };
@@ -0,0 +1,548 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.ConnectConfig;
+import mr.demonid.commons.TcpOptions;
+import mr.demonid.commons.codec.Codecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Настройки сервера.
+ * Значения берутся из системных свойств вида -Dchat.server.xxx=...,
+ * а также из файла настроек и командной строки (см. configure()),
+ * если свойство не задано - используется значение по умолчанию.
+ * Реализован как синглтон.
+ */
+public class ServerConfig {
+
+    private static final String PREFIX = "chat.server.";
+
+    // ключи (без префикса) с числовыми и логическими значениями, см. validate()
+    private static final String[] INTS = {
+            "port", "accept.backlog", "accept.threads", "io.threads", "io.buffer", "dispatch.shards", "dispatch.queue",
+            "out.queue", "out.lag", "out.batch", "out.linger", "log.queue", "history.ring", "history.replay",
+            "mailbox.messages", "mailbox.bytes", "session.buffer", "metrics.port", "console.ring", "console.lines",
+            "console.fps", "console.file.count", "tcp.sndbuf", "tcp.rcvbuf"};
+    private static final String[] LONGS = {
+            "log.segment", "log.fsync", "log.retention", "log.retention.bytes", "mailbox.total", "mailbox.ttl",
+            "session.grace", "ping", "idle.timeout", "timer.tick", "metrics.dump", "console.file.size"};
+    private static final String[] FLAGS = {
+            "headless", "accept.reuseport", "dispatch.backpressure", "log", "mailbox", "tcp.nodelay"};
+
+    private static final ServerConfig instance = new ServerConfig();
+
+    private final Properties props = new Properties();
+
+
+    private ServerConfig() {
+        System.getProperties().forEach((k, v) -> {
+            if (k.toString().startsWith("chat."))
+                props.put(k, v);
+        });
+    }
+
+    public static ServerConfig getInstance() {
+        return instance;
+    }
+
+    /**
+     * Настройка из командной строки и файла.
+     * Аргументы вида --ключ=значение, где ключ - имя свойства без префикса chat.server.
+     * (--port=4400, --io=nio, --dispatch.shards=8, --out.queue=2048); --ключ без значения - это true (--headless).
+     * --config=файл (или -Dchat.server.config) загружает файл свойств в UTF-8, ключи в нем - полные или без префикса.
+     * Приоритет по возрастанию: файл, системные свойства, командная строка.
+     * Итоговые значения сразу проверяются (см. validate()).
+     * @throws IllegalArgumentException Аргумент не вида --ключ[=значение], либо неверное значение.
+     * @throws IOException              Файл настроек не прочитан.
+     */
+    public void configure(String[] args) throws IOException {
+        Properties cli = new Properties();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.length() == 2)
+                throw new IllegalArgumentException("неизвестный аргумент: " + arg);
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                cli.setProperty(key(arg.substring(2)), "true");
+            else
+                cli.setProperty(key(arg.substring(2, eq)), arg.substring(eq + 1));
+        }
+        String file = cli.getProperty(PREFIX + "config", get(PREFIX + "config", null));
+        if (file != null) {
+            Properties loaded = new Properties();
+            try (Reader in = Files.newBufferedReader(Path.of(file.trim()))) {
+                loaded.load(in);
+            }
+            for (String name : loaded.stringPropertyNames()) {
+                String key = key(name);
+                if (System.getProperty(key) == null)
+                    props.setProperty(key, loaded.getProperty(name).trim());
+            }
+        }
+        props.putAll(cli);
+        validate();
+    }
+
+    /**
+     * Проверка всех настроек до запуска сервера: опечатка (--io=nios, --out.queue=10k)
+     * останавливает запуск с понятным сообщением, а не всплывает исключением
+     * посреди запуска и не заменяется молча значением по умолчанию.
+     * @throws IllegalArgumentException Значение записано неверно.
+     */
+    public void validate() {
+        for (String name : INTS) {
+            String value = get(PREFIX + name, null);
+            try {
+                if (value != null)
+                    Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw badValue(name, value, "целое число");
+            }
+        }
+        for (String name : LONGS) {
+            String value = get(PREFIX + name, null);
+            try {
+                if (value != null)
+                    Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw badValue(name, value, "целое число");
+            }
+        }
+        for (String name : FLAGS) {
+            String value = get(PREFIX + name, null);
+            if (value != null && !value.trim().equalsIgnoreCase("true") && !value.trim().equalsIgnoreCase("false"))
+                throw badValue(name, value, "true или false");
+        }
+        getIoMode();
+        getSlowConsumerPolicy();
+        String codecs = get(PREFIX + "codecs", null);
+        if (codecs != null) {
+            for (String name : codecs.split(","))
+                if (Codecs.idOf(name) == 0)
+                    throw badValue("codecs", codecs, "binary, serial");
+        }
+        getListenAddresses();
+    }
+
+    private static IllegalArgumentException badValue(String name, String value, String expected) {
+        return new IllegalArgumentException("неверное значение " + PREFIX + name + ": " + value + " (" + expected + ")");
+    }
+
+    private static String key(String name) {
+        return name.startsWith("chat.") ? name : PREFIX + name;
+    }
+
+    /**
+     * Порт, на котором сервер ждет подключений.
+     */
+    public int getPort() {
+        return getInt("chat.server.port", ConnectConfig.getPort());
+    }
+
+    /**
+     * Адреса, на которых сервер ждет подключений: -Dchat.server.listen=адрес[,адрес...],
+     * где адрес - "порт", "хост:порт" или "[ipv6]:порт". По умолчанию - все интерфейсы на getPort().
+     * @throws IllegalArgumentException Адрес записан неверно.
+     */
+    public List<InetSocketAddress> getListenAddresses() {
+        List<InetSocketAddress> res = new ArrayList<>();
+        for (String item : get("chat.server.listen", "").split(",")) {
+            item = item.trim();
+            if (item.isEmpty())
+                continue;
+            int colon = item.lastIndexOf(':');
+            String host = colon < 0 ? "" : item.substring(0, colon).replace("[", "").replace("]", "");
+            try {
+                int port = Integer.parseInt(item.substring(colon + 1));
+                res.add(host.isEmpty() || host.equals("*") ? new InetSocketAddress(port) : new InetSocketAddress(host, port));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("неверный адрес в chat.server.listen: " + item);
+            }
+        }
+        if (res.isEmpty())
+            res.add(new InetSocketAddress(getPort()));
+        return res;
+    }
+
+    /**
+     * Длина очереди еще не принятых соединений (backlog) у каждого слушателя.
+     */
+    public int getAcceptBacklog() {
+        return Math.max(1, getInt("chat.server.accept.backlog", 1024));
+    }
+
+    /**
+     * Число потоков приема соединений на каждом адресе.
+     * Больше одного имеет смысл с SO_REUSEPORT (isReusePort()): тогда у каждого потока свой сокет
+     * на том же порту и ядро само распределяет между ними входящие соединения.
+     */
+    public int getAcceptThreads() {
+        return Math.max(1, getInt("chat.server.accept.threads", 1));
+    }
+
+    /**
+     * Открывать ли сокеты слушателей с SO_REUSEPORT (если система его поддерживает).
+     */
+    public boolean isReusePort() {
+        return Boolean.parseBoolean(get("chat.server.accept.reuseport", "false").trim());
+    }
+
+    /**
+     * Режим обслуживания соединений (blocking, virtual, nio).
+     * @throws IllegalArgumentException Режим не известен.
+     */
+    public IoMode getIoMode() {
+        String value = get("chat.server.io", IoMode.BLOCKING.name()).trim();
+        try {
+            return IoMode.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw badValue("io", value, "blocking, virtual, nio");
+        }
+    }
+
+    /**
+     * Число потоков-реакторов в режиме NIO.
+     */
+    public int getIoThreads() {
+        return Math.max(1, getInt("chat.server.io.threads", Math.min(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * Начальный размер буфера чтения на одно соединение.
+     * При десятках тысяч соединений именно он определяет расход памяти.
+     */
+    public int getReadBufferSize() {
+        return Math.max(64, getInt("chat.server.io.buffer", 4096));
+    }
+
+    /**
+     * Число шардов (и потоков) обработки входящих сообщений.
+     */
+    public int getDispatchShards() {
+        return Math.max(1, getInt("chat.server.dispatch.shards", Math.min(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * Длина очереди входящих сообщений одного шарда.
+     */
+    public int getDispatchQueueSize() {
+        return Math.max(1, getInt("chat.server.dispatch.queue", 1000));
+    }
+
+    /**
+     * Сдерживать ли клиентов при переполнении очереди входящих сообщений.
+     * Если true - читатель перестает читать сокет, пока очередь не освободится,
+     * иначе лишние сообщения отбрасываются.
+     */
+    public boolean isBackpressure() {
+        return Boolean.parseBoolean(get("chat.server.dispatch.backpressure", "true").trim());
+    }
+
+    /**
+     * Наибольшая длина очереди исходящих сообщений одного клиента.
+     */
+    public int getOutboundQueueSize() {
+        return Math.max(1, getInt("chat.server.out.queue", 1024));
+    }
+
+    /**
+     * Политика для клиентов, не успевающих забирать сообщения (drop_oldest, coalesce, disconnect).
+     * @throws IllegalArgumentException Политика не известна.
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        String value = get("chat.server.out.policy", SlowConsumerPolicy.DISCONNECT.name()).trim();
+        try {
+            return SlowConsumerPolicy.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw badValue("out.policy", value, "drop_oldest, coalesce, disconnect");
+        }
+    }
+
+    /**
+     * Допустимое время ожидания сообщения в очереди клиента (мс), для политики disconnect.
+     */
+    public long getMaxLagMillis() {
+        return Math.max(1, getInt("chat.server.out.lag", 10000));
+    }
+
+    /**
+     * Наибольший объем (в байтах) пачки исходящих сообщений, отправляемой одной записью в сокет.
+     */
+    public int getBatchSize() {
+        return Math.max(256, getInt("chat.server.out.batch", 64 * 1024));
+    }
+
+    /**
+     * Сколько писатель ждет следующих сообщений, прежде чем отправить пачку (мкс).
+     * 0 - отправлять сразу все, что уже накопилось в очереди.
+     */
+    public long getLingerMicros() {
+        return Math.max(0, getInt("chat.server.out.linger", 0));
+    }
+
+    /**
+     * Настройки сокетов клиентов (chat.server.tcp.nodelay, sndbuf, rcvbuf).
+     */
+    public TcpOptions getTcpOptions() {
+        return TcpOptions.of(this::get, "chat.server.tcp.");
+    }
+
+    /**
+     * Вести ли журнал сообщений на диске (по умолчанию нет: без настроек сервер файлов не создает).
+     */
+    public boolean isLogEnabled() {
+        return Boolean.parseBoolean(get("chat.server.log", "false").trim());
+    }
+
+    /**
+     * Каталог журнала сообщений.
+     */
+    public Path getLogDir() {
+        return Path.of(get("chat.server.log.dir", "chat-log").trim());
+    }
+
+    /**
+     * Размер сегмента журнала (байт), после которого начинается новый.
+     */
+    public long getLogSegmentSize() {
+        return getLong("chat.server.log.segment", 64L * 1024 * 1024);
+    }
+
+    /**
+     * Интервал сброса журнала на диск (мс): 0 - после каждой записи, -1 - не сбрасывать (оставить ОС).
+     */
+    public long getLogSyncMillis() {
+        return getLong("chat.server.log.fsync", 1000);
+    }
+
+    /**
+     * Срок хранения сегментов журнала (часов), 0 - не ограничен.
+     */
+    public long getLogRetentionHours() {
+        return getLong("chat.server.log.retention", 7 * 24);
+    }
+
+    /**
+     * Наибольший объем журнала (байт), 0 - не ограничен.
+     */
+    public long getLogRetentionBytes() {
+        return getLong("chat.server.log.retention.bytes", 0);
+    }
+
+    /**
+     * Длина очереди сообщений, ожидающих записи в журнал.
+     */
+    public int getLogQueueSize() {
+        return Math.max(1, getInt("chat.server.log.queue", 64 * 1024));
+    }
+
+    /**
+     * Сколько последних сообщений держать в памяти для быстрой выдачи истории.
+     */
+    public int getHistorySize() {
+        return Math.max(1, getInt("chat.server.history.ring", 1024));
+    }
+
+    /**
+     * Наибольшее число сообщений истории, отправляемых при входе (0 - не отправлять).
+     */
+    public int getReplayCount() {
+        return Math.max(0, getInt("chat.server.history.replay", 50));
+    }
+
+    /**
+     * Хранить ли личные сообщения для пользователей, которых нет в сети.
+     */
+    public boolean isMailboxEnabled() {
+        return Boolean.parseBoolean(get("chat.server.mailbox", "true").trim());
+    }
+
+    /**
+     * Наибольшее число сообщений в ящике одного пользователя.
+     */
+    public int getMailboxUserMessages() {
+        return Math.max(1, getInt("chat.server.mailbox.messages", 100));
+    }
+
+    /**
+     * Наибольший объем ящика одного пользователя (байт).
+     */
+    public int getMailboxUserBytes() {
+        return Math.max(256, getInt("chat.server.mailbox.bytes", 64 * 1024));
+    }
+
+    /**
+     * Наибольший объем всех ящиков (байт) - в памяти и в файле.
+     */
+    public long getMailboxTotalBytes() {
+        return getLong("chat.server.mailbox.total", 64L * 1024 * 1024);
+    }
+
+    /**
+     * Срок хранения сообщения в ящике (часов), 0 - не ограничен.
+     */
+    public long getMailboxTtlHours() {
+        return getLong("chat.server.mailbox.ttl", 7 * 24);
+    }
+
+    /**
+     * Файл, в котором ящики хранятся между запусками сервера: заданный явно,
+     * либо mailbox.dat в каталоге журнала, если журнал ведется.
+     * @return null - ящики хранятся только в памяти.
+     */
+    public Path getMailboxFile() {
+        String file = get("chat.server.mailbox.file", null);
+        if (file != null)
+            return Path.of(file.trim());
+        return isLogEnabled() ? getLogDir().resolve("mailbox.dat") : null;
+    }
+
+    /**
+     * Сколько секунд ждать переподключения клиента, потерявшего связь (0 - не ждать).
+     * Все это время пользователь остается в сети, а сообщения для него копятся.
+     */
+    public long getSessionGraceSeconds() {
+        return Math.max(0, getLong("chat.server.session.grace", 30));
+    }
+
+    /**
+     * Наибольшее число сообщений, копящихся для клиента во время ожидания.
+     */
+    public int getSessionBufferSize() {
+        return Math.max(1, getInt("chat.server.session.buffer", 1000));
+    }
+
+    /**
+     * Через сколько секунд молчания клиента отправлять ему PING (0 - не отправлять).
+     */
+    public long getPingSeconds() {
+        return Math.max(0, getLong("chat.server.ping", 15));
+    }
+
+    /**
+     * Через сколько секунд молчания клиента разрывать соединение (0 - не разрывать).
+     * Должно быть больше интервала PING, чтобы живой клиент успел ответить.
+     */
+    public long getIdleTimeoutSeconds() {
+        return Math.max(0, getLong("chat.server.idle.timeout", 45));
+    }
+
+    /**
+     * Длительность тика таймера-колеса (мс): точность таймаутов.
+     */
+    public long getTimerTickMillis() {
+        return Math.max(1, getLong("chat.server.timer.tick", 100));
+    }
+
+    /**
+     * Локальный порт, на котором отдаются метрики (/metrics и /metrics.json; 0 - не отдавать).
+     */
+    public int getMetricsPort() {
+        return Math.max(0, getInt("chat.server.metrics.port", 0));
+    }
+
+    /**
+     * Через сколько секунд выводить метрики в консоль (0 - не выводить).
+     */
+    public long getMetricsDumpSeconds() {
+        return Math.max(0, getLong("chat.server.metrics.dump", 0));
+    }
+
+    /**
+     * Работа без графического интерфейса: консоль сервера пишется в файл.
+     */
+    public boolean isHeadless() {
+        return Boolean.parseBoolean(get("chat.server.headless", "false").trim());
+    }
+
+    /**
+     * Емкость кольца строк консоли (строки сверх нее, не успевшие выйти, теряются).
+     */
+    public int getConsoleRingSize() {
+        return Math.max(16, getInt("chat.server.console.ring", 16 * 1024));
+    }
+
+    /**
+     * Сколько строк хранит окно консоли (самые старые удаляются).
+     */
+    public int getConsoleLines() {
+        return Math.max(1, getInt("chat.server.console.lines", 5000));
+    }
+
+    /**
+     * Сколько раз в секунду окно консоли выводит новые строки.
+     */
+    public int getConsoleFps() {
+        return Math.min(60, Math.max(1, getInt("chat.server.console.fps", 10)));
+    }
+
+    /**
+     * Файл консоли в режиме без интерфейса.
+     */
+    public Path getConsoleFile() {
+        return Path.of(get("chat.server.console.file", "server.log").trim());
+    }
+
+    /**
+     * Размер файла консоли, после которого он переименовывается в .1 и начинается новый.
+     */
+    public long getConsoleFileSize() {
+        return Math.max(4096, getLong("chat.server.console.file.size", 10L * 1024 * 1024));
+    }
+
+    /**
+     * Сколько старых файлов консоли (.1, .2, ...) хранить.
+     */
+    public int getConsoleFileCount() {
+        return Math.max(0, getInt("chat.server.console.file.count", 5));
+    }
+
+    /**
+     * Разрешенные кодеки (через запятую, по убыванию предпочтения).
+     */
+    public byte[] getCodecs() {
+        String list = get("chat.server.codecs", null);
+        if (list == null)
+            return Codecs.all();
+        ByteArrayOutputStream ids = new ByteArrayOutputStream();
+        for (String name : list.split(",")) {
+            byte id = Codecs.idOf(name);
+            if (id != 0)
+                ids.write(id);
+        }
+        return ids.toByteArray();
+    }
+
+
+    public String get(String key, String def) {
+        return props.getProperty(key, def);
+    }
+
+    public void set(String key, String value) {
+        props.setProperty(key, value);
+    }
+
+    public int getInt(String key, int def) {
+        try {
+            return Integer.parseInt(get(key, "").trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public long getLong(String key, long def) {
+        try {
+            return Long.parseLong(get(key, "").trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+}
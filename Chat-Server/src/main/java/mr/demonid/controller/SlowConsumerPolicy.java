@@ -0,0 +1,10 @@
+package mr.demonid.controller;
+
+/**
+ * Что делать с клиентом, который не успевает забирать сообщения.
+ */
+public enum SlowConsumerPolicy {
+    DROP_OLDEST,    // выбрасывать самые старые сообщения из очереди
+    COALESCE,       // выбрасывать общие сообщения (личные сохраняются), потом сообщить, сколько пропущено
+    DISCONNECT      // отключать клиента при переполнении очереди или превышении допустимой задержки
+}
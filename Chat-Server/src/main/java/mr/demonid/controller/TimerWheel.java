@@ -0,0 +1,162 @@
+package mr.demonid.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Таймер-колесо (hashed timing wheel) для большого числа редких задач:
+ * проверок соединений на простой, ожидания переподключения и т.п.
+ * <p>
+ * Колесо - кольцо ячеек, каждая ячейка соответствует одному тику.
+ * Задача попадает в ячейку (срок / тик) % размер и хранит число полных оборотов,
+ * которые нужно пропустить. Постановка и отмена задачи - O(1) при любом числе задач,
+ * а поток таймера на каждом тике просматривает только одну ячейку.
+ * Точность - один тик, чего для таймаутов в секундах с запасом хватает.
+ * Задачи выполняются в потоке таймера, поэтому должны быть короткими.
+ */
+public class TimerWheel {
+
+    /**
+     * Запланированная задача.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;                    // в тиках от запуска таймера
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Отмена задачи (если она еще не выполнена). Из ячейки задача уйдет при ближайшем ее просмотре.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private long tick;                                  // только поток таймера
+    private volatile Thread thread;
+
+
+    /**
+     * @param tickMillis Длительность тика (мс).
+     * @param size       Число ячеек (округляется вверх до степени двойки).
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMillis, int size) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int n = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.wheel = (List<Timeout>[]) new List<?>[n];
+        for (int i = 0; i < n; i++)
+            wheel[i] = new ArrayList<>();
+        this.mask = n - 1;
+    }
+
+    public void start(String name)
+    {
+        Thread t = new Thread(this::run, name);
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Остановка таймера; невыполненные задачи отбрасываются.
+     */
+    public void stop()
+    {
+        Thread t = thread;
+        thread = null;
+        if (t != null)
+            t.interrupt();
+    }
+
+    /**
+     * Постановка задачи (из любого потока).
+     * @param delay Задержка; задача выполнится не раньше, чем через нее, и не позже, чем через тик после.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        long ticks = (System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)) + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(task, ticks);
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run()
+    {
+        while (thread == Thread.currentThread())
+        {
+            long next = startTime + (tick + 1) * tickNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0)
+            {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            tick++;
+            transferAdded();
+            expire(wheel[(int) (tick & mask)]);
+        }
+    }
+
+    /**
+     * Раскладка новых задач по ячейкам.
+     */
+    private void transferAdded()
+    {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null)
+        {
+            if (timeout.cancelled)
+                continue;
+            long deadline = Math.max(timeout.deadline, tick);  // опоздавшие - в текущую ячейку
+            timeout.rounds = (deadline - tick) / wheel.length;
+            wheel[(int) (deadline & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Выполнение задач ячейки, срок которых наступил на этом обороте.
+     */
+    private void expire(List<Timeout> slot)
+    {
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++)
+        {
+            Timeout timeout = slot.get(i);
+            if (timeout.cancelled)
+                continue;
+            if (timeout.rounds > 0)
+            {
+                timeout.rounds--;
+                slot.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                System.out.println("Timer task error! " + e.getMessage());
+            }
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+}
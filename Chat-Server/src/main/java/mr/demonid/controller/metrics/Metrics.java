@@ -0,0 +1,121 @@
+package mr.demonid.controller.metrics;
+
+import mr.demonid.commons.Histogram;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Метрики сервера: гистограммы и датчики (значения, снимаемые при выводе).
+ * <p>
+ * Горячие пути берут гистограммы один раз (в статические поля)
+ * и дальше только пишут в них, без поиска по имени и без блокировок.
+ * Вывод - простым текстом (по строке на метрику) или в JSON.
+ */
+public class Metrics {
+
+    private static final Metrics instance = new Metrics();
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+
+    private Metrics() {}
+
+    public static Metrics getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Гистограмма времени (нс, выводится в мкс).
+     */
+    public Histogram timer(String name)
+    {
+        return histograms.computeIfAbsent(name, k -> new Histogram(true));
+    }
+
+    /**
+     * Гистограмма безразмерных значений (размеров, количеств).
+     */
+    public Histogram histogram(String name)
+    {
+        return histograms.computeIfAbsent(name, k -> new Histogram(false));
+    }
+
+    /**
+     * Регистрация датчика. Повторная регистрация с тем же именем заменяет прежний.
+     */
+    public void gauge(String name, LongSupplier value)
+    {
+        gauges.put(name, value);
+    }
+
+    public String toText()
+    {
+        StringBuilder sb = new StringBuilder();
+        gauges.forEach((name, value) -> sb.append("gauge ").append(name).append(' ').append(read(value)).append('\n'));
+        histograms.forEach((name, histogram) -> {
+            Histogram.Snapshot s = histogram.snapshot();
+            String unit = histogram.isNanos() ? "us" : "";
+            sb.append("histogram ").append(name).append(" count=").append(s.getCount())
+                    .append(" mean=").append(format(scale(histogram, s.getMean()))).append(unit);
+            for (int i = 0; i < PERCENTILES.length; i++)
+                sb.append(' ').append(PERCENTILE_NAMES[i]).append('=')
+                        .append(format(scale(histogram, s.percentile(PERCENTILES[i])))).append(unit);
+            sb.append(" max=").append(format(scale(histogram, s.getMax()))).append(unit).append('\n');
+        });
+        return sb.toString();
+    }
+
+    public String toJson()
+    {
+        StringBuilder sb = new StringBuilder("{\"gauges\":{");
+        String sep = "";
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet())
+        {
+            sb.append(sep).append('"').append(e.getKey()).append("\":").append(read(e.getValue()));
+            sep = ",";
+        }
+        sb.append("},\"histograms\":{");
+        sep = "";
+        for (Map.Entry<String, Histogram> e : histograms.entrySet())
+        {
+            Histogram histogram = e.getValue();
+            Histogram.Snapshot s = histogram.snapshot();
+            sb.append(sep).append('"').append(e.getKey()).append("\":{\"unit\":\"")
+                    .append(histogram.isNanos() ? "us" : "").append("\",\"count\":").append(s.getCount())
+                    .append(",\"mean\":").append(format(scale(histogram, s.getMean())));
+            for (int i = 0; i < PERCENTILES.length; i++)
+                sb.append(",\"").append(PERCENTILE_NAMES[i]).append("\":")
+                        .append(format(scale(histogram, s.percentile(PERCENTILES[i]))));
+            sb.append(",\"max\":").append(format(scale(histogram, s.getMax()))).append('}');
+            sep = ",";
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static long read(LongSupplier value)
+    {
+        try {
+            return value.getAsLong();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static double scale(Histogram histogram, double value)
+    {
+        return histogram.isNanos() ? value / 1000.0 : value;
+    }
+
+    private static String format(double value)
+    {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+}
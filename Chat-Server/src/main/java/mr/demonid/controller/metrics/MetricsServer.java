@@ -0,0 +1,52 @@
+package mr.demonid.controller.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Отдача метрик по HTTP на локальном адресе:
+ * /metrics - текст, /metrics.json - JSON.
+ * Наружу порт не открывается, снимать метрики можно только с самой машины.
+ */
+public class MetricsServer {
+
+    private final HttpServer server;
+
+
+    public MetricsServer(int port, Metrics metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics.json", ex -> reply(ex, "application/json", metrics::toJson));
+        server.createContext("/metrics", ex -> reply(ex, "text/plain", metrics::toText));
+    }
+
+    public void start()
+    {
+        server.start();
+        System.out.println("Server: metrics on http://" + server.getAddress().getHostString()
+                + ":" + server.getAddress().getPort() + "/metrics");
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+    }
+
+    private static void reply(HttpExchange exchange, String type, Supplier<String> body) throws IOException
+    {
+        try (exchange) {
+            byte[] bytes = body.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package mr.demonid.controller.nio;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Histogram;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+import mr.demonid.commons.codec.Handshake;
+import mr.demonid.commons.codec.MessageCodec;
+import mr.demonid.commons.codec.SharedFrame;
+import mr.demonid.controller.ClientManager;
+import mr.demonid.controller.Connection;
+import mr.demonid.controller.OutboundQueue;
+import mr.demonid.controller.ServerConfig;
+import mr.demonid.controller.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Неблокирующее соединение с клиентом.
+ * Чтение и запись выполняются потоком реактора, которому принадлежит соединение,
+ * а sendMessage() может вызываться из любого потока.
+ * Если очередь входящих сообщений переполнена, соединение снимает интерес к OP_READ
+ * и хранит непринятое сообщение, пока диспетчер не сообщит о свободном месте.
+ */
+public class NioClient implements Connection {
+
+    private enum State {HANDSHAKE, LOGIN, ACTIVE, REJECTED}
+
+    private static final int MAX_BUFFER = 2 * 1024 * 1024;
+    private static final int MAX_GATHER = 256;          // буферов в одной записи (меньше IOV_MAX)
+    private static final Histogram DECODE_TIME = Metrics.getInstance().timer("inbound.decode");
+    private static final Histogram FLUSH_TIME = Metrics.getInstance().timer("outbound.flush");
+
+    private final Reactor reactor;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final SocketAddress address;
+
+    private ByteBuffer readBuffer;
+    private final int batchSize = ServerConfig.getInstance().getBatchSize();
+    private final OutboundQueue outbound = ClientManager.getInstance().createOutboundQueue();
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();    // только поток реактора
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean lost;                                      // связь оборвалась
+    private volatile long lastRead = System.nanoTime();
+
+    private Message pending;                                            // только поток реактора
+    private volatile boolean registering;                               // вход еще регистрируется
+    private volatile State state = State.HANDSHAKE;
+    private volatile MessageCodec codec;
+    private volatile Account account;
+
+
+    NioClient(Reactor reactor, SocketChannel channel, SelectionKey key, int bufferSize) {
+        this.reactor = reactor;
+        this.channel = channel;
+        this.key = key;
+        this.address = getAddress(channel);
+        this.readBuffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    @Override
+    public Account getAccount() {
+        return account;
+    }
+
+    /**
+     * Отправка сообщения клиенту: постановка в очередь,
+     * а саму запись выполнит реактор.
+     */
+    @Override
+    public void send(SharedFrame frame)
+    {
+        if (closed.get() || state != State.ACTIVE)
+            return;
+        if (outbound.offer(frame))
+        {
+            scheduleFlush();
+        } else {
+            System.out.println("Client " + account.getName() + " is too slow, disconnect.");
+            close();
+        }
+    }
+
+    @Override
+    public void sendPriority(SharedFrame frame)
+    {
+        if (closed.get() || state != State.ACTIVE)
+            return;
+        outbound.offerPriority(frame);
+        scheduleFlush();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return address;
+    }
+
+    /**
+     * Отказ в подключении (вызывается при регистрации, из любого потока;
+     * сама отправка причины выполняется реактором).
+     */
+    @Override
+    public void reject(String reason)
+    {
+        state = State.REJECTED;
+        reactor.execute(() -> {
+            try {
+                writing.add(ByteBuffer.wrap(codec.encode(new Message(ClientManager.SERVER, null, reason))));
+                key.interestOps(SelectionKey.OP_WRITE);     // больше ничего не читаем
+                flush();
+            } catch (Exception e) {
+                close();
+            }
+        });
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return outbound.size();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return !closed.get();
+    }
+
+    @Override
+    public long getLastReadNanos()
+    {
+        return lastRead;
+    }
+
+    @Override
+    public void timeout()
+    {
+        lost();
+    }
+
+    @Override
+    public boolean isResumable()
+    {
+        return lost && account != null && state == State.ACTIVE;
+    }
+
+    @Override
+    public List<SharedFrame> takeUnsent()
+    {
+        return outbound.closeAndDrain();
+    }
+
+    @Override
+    public void close()
+    {
+        if (closed.compareAndSet(false, true))
+        {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            // до закрытия очереди: неотправленное может перейти в сохраненный сеанс
+            if (account != null)
+                ClientManager.getInstance().unregisterUser(this);
+            outbound.close();
+        }
+    }
+
+    /**
+     * Закрытие из-за обрыва связи: сеанс клиента сохраняется для переподключения.
+     */
+    private void lost()
+    {
+        lost = true;
+        close();
+    }
+
+    /**
+     * Канал готов к чтению (вызывается реактором).
+     */
+    void onReadable()
+    {
+        try {
+            int n = channel.read(readBuffer);
+            if (n < 0)
+            {
+                lost();                                     // на том конце разорвали связь
+                return;
+            }
+            lastRead = System.nanoTime();
+            readBuffer.flip();
+            boolean progress = process();
+            readBuffer.compact();
+            if (!progress && !readBuffer.hasRemaining())
+                growBuffer();
+        } catch (Exception e) {
+            lost();
+        }
+    }
+
+    /**
+     * Канал готов к записи (вызывается реактором).
+     */
+    void onWritable()
+    {
+        flush();
+    }
+
+    /**
+     * Разбор всех полностью принятых кадров.
+     * @return true - если удалось разобрать хотя бы один кадр.
+     */
+    private boolean process() throws IOException
+    {
+        boolean progress = false;
+        while (!closed.get())
+        {
+            switch (state)
+            {
+                case HANDSHAKE -> {
+                    byte[] offer = Handshake.parseOffer(readBuffer);
+                    if (offer == null)
+                        return progress;
+                    byte id = Handshake.choose(offer, ServerConfig.getInstance().getCodecs());
+                    writing.add(ByteBuffer.wrap(Handshake.answer(id)));
+                    scheduleFlush();
+                    codec = ClientManager.getInstance().createCodec(id);
+                    if (codec == null)
+                        throw new IOException("No common codec!");
+                    state = State.LOGIN;
+                }
+                case LOGIN -> {
+                    Message msg = codec.decode(readBuffer);
+                    if (msg == null)
+                        return progress;
+                    if (msg.getType() != MessageType.LOGIN)
+                        throw new IOException("Unexpected body connection message!");
+                    account = new Account(msg.getAuthorName(), "", "", "");     // пароль дальше не храним
+                    // история может читаться с диска: регистрация идет не в реакторе,
+                    // а следующие кадры ждут ее окончания (ACTIVE - чтобы принимать историю и почту)
+                    registering = true;
+                    state = State.ACTIVE;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    ClientManager.getInstance().registerUserAsync(this, ClientManager.getInstance().lastSeenOf(msg), msg.getMessage(),
+                            ok -> reactor.execute(() -> onRegistered(ok)));
+                    return true;
+                }
+                case ACTIVE -> {
+                    if (pending != null || registering)
+                        return progress;                    // ждем места в очереди диспетчера или окончания входа
+                    long start = System.nanoTime();
+                    Message msg = codec.decode(readBuffer);
+                    if (msg == null)
+                        return progress;
+                    DECODE_TIME.recordSince(start);
+                    if (msg.getMessage().isEmpty())
+                    {
+                        close();                            // пользователь вышел сам
+                        return progress;
+                    }
+                    if (msg.getType() != MessageType.LOGIN && msg.getType() != MessageType.PING
+                            && msg.getType() != MessageType.PONG)
+                        dispatch(new Message(account, msg.getTargetName(), msg.getMessage(), msg.getType()));
+                }
+                case REJECTED -> {
+                    return progress;
+                }
+            }
+            progress = true;
+        }
+        return progress;
+    }
+
+    /**
+     * Передача сообщения диспетчеру. Если его очередь переполнена,
+     * приостанавливаем чтение до освобождения места.
+     */
+    private void dispatch(Message message)
+    {
+        if (!ClientManager.getInstance().putMessageFromClient(message, this::onDispatchReady))
+        {
+            pending = message;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * В очереди диспетчера появилось место (вызывается потоком шарда).
+     */
+    private void onDispatchReady()
+    {
+        reactor.execute(this::resumeReading);
+    }
+
+    /**
+     * Регистрация окончена (в потоке реактора): разбираем кадры, пришедшие
+     * за это время, и возобновляем чтение. При отказе причину уже отправляет reject().
+     */
+    private void onRegistered(boolean ok)
+    {
+        registering = false;
+        if (ok && !closed.get() && state == State.ACTIVE)
+            readBuffered();
+    }
+
+    /**
+     * Повторная передача отложенного сообщения и возобновление чтения.
+     */
+    private void resumeReading()
+    {
+        Message message = pending;
+        if (message == null || closed.get() || state != State.ACTIVE)
+            return;
+        pending = null;
+        dispatch(message);
+        if (pending != null)
+            return;
+        readBuffered();
+    }
+
+    /**
+     * Разбор кадров, уже накопленных в буфере, и возобновление чтения сокета.
+     */
+    private void readBuffered()
+    {
+        try {
+            readBuffer.flip();
+            process();
+            readBuffer.compact();
+            if (pending == null)
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } catch (Exception e) {
+            lost();
+        }
+    }
+
+    private void scheduleFlush()
+    {
+        if (flushScheduled.compareAndSet(false, true))
+            reactor.execute(this::flush);
+    }
+
+    /**
+     * Запись накопленных кадров, пока сокет их принимает.
+     * Кадры из очереди собираются в пачку (не больше batchSize байт)
+     * и уходят одной записью с набором буферов (gathering write).
+     * Если сокет заполнен, ждем OP_WRITE.
+     */
+    private void flush()
+    {
+        flushScheduled.set(false);
+        if (closed.get())
+            return;
+        try {
+            while (true)
+            {
+                fillBatch();
+                if (writing.isEmpty())
+                {
+                    if (state == State.REJECTED)
+                    {
+                        close();                            // причина отказа отправлена
+                        return;
+                    }
+                    break;
+                }
+                long start = System.nanoTime();
+                channel.write(writing.toArray(ByteBuffer[]::new));
+                FLUSH_TIME.recordSince(start);
+                while (!writing.isEmpty() && !writing.peek().hasRemaining())
+                    writing.poll();
+                if (!writing.isEmpty())
+                {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (Exception e) {
+            lost();
+        }
+    }
+
+    /**
+     * Перенос кадров из очереди в список на запись, пока пачка не наберет batchSize байт.
+     */
+    private void fillBatch() throws IOException
+    {
+        int bytes = 0;
+        for (ByteBuffer buffer : writing)
+            bytes += buffer.remaining();
+        while (bytes < batchSize && writing.size() < MAX_GATHER && state != State.REJECTED)
+        {
+            SharedFrame frame = outbound.poll();
+            if (frame == null)
+                return;
+            // служебная часть зависит от состояния кодека, но пишет только реактор
+            byte[] prefix = codec.encodePrefix(frame);
+            if (prefix != null)
+            {
+                writing.add(ByteBuffer.wrap(prefix));
+                bytes += prefix.length;
+            }
+            ByteBuffer body = frame.buffer(codec);
+            writing.add(body);
+            bytes += body.remaining();
+        }
+    }
+
+    private static SocketAddress getAddress(SocketChannel channel)
+    {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void growBuffer() throws IOException
+    {
+        if (readBuffer.capacity() >= MAX_BUFFER)
+            throw new IOException("Frame too large!");
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_BUFFER, readBuffer.capacity() * 2));
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        readBuffer = bigger;
+    }
+}
@@ -0,0 +1,118 @@
+package mr.demonid.controller.nio;
+
+import mr.demonid.commons.TcpOptions;
+import mr.demonid.controller.ClientManager;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Поток-реактор: обслуживает множество неблокирующих соединений через один Selector.
+ * Все операции с ключами выполняются только в потоке реактора,
+ * остальные потоки передают их через execute().
+ */
+public class Reactor extends Thread {
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final int bufferSize;
+    private final TcpOptions options;
+
+
+    public Reactor(String name, int bufferSize, TcpOptions options) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+        this.bufferSize = bufferSize;
+        this.options = options;
+        setDaemon(true);
+    }
+
+    /**
+     * Передача нового соединения реактору.
+     */
+    public void register(SocketChannel channel)
+    {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                options.apply(channel.socket());
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioClient client = new NioClient(this, channel, key, bufferSize);
+                key.attach(client);
+                ClientManager.getInstance().watch(client);     // и до входа: клиент может молчать с самого начала
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    /**
+     * Выполнение задачи в потоке реактора.
+     */
+    public void execute(Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted() && selector.isOpen())
+            {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext())
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioClient client = (NioClient) key.attachment();
+                    if (key.isValid() && key.isReadable())
+                        client.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        client.onWritable();
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Reactor error! " + e.getMessage());
+        }
+        closeAll();
+        System.out.println("Server: " + getName() + " stopped.");
+    }
+
+    /**
+     * Остановка реактора с закрытием всех его соединений.
+     */
+    public void close()
+    {
+        interrupt();
+        selector.wakeup();
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+    }
+
+    private void closeAll()
+    {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioClient client)
+                    client.close();
+                else
+                    key.channel().close();
+            }
+            selector.close();
+        } catch (Exception ignored) {}
+    }
+}
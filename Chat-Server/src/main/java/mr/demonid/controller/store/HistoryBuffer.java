@@ -0,0 +1,84 @@
+package mr.demonid.controller.store;
+
+import mr.demonid.commons.codec.SharedFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Последние сообщения в памяти (кольцевой буфер по смещению).
+ * Сообщение со смещением N лежит в ячейке N % capacity, поэтому добавление
+ * и выборка по смещению не требуют блокировок, а шарды диспетчера
+ * могут добавлять сообщения в любом порядке.
+ * Хранятся уже готовые к отправке кадры, поэтому при массовом входе клиентов
+ * каждое сообщение истории кодируется только один раз.
+ */
+public class HistoryBuffer {
+
+    private final AtomicReferenceArray<SharedFrame> ring;
+    private final AtomicLong first = new AtomicLong(-1);    // первое добавленное смещение
+    private final AtomicLong next = new AtomicLong();       // наибольшее добавленное смещение + 1
+
+
+    public HistoryBuffer(int capacity) {
+        this.ring = new AtomicReferenceArray<>(Math.max(1, capacity));
+    }
+
+    /**
+     * Добавление сообщения (смещение уже должно быть присвоено).
+     */
+    public void add(SharedFrame frame)
+    {
+        long offset = frame.getMessage().getOffset();
+        if (offset < 0)
+            return;
+        ring.set((int) (offset % ring.length()), frame);
+        first.compareAndSet(-1, offset);
+        next.accumulateAndGet(offset + 1, Math::max);
+    }
+
+    /**
+     * Емкость (сколько последних сообщений хранится).
+     */
+    public int getCapacity()
+    {
+        return ring.length();
+    }
+
+    /**
+     * Наименьшее смещение, которое еще может быть в буфере
+     * (все, что раньше, искать нужно в журнале).
+     */
+    public long getFirstOffset()
+    {
+        long f = first.get();
+        return f < 0 ? Long.MAX_VALUE : Math.max(f, next.get() - ring.length());
+    }
+
+    /**
+     * Сообщения из диапазона [from, to), по возрастанию смещений.
+     * Вытесненные и еще не добавленные сообщения пропускаются.
+     */
+    public List<SharedFrame> range(long from, long to)
+    {
+        List<SharedFrame> res = new ArrayList<>();
+        from = Math.max(from, getFirstOffset());
+        for (long offset = from; offset < to; offset++)
+        {
+            SharedFrame frame = ring.get((int) (offset % ring.length()));
+            if (frame != null && frame.getMessage().getOffset() == offset)
+                res.add(frame);
+        }
+        return res;
+    }
+
+    public void clear()
+    {
+        for (int i = 0; i < ring.length(); i++)
+            ring.set(i, null);
+        first.set(-1);
+        next.set(0);
+    }
+}
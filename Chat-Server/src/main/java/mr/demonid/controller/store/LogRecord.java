@@ -0,0 +1,164 @@
+package mr.demonid.controller.store;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Запись журнала сообщений.
+ * <pre>
+ * [int длина остатка][int CRC32 остатка][long смещение][long время, мс][byte тип]
+ * [строка автор][строка адресат][строка текст]
+ * строка: [int длина в байтах, -1 для null][UTF-8]
+ * </pre>
+ * Контрольная сумма позволяет при запуске отбросить недописанный хвост сегмента.
+ */
+public class LogRecord {
+
+    static final int HEADER = Integer.BYTES * 2;            // длина и CRC
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    private final long offset;
+    private final long time;
+    private final Message message;
+
+
+    public LogRecord(long offset, long time, Message message) {
+        this.offset = offset;
+        this.time = time;
+        this.message = message;
+    }
+
+    /**
+     * Номер сообщения в журнале (растет на единицу с каждой записью).
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Размер записи в байтах (оценка сверху).
+     */
+    int size() {
+        return HEADER + Long.BYTES * 2 + 1 + sizeOf(message.getAuthorName())
+                + sizeOf(message.getTargetName()) + sizeOf(message.getMessage());
+    }
+
+    /**
+     * Запись в буфер (места в нем должно хватать).
+     */
+    void writeTo(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.position(start + HEADER);
+        buffer.putLong(offset);
+        buffer.putLong(time);
+        buffer.put((byte) message.getType().ordinal());
+        putString(buffer, message.getAuthorName());
+        putString(buffer, message.getTargetName());
+        putString(buffer, message.getMessage());
+        int end = buffer.position();
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(start + HEADER, end - start - HEADER));
+        buffer.putInt(start, end - start - Integer.BYTES);
+        buffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+    }
+
+    /**
+     * Чтение записи с текущей позиции буфера.
+     * @return Запись, или null, если дальше нет целой и неповрежденной записи
+     *         (позиция буфера при этом не меняется).
+     */
+    static LogRecord readFrom(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER)
+            return null;
+        int len = buffer.getInt(start);
+        if (len < Integer.BYTES + Long.BYTES * 2 + 1 || len > MAX_SIZE || buffer.remaining() < len + Integer.BYTES)
+            return null;
+        ByteBuffer body = buffer.slice(start + HEADER, len - Integer.BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(start + Integer.BYTES))
+            return null;
+        try {
+            long offset = body.getLong();
+            long time = body.getLong();
+            int type = body.get();
+            String author = getString(body);
+            String target = getString(body);
+            String text = getString(body);
+            if (type < 0 || type >= MessageType.values().length)
+                return null;
+            buffer.position(start + Integer.BYTES + len);
+            Account from = new Account(author == null ? "" : author, "", "", "");
+            return new LogRecord(offset, time, new Message(from, target, text, MessageType.values()[type]));
+        } catch (RuntimeException e) {
+            return null;                                    // испорченная запись
+        }
+    }
+
+    /**
+     * Не хватает ли в буфере данных для очередной записи (в отличие от испорченной записи).
+     */
+    static boolean isIncomplete(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER)
+            return true;
+        int len = buffer.getInt(buffer.position());
+        return len >= Integer.BYTES + Long.BYTES * 2 + 1 && len <= MAX_SIZE && buffer.remaining() < len + Integer.BYTES;
+    }
+
+    private static int sizeOf(String s) {
+        return Integer.BYTES + (s == null ? 0 : utf8Length(s));
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        if (s == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int len = buffer.getInt();
+        if (len < 0)
+            return null;
+        byte[] bytes = new byte[len];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Длина строки в UTF-8 без создания массива.
+     */
+    private static int utf8Length(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch < 0x80)
+                len++;
+            else if (ch < 0x800)
+                len += 2;
+            else if (Character.isHighSurrogate(ch) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else
+                len += 3;
+        }
+        return len;
+    }
+}
@@ -0,0 +1,270 @@
+package mr.demonid.controller.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Сегмент журнала: файл с записями, начиная с заданного смещения.
+ * Имя файла - смещение первой записи, поэтому сегменты упорядочены по имени.
+ * Запись идет только в конец, через FileChannel.
+ * Для поиска записи по смещению ведется разреженный индекс в памяти:
+ * одна пара (смещение, позиция) примерно на каждые INDEX_INTERVAL байт файла,
+ * поэтому чтение с заданного смещения начинается почти с нужного места.
+ */
+public class LogSegment {
+
+    static final String SUFFIX = ".log";
+    private static final int READ_CHUNK = 64 * 1024;
+    private static final int INDEX_INTERVAL = 4096;
+
+    private final Path path;
+    private final long baseOffset;
+    private final FileChannel channel;
+    private volatile long size;                         // пишет только поток-писатель журнала
+    private long nextOffset;
+
+    private final ReentrantLock indexLock = new ReentrantLock();
+    private long[] indexOffsets = new long[16];
+    private long[] indexPositions = new long[16];
+    private int indexCount;
+
+
+    private LogSegment(Path path, long baseOffset, FileChannel channel) {
+        this.path = path;
+        this.baseOffset = baseOffset;
+        this.channel = channel;
+        this.nextOffset = baseOffset;
+    }
+
+    /**
+     * Создание нового сегмента.
+     */
+    static LogSegment create(Path dir, long baseOffset) throws IOException {
+        Path path = dir.resolve(fileName(baseOffset));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+        return new LogSegment(path, baseOffset, channel);
+    }
+
+    /**
+     * Открытие существующего сегмента с проверкой записей.
+     * Недописанный (или поврежденный) хвост после последней целой записи отрезается.
+     */
+    static LogSegment open(Path path) throws IOException {
+        long base = parseBaseOffset(path.getFileName().toString());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        LogSegment segment = new LogSegment(path, base, channel);
+        try {
+            segment.recover();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return segment;
+    }
+
+    /**
+     * Дописывание пачки записей одной операцией.
+     * @param lastOffset Смещение последней записи в пачке.
+     */
+    void append(ByteBuffer batch, long lastOffset) throws IOException {
+        long pos = size;
+        while (batch.hasRemaining())
+            pos += channel.write(batch, pos);
+        size = pos;
+        nextOffset = lastOffset + 1;
+    }
+
+    /**
+     * Учет записи в разреженном индексе (вызывается для каждой записи по порядку).
+     * @param position Позиция записи в файле.
+     */
+    void index(long offset, long position) {
+        indexLock.lock();
+        try {
+            if (indexCount > 0 && position - indexPositions[indexCount - 1] < INDEX_INTERVAL)
+                return;
+            if (indexCount == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexOffsets[indexCount] = offset;
+            indexPositions[indexCount] = position;
+            indexCount++;
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Чтение записей начиная с заданного смещения (может вызываться из любого потока).
+     * @param from  Первое нужное смещение.
+     * @param to    Смещение, на котором остановиться (не включая).
+     * @param max   Наибольшее число записей.
+     * @param out   Куда добавлять прочитанное.
+     */
+    void read(long from, long to, int max, List<LogRecord> out) throws IOException {
+        long end = size;
+        long pos = floorPosition(from);
+        ByteBuffer buffer = ByteBuffer.allocate(READ_CHUNK);
+        while (pos < end && out.size() < max)
+        {
+            int n = channel.read(buffer, pos + buffer.position());
+            if (n < 0)
+                return;
+            buffer.flip();
+            LogRecord record;
+            while ((record = LogRecord.readFrom(buffer)) != null)
+            {
+                if (record.getOffset() >= to)
+                    return;
+                if (record.getOffset() >= from)
+                {
+                    out.add(record);
+                    if (out.size() >= max)
+                        return;
+                }
+            }
+            if (!LogRecord.isIncomplete(buffer))
+                return;                                     // сюда не должны попасть: записи проверены
+            pos += buffer.position();
+            buffer.compact();
+            if (!buffer.hasRemaining())
+            {
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+    }
+
+    /**
+     * Позиция ближайшей проиндексированной записи со смещением не больше заданного.
+     */
+    private long floorPosition(long offset) {
+        indexLock.lock();
+        try {
+            int i = Arrays.binarySearch(indexOffsets, 0, indexCount, offset);
+            if (i < 0)
+                i = -i - 2;                                 // последний меньший
+            return i < 0 ? 0 : indexPositions[i];
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Сброс записанного на диск.
+     */
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * Смещение, которое получит следующая запись.
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() throws IOException {
+        return Files.getLastModifiedTime(path).toMillis();
+    }
+
+    static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        if (!name.endsWith(SUFFIX))
+            return false;
+        try {
+            parseBaseOffset(name);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static String fileName(long baseOffset) {
+        return String.format("%020d%s", baseOffset, SUFFIX);
+    }
+
+    private static long parseBaseOffset(String name) throws IOException {
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (RuntimeException e) {
+            throw new IOException("Bad segment name: " + name);
+        }
+    }
+
+    /**
+     * Проход по записям сегмента: находим конец последней целой записи
+     * и смещение для следующей.
+     */
+    private void recover() throws IOException {
+        long length = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_CHUNK);
+        long readPos = 0;
+        long valid = 0;
+        while (true)
+        {
+            int n = channel.read(buffer, readPos);
+            if (n > 0)
+                readPos += n;
+            buffer.flip();
+            LogRecord record;
+            long start = readPos - buffer.remaining();
+            while ((record = LogRecord.readFrom(buffer)) != null)
+            {
+                index(record.getOffset(), start);
+                nextOffset = record.getOffset() + 1;
+                start = readPos - buffer.remaining();
+            }
+            valid = start;
+            boolean incomplete = LogRecord.isIncomplete(buffer);
+            buffer.compact();
+            if (n < 0 || !incomplete)
+                break;                                      // конец файла или испорченная запись
+            if (!buffer.hasRemaining())
+            {
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+        size = valid;
+        if (size < length)
+        {
+            System.out.println("MessageLog: truncate " + path.getFileName() + " from " + length + " to " + size);
+            channel.truncate(size);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package mr.demonid.controller.store;
+
+import mr.demonid.commons.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Журнал сообщений: файлы-сегменты, в которые записи только дописываются.
+ * <p>
+ * append() лишь присваивает сообщению смещение и ставит его в очередь,
+ * поэтому не задерживает обработку сообщений. Отдельный поток-писатель
+ * забирает из очереди все накопившееся и записывает одной операцией
+ * (групповая фиксация), а fsync выполняет не чаще заданного интервала.
+ * Когда сегмент достигает заданного размера, начинается новый,
+ * а старые удаляются по сроку хранения или общему объему (проверяется и раз в минуту).
+ * Чтение (read) возможно из любого потока и идет только по уже записанному.
+ */
+public class MessageLog {
+
+    private static final int MAX_BATCH = 4096;                  // записей в одной фиксации
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);   // проверка закрытия
+    private static final long RETENTION_CHECK = TimeUnit.MINUTES.toNanos(1);    // срок хранения - и без новых записей
+    private static final String EPOCH_FILE = "epoch";
+
+    private final Path dir;
+    private final long segmentSize;
+    private final long syncIntervalNanos;
+    private final long retentionMillis;
+    private final long retentionBytes;
+
+    private final ArrayBlockingQueue<LogRecord> queue;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ArrayDeque<LogSegment> segments = new ArrayDeque<>();     // только поток-писатель
+    private volatile LogSegment[] readable = new LogSegment[0];             // снимок для чтения из других потоков
+    private long nextOffset;                                                // под appendLock
+    private long epoch;
+    private volatile long committedOffset;                                  // записано в файл (не включая)
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    private Thread writer;
+    private volatile boolean closed;
+
+
+    /**
+     * @param dir             Каталог сегментов.
+     * @param segmentSize     Размер сегмента, после которого начинается новый (байт).
+     * @param syncMillis      Интервал fsync (мс), 0 - после каждой фиксации, меньше 0 - не делать fsync.
+     * @param retentionHours  Срок хранения сегментов (часов), 0 - не ограничен.
+     * @param retentionBytes  Наибольший общий объем сегментов (байт), 0 - не ограничен.
+     * @param queueSize       Длина очереди на запись.
+     */
+    public MessageLog(Path dir, long segmentSize, long syncMillis, long retentionHours, long retentionBytes, int queueSize) {
+        this.dir = dir;
+        this.segmentSize = Math.max(4096, segmentSize);
+        this.syncIntervalNanos = syncMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        this.retentionMillis = TimeUnit.HOURS.toMillis(Math.max(0, retentionHours));
+        this.retentionBytes = Math.max(0, retentionBytes);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+    }
+
+    /**
+     * Открытие журнала (с проверкой последнего сегмента) и запуск писателя.
+     */
+    public void open() throws IOException
+    {
+        Files.createDirectories(dir);
+        epoch = loadEpoch();
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(LogSegment::isSegment).sorted().toList();
+        }
+        for (Path file : files)
+            segments.add(LogSegment.open(file));
+        if (segments.isEmpty())
+            segments.add(LogSegment.create(dir, 0));
+        nextOffset = segments.getLast().getNextOffset();
+        committedOffset = nextOffset;
+        applyRetention();
+        publish();
+        writer = new Thread(this::runWriter, "message-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Постановка сообщения в очередь на запись.
+     * @return Смещение сообщения в журнале, или -1, если очередь переполнена и сообщение не записано.
+     */
+    public long append(Message message)
+    {
+        if (closed)
+            return -1;
+        appendLock.lock();                                  // смещения должны идти в очереди по порядку
+        try {
+            if (!queue.offer(new LogRecord(nextOffset, System.currentTimeMillis(), message)))
+            {
+                dropped.increment();
+                return -1;
+            }
+            appended.increment();
+            return nextOffset++;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Остановка писателя: все принятое дописывается и сбрасывается на диск.
+     * Писатель не прерываем: прерывание во время записи закрыло бы FileChannel.
+     */
+    public void close()
+    {
+        closed = true;
+        Thread t = writer;
+        if (t != null)
+        {
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Чтение записанных сообщений.
+     * @param from Первое нужное смещение.
+     * @param to   Смещение, на котором остановиться (не включая).
+     * @param max  Наибольшее число записей.
+     * @return Записи по возрастанию смещений; сообщения, удаленные по сроку хранения, пропускаются.
+     */
+    public List<LogRecord> read(long from, long to, int max)
+    {
+        List<LogRecord> res = new ArrayList<>();
+        LogSegment[] view = readable;
+        to = Math.min(to, committedOffset);
+        // последний сегмент, начинающийся не позже from
+        int i = view.length - 1;
+        while (i > 0 && view[i].getBaseOffset() > from)
+            i--;
+        try {
+            for (; i < view.length && from < to && res.size() < max; i++)
+            {
+                view[i].read(from, to, max, res);
+                if (!res.isEmpty())
+                    from = res.get(res.size() - 1).getOffset() + 1;
+            }
+        } catch (IOException e) {
+            // сегмент удален по сроку хранения во время чтения - отдаем, что успели
+        }
+        return res;
+    }
+
+    /**
+     * Эпоха журнала: создается вместе с ним и не меняется, пока каталог журнала цел,
+     * поэтому номера сообщений сохраняют смысл между запусками сервера.
+     */
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    private long loadEpoch() throws IOException
+    {
+        Path file = dir.resolve(EPOCH_FILE);
+        if (Files.exists(file))
+        {
+            try {
+                return Long.parseLong(Files.readString(file).trim());
+            } catch (NumberFormatException e) {
+                System.out.println("MessageLog error! bad epoch file " + file.getFileName() + ", a new epoch begins");
+            }
+        }
+        long res = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        Files.writeString(file, Long.toString(res));
+        return res;
+    }
+
+    /**
+     * Смещение, которое получит следующее сообщение.
+     */
+    public long getNextOffset()
+    {
+        appendLock.lock();
+        try {
+            return nextOffset;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Все сообщения до этого смещения (не включая) уже записаны в файлы.
+     */
+    public long getCommittedOffset()
+    {
+        return committedOffset;
+    }
+
+    public Path getDir()
+    {
+        return dir;
+    }
+
+    public long getAppendedCount()
+    {
+        return appended.sum();
+    }
+
+    public long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+    public long getCommitCount()
+    {
+        return commits.sum();
+    }
+
+    public long getSyncCount()
+    {
+        return syncs.sum();
+    }
+
+    /*
+        Поток-писатель
+     */
+
+    private void runWriter()
+    {
+        List<LogRecord> batch = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long lastSync = System.nanoTime();
+        long lastRetention = lastSync;
+        boolean dirty = false;
+        try {
+            while (!closed)
+            {
+                // пока есть несброшенные данные, ждем не дольше интервала fsync
+                long wait = dirty && syncIntervalNanos >= 0
+                        ? Math.min(IDLE_WAIT, syncIntervalNanos - (System.nanoTime() - lastSync))
+                        : IDLE_WAIT;
+                LogRecord first;
+                try {
+                    first = queue.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (first != null)
+                {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    buffer = commit(batch, buffer);
+                    batch.clear();
+                    dirty = true;
+                }
+                if (dirty && syncIntervalNanos >= 0 && System.nanoTime() - lastSync >= syncIntervalNanos)
+                {
+                    segments.getLast().sync();
+                    syncs.increment();
+                    lastSync = System.nanoTime();
+                    dirty = false;
+                }
+                if (System.nanoTime() - lastRetention >= RETENTION_CHECK)
+                {
+                    checkRetention();
+                    lastRetention = System.nanoTime();
+                }
+            }
+            // дописываем остаток очереди
+            while (queue.drainTo(batch, MAX_BATCH) > 0)
+            {
+                buffer = commit(batch, buffer);
+                batch.clear();
+            }
+            if (syncIntervalNanos >= 0)
+                segments.getLast().sync();
+        } catch (IOException e) {
+            System.out.println("MessageLog error! " + e.getMessage());
+        }
+        for (LogSegment segment : segments)
+        {
+            try {
+                segment.close();
+            } catch (IOException ignored) {}
+        }
+        System.out.println("Server: message log stopped.");
+    }
+
+    /**
+     * Запись пачки одной операцией (с переходом на новый сегмент, если текущий заполнен).
+     * @return Буфер для следующей пачки (мог быть увеличен).
+     */
+    private ByteBuffer commit(List<LogRecord> batch, ByteBuffer buffer) throws IOException
+    {
+        int size = 0;
+        for (LogRecord record : batch)
+            size += record.size();
+        if (buffer.capacity() < size)
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.clear();
+        int[] starts = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++)
+        {
+            starts[i] = buffer.position();
+            batch.get(i).writeTo(buffer);
+        }
+        buffer.flip();
+
+        LogSegment segment = segments.getLast();
+        if (segment.getSize() > 0 && segment.getSize() + buffer.remaining() > segmentSize)
+            segment = roll();
+        long last = batch.get(batch.size() - 1).getOffset();
+        long position = segment.getSize();
+        segment.append(buffer, last);
+        for (int i = 0; i < batch.size(); i++)
+            segment.index(batch.get(i).getOffset(), position + starts[i]);
+        commits.increment();
+        committedOffset = last + 1;
+        return buffer;
+    }
+
+    /**
+     * Переход на новый сегмент: старый сбрасывается на диск и закрывается для записи.
+     */
+    private LogSegment roll() throws IOException
+    {
+        LogSegment old = segments.getLast();
+        if (syncIntervalNanos >= 0)
+        {
+            old.sync();
+            syncs.increment();
+        }
+        LogSegment segment = LogSegment.create(dir, old.getNextOffset());
+        segments.add(segment);
+        applyRetention();
+        publish();
+        return segment;
+    }
+
+    private void publish()
+    {
+        readable = segments.toArray(new LogSegment[0]);
+    }
+
+    /**
+     * Периодическая проверка срока хранения (в потоке-писателе). На тихом сервере
+     * сегменты не сменяются, поэтому ждать перехода на новый нельзя; если и текущий
+     * сегмент старше срока, начинается новый, а старый удаляется.
+     */
+    private void checkRetention() throws IOException
+    {
+        if (retentionMillis <= 0 && retentionBytes <= 0)
+            return;
+        LogSegment last = segments.getLast();
+        if (retentionMillis > 0 && last.getSize() > 0
+                && System.currentTimeMillis() - last.getLastModified() > retentionMillis)
+        {
+            roll();                                         // с удалением старых сегментов
+            return;
+        }
+        int before = segments.size();
+        applyRetention();
+        if (segments.size() != before)
+            publish();
+    }
+
+    /**
+     * Удаление старых сегментов (текущий не удаляется никогда).
+     */
+    private void applyRetention() throws IOException
+    {
+        long total = 0;
+        for (LogSegment segment : segments)
+            total += segment.getSize();
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1)
+        {
+            LogSegment oldest = segments.getFirst();
+            boolean expired = retentionMillis > 0 && now - oldest.getLastModified() > retentionMillis;
+            boolean tooBig = retentionBytes > 0 && total > retentionBytes;
+            if (!expired && !tooBig)
+                break;
+            total -= oldest.getSize();
+            segments.removeFirst().delete();
+        }
+    }
+}
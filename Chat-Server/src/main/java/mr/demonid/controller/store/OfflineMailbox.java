@@ -0,0 +1,315 @@
+package mr.demonid.controller.store;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.codec.Varint;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Почтовые ящики для личных сообщений пользователям, которые не в сети.
+ * <p>
+ * Ящик - это один упакованный массив байт на пользователя, без отдельного
+ * объекта на каждое сообщение, поэтому десятки тысяч ящиков занимают мало памяти.
+ * Запись в ящике:
+ * <pre>
+ * [long время, мс][varlong смещение+1][varint длина][автор UTF-8][varint длина][текст UTF-8]
+ * </pre>
+ * Объем ограничен квотами: число сообщений и байт на ящик, и общий объем всех ящиков.
+ * Сообщения старше TTL удаляются при выдаче и при периодической чистке.
+ * При остановке ящики сохраняются в файл, а при запуске - загружаются.
+ */
+public class OfflineMailbox {
+
+    /**
+     * Результат помещения сообщения в ящик.
+     */
+    public enum Result {STORED, USER_QUOTA, TOTAL_QUOTA}
+
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final int FILE_MAGIC = 0x4D424F58;      // "MBOX"
+
+    /**
+     * Ящик одного пользователя. Изменяется только внутри compute() карты ящиков.
+     */
+    private static final class Box {
+        byte[] data = new byte[64];
+        int size;
+        int count;
+        long oldest;                                        // время самого старого сообщения
+    }
+
+    private final int userMessages;
+    private final int userBytes;
+    private final long totalBytes;
+    private final long ttlMillis;
+
+    private final ConcurrentHashMap<String, Box> boxes = new ConcurrentHashMap<>();
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+
+    /**
+     * @param userMessages Наибольшее число сообщений в ящике.
+     * @param userBytes    Наибольший объем ящика (байт).
+     * @param totalBytes   Наибольший объем всех ящиков (байт).
+     * @param ttlHours     Срок хранения сообщения (часов), 0 - не ограничен.
+     */
+    public OfflineMailbox(int userMessages, int userBytes, long totalBytes, long ttlHours) {
+        this.userMessages = Math.max(1, userMessages);
+        this.userBytes = Math.max(256, userBytes);
+        this.totalBytes = Math.max(this.userBytes, totalBytes);
+        this.ttlMillis = TimeUnit.HOURS.toMillis(Math.max(0, ttlHours));
+    }
+
+    /**
+     * Помещение личного сообщения в ящик адресата.
+     */
+    public Result put(Message message)
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep.get() > SWEEP_INTERVAL)
+            sweep(now);
+        byte[] entry = encode(now, message);
+        Result[] res = {Result.STORED};
+        boxes.compute(message.getTargetName(), (name, box) -> {
+            if (box == null)
+                box = new Box();
+            if (box.count >= userMessages || box.size + entry.length > userBytes)
+            {
+                res[0] = Result.USER_QUOTA;
+            } else if (used.addAndGet(entry.length) > totalBytes) {
+                used.addAndGet(-entry.length);
+                res[0] = Result.TOTAL_QUOTA;
+            } else {
+                if (box.size + entry.length > box.data.length)
+                    box.data = Arrays.copyOf(box.data, Math.min(userBytes, Math.max(box.size + entry.length, box.data.length * 2)));
+                System.arraycopy(entry, 0, box.data, box.size, entry.length);
+                box.size += entry.length;
+                if (box.count++ == 0)
+                    box.oldest = now;
+            }
+            return box.count == 0 ? null : box;
+        });
+        if (res[0] == Result.STORED)
+            stored.increment();
+        else
+            rejected.increment();
+        return res[0];
+    }
+
+    /**
+     * Выдача (с удалением) всех сообщений из ящика пользователя.
+     * @return Сообщения по порядку поступления; просроченные отбрасываются.
+     */
+    public List<Message> take(String name)
+    {
+        Box box = boxes.remove(name);
+        List<Message> res = new ArrayList<>();
+        if (box == null)
+            return res;
+        used.addAndGet(-box.size);
+        long limit = ttlMillis > 0 ? System.currentTimeMillis() - ttlMillis : Long.MIN_VALUE;
+        ByteBuffer buffer = ByteBuffer.wrap(box.data, 0, box.size);
+        try {
+            while (buffer.hasRemaining())
+            {
+                long time = buffer.getLong();
+                long offset = Varint.getLong(buffer) - 1;
+                String author = getString(buffer);
+                String text = getString(buffer);
+                if (time < limit)
+                {
+                    expired.increment();
+                    continue;
+                }
+                Message message = new Message(new Account(author, "", "", ""), name, text);
+                message.setOffset(offset);
+                res.add(message);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Mailbox error! " + e.getMessage());
+        }
+        delivered.add(res.size());
+        return res;
+    }
+
+    /**
+     * Удаление просроченных сообщений из всех ящиков.
+     */
+    public void sweep(long now)
+    {
+        lastSweep.set(now);
+        if (ttlMillis <= 0)
+            return;
+        long limit = now - ttlMillis;
+        for (String name : boxes.keySet())
+            boxes.computeIfPresent(name, (k, box) -> box.oldest >= limit ? box : expire(box, limit));
+    }
+
+    /**
+     * Сохранение ящиков в файл (через временный файл, чтобы не испортить прежний).
+     * Вызывается после остановки обработки сообщений, когда ящики уже не меняются.
+     */
+    public void save(Path file) throws IOException
+    {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(FILE_MAGIC);
+            for (Map.Entry<String, Box> e : boxes.entrySet())
+            {
+                Box box = e.getValue();
+                out.writeBoolean(true);
+                out.writeUTF(e.getKey());
+                out.writeInt(box.count);
+                out.writeLong(box.oldest);
+                out.writeInt(box.size);
+                out.write(box.data, 0, box.size);
+            }
+            out.writeBoolean(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Загрузка ящиков из файла (если он есть). Просроченное сразу отбрасывается.
+     */
+    public void load(Path file) throws IOException
+    {
+        if (!Files.exists(file))
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Bad mailbox file: " + file);
+            while (in.readBoolean())
+            {
+                String name = in.readUTF();
+                Box box = new Box();
+                box.count = in.readInt();
+                box.oldest = in.readLong();
+                box.size = in.readInt();
+                if (box.size < 0 || box.size > userBytes || box.count < 0)
+                    throw new IOException("Bad mailbox file: " + file);
+                box.data = new byte[Math.max(64, box.size)];
+                in.readFully(box.data, 0, box.size);
+                if (boxes.putIfAbsent(name, box) == null)
+                    used.addAndGet(box.size);
+            }
+        }
+        sweep(System.currentTimeMillis());
+    }
+
+    public int size()
+    {
+        return boxes.size();
+    }
+
+    public long getUsedBytes()
+    {
+        return used.get();
+    }
+
+    public long getStoredCount()
+    {
+        return stored.sum();
+    }
+
+    public long getDeliveredCount()
+    {
+        return delivered.sum();
+    }
+
+    public long getRejectedCount()
+    {
+        return rejected.sum();
+    }
+
+    public long getExpiredCount()
+    {
+        return expired.sum();
+    }
+
+    /**
+     * Удаление из ящика сообщений старше limit (вызывается внутри compute).
+     * @return Ящик, или null, если он опустел.
+     */
+    private Box expire(Box box, long limit)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(box.data, 0, box.size);
+        int skip = 0;
+        int dropped = 0;
+        long oldest = 0;
+        try {
+            while (buffer.hasRemaining())
+            {
+                long time = buffer.getLong(buffer.position());
+                if (time >= limit)
+                {
+                    oldest = time;
+                    break;
+                }
+                buffer.getLong();
+                Varint.getLong(buffer);
+                buffer.position(buffer.position() + Varint.get(buffer));
+                buffer.position(buffer.position() + Varint.get(buffer));
+                skip = buffer.position();
+                dropped++;
+            }
+        } catch (IOException | RuntimeException e) {
+            skip = box.size;                                // испорчен - очищаем целиком
+            dropped = box.count;
+        }
+        expired.add(dropped);
+        used.addAndGet(-skip);
+        if (skip >= box.size)
+            return null;
+        System.arraycopy(box.data, skip, box.data, 0, box.size - skip);
+        box.size -= skip;
+        box.count -= dropped;
+        box.oldest = oldest;
+        return box;
+    }
+
+    private static byte[] encode(long time, Message message)
+    {
+        byte[] author = message.getAuthorName().getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+        long offset = message.getOffset() + 1;
+        ByteBuffer entry = ByteBuffer.allocate(Long.BYTES + Varint.sizeLong(offset)
+                + Varint.size(author.length) + author.length + Varint.size(text.length) + text.length);
+        entry.putLong(time);
+        Varint.putLong(entry, offset);
+        Varint.put(entry, author.length);
+        entry.put(author);
+        Varint.put(entry, text.length);
+        entry.put(text);
+        return entry.array();
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException
+    {
+        int len = Varint.get(buffer);
+        String res = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), len, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + len);
+        return res;
+    }
+}
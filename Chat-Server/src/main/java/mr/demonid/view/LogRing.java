@@ -0,0 +1,100 @@
+package mr.demonid.view;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Кольцо строк консоли сервера.
+ * Писатели (потоки диспетчера и другие) только занимают номер атомарным
+ * счетчиком и кладут строку в ячейку - без блокировок и без ожидания читателя.
+ * Единственный читатель (таймер окна или поток записи в файл) забирает строки
+ * с того места, где остановился. Если он отстал больше чем на емкость кольца,
+ * старые строки уже перезаписаны - они пропускаются и подсчитываются.
+ */
+public class LogRing
+{
+    /**
+     * Строка консоли.
+     * @param seq  Номер строки.
+     * @param time Время добавления, мс.
+     * @param text Текст.
+     */
+    public record Line(long seq, long time, String text) {}
+
+    private final AtomicReferenceArray<Line> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    // поля читателя
+    private long read;
+    private long dropped;
+
+
+    /**
+     * @param capacity Емкость (округляется вверх до степени двойки).
+     */
+    public LogRing(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Добавление строки (из любого потока).
+     */
+    public void add(String text)
+    {
+        long seq = next.getAndIncrement();
+        slots.lazySet((int) (seq & mask), new Line(seq, System.currentTimeMillis(), text));
+    }
+
+    /**
+     * Всего добавлено строк.
+     */
+    public long getAdded()
+    {
+        return next.get();
+    }
+
+    /**
+     * Забирает новые строки (только из потока читателя).
+     * @param out Куда сложить строки.
+     * @param max Не больше стольких строк; если новых больше, самые старые из них пропускаются.
+     * @return Сколько строк пропущено с прошлого вызова (перезаписаны или не влезли в max).
+     */
+    public long drainTo(List<Line> out, int max)
+    {
+        long end = next.get();
+        skipTo(end - Math.min(max, slots.length()));
+        int taken = 0;
+        while (read < end && taken < max)
+        {
+            Line line = slots.get((int) (read & mask));
+            if (line == null || line.seq() < read)
+                break;                              // писатель занял номер, но еще не положил строку
+            if (line.seq() > read)
+            {
+                // пока читали, кольцо обогнало читателя: догоняем
+                end = next.get();
+                skipTo(Math.max(read + 1, end - slots.length()));
+                continue;
+            }
+            out.add(line);
+            taken++;
+            read++;
+        }
+        long res = dropped;
+        dropped = 0;
+        return res;
+    }
+
+    private void skipTo(long seq)
+    {
+        if (seq > read)
+        {
+            dropped += seq - read;
+            read = seq;
+        }
+    }
+}
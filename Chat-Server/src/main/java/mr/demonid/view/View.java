@@ -7,7 +7,9 @@ public interface View
 {
 
     /**
-     * Прием сообщения для отображения в информационной консоли
+     * Прием сообщения для отображения в информационной консоли.
+     * Вызывается из любых потоков, в том числе потоками диспетчера на каждое
+     * сообщение, поэтому не должен блокироваться и ждать вывода.
      * @param message Сообщение формата "[@]Username: message"
      */
     void showMessage(String message);
@@ -0,0 +1,215 @@
+package mr.demonid.view;
+
+import mr.demonid.controller.ServerConfig;
+import mr.demonid.view.listeners.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Сервер без графического интерфейса (Swing не загружается вовсе).
+ * Строки консоли, как и в окне, идут через кольцо (LogRing), а отдельный поток
+ * раз в FLUSH_MILLIS дописывает накопившееся с отметками времени в файл
+ * или, если вместо имени файла задан "-", в стандартный вывод.
+ * Когда файл дорастает до заданного размера, он переименовывается
+ * в .1 (.1 в .2 и т.д., самый старый удаляется) и начинается новый.
+ * Вместо кнопок - методы start() и stop().
+ */
+public class ViewHeadless implements View
+{
+    private static final long FLUSH_MILLIS = 100;
+
+    private record Registration(Class<?> type, ServerEventListener listener) {}
+
+    private final List<Registration> listeners = new CopyOnWriteArrayList<>();
+    private final LogRing ring;
+    private final Path file;                    // null - стандартный вывод
+    private final long maxSize;
+    private final int maxFiles;
+    private final Thread writer;
+    private volatile boolean running = true;
+    // поля потока записи
+    private DateTimeFormatter time;             // создается в потоке записи: загрузка часовых поясов небыстрая
+    private OutputStream out;
+    private long size;
+
+
+    public ViewHeadless()
+    {
+        ServerConfig config = ServerConfig.getInstance();
+        ring = new LogRing(config.getConsoleRingSize());
+        Path path = config.getConsoleFile();
+        file = path.toString().equals("-") ? null : path.toAbsolutePath();
+        maxSize = config.getConsoleFileSize();
+        maxFiles = config.getConsoleFileCount();
+        writer = new Thread(this::runWriter, "console-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void showMessage(String message)
+    {
+        ring.add(message);
+    }
+
+    @Override
+    public <T extends ServerEventListener> void removeListeners(Class<T> t, T l)
+    {
+        listeners.removeIf(r -> r.type() == t && r.listener() == l);
+    }
+
+    @Override
+    public <T extends ServerEventListener> void addListener(Class<T> t, T l)
+    {
+        listeners.add(new Registration(t, l));
+    }
+
+    /**
+     * Запуск сервера (то же, что кнопка "Start").
+     */
+    public void start()
+    {
+        fire(StartServerListener.class, l -> l.actionPerformed(new StartServerEvent(this)));
+    }
+
+    /**
+     * Остановка сервера и дозапись консоли (то же, что "Stop" и закрытие окна).
+     */
+    public void stop()
+    {
+        fire(StopServerListener.class, l -> l.actionPerformed(new StopServerEvent(this)));
+        fire(DisconnectListener.class, l -> l.actionPerformed(new DisconnectEvent(this)));
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(1000);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private <T extends ServerEventListener> void fire(Class<T> type, Consumer<T> action)
+    {
+        // в обратном порядке регистрации, как в окне; слушатель может удалять
+        // слушателей, поэтому идем по снимку списка
+        List<Registration> snapshot = new ArrayList<>(listeners);
+        for (int i = snapshot.size() - 1; i >= 0; i--)
+        {
+            Registration r = snapshot.get(i);
+            if (r.type() == type)
+                action.accept(type.cast(r.listener()));
+        }
+    }
+
+
+    /*===========================================================================
+     *
+     * Запись консоли в файл
+     *
+     ===========================================================================*/
+
+    private void runWriter()
+    {
+        time = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+        List<LogRing.Line> batch = new ArrayList<>();
+        while (running)
+        {
+            try {
+                Thread.sleep(FLUSH_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            write(batch);
+        }
+        write(batch);
+        close();
+    }
+
+    private void write(List<LogRing.Line> batch)
+    {
+        long dropped = ring.drainTo(batch, Integer.MAX_VALUE);
+        if (batch.isEmpty() && dropped == 0)
+            return;
+        StringBuilder sb = new StringBuilder();
+        if (dropped > 0)
+            sb.append(time.format(Instant.now())).append(" ... пропущено строк: ").append(dropped).append('\n');
+        for (LogRing.Line line : batch)
+            sb.append(time.format(Instant.ofEpochMilli(line.time()))).append(' ').append(line.text()).append('\n');
+        batch.clear();
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (out == null)
+                open();
+            out.write(bytes);
+            out.flush();
+            size += bytes.length;
+            if (size >= maxSize && file != null)
+                roll();
+        } catch (IOException e) {
+            System.out.println("Console log error! " + e.getMessage());
+            close();                                // попробуем открыть заново со следующей пачкой
+        }
+    }
+
+    private void open() throws IOException
+    {
+        if (file == null)
+        {
+            out = System.out;
+            return;
+        }
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        size = Files.size(file);
+    }
+
+    /**
+     * Переход на новый файл: server.log -> server.log.1 -> server.log.2 ...
+     */
+    private void roll() throws IOException
+    {
+        close();
+        if (maxFiles == 0)
+        {
+            Files.deleteIfExists(file);
+        } else {
+            for (int i = maxFiles - 1; i >= 1; i--)
+            {
+                Path older = numbered(i);
+                if (Files.exists(older))
+                    Files.move(older, numbered(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(file, numbered(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        open();
+    }
+
+    private Path numbered(int n)
+    {
+        return file.resolveSibling(file.getFileName() + "." + n);
+    }
+
+    private void close()
+    {
+        if (out == null || out == System.out)
+            return;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        out = null;
+    }
+}
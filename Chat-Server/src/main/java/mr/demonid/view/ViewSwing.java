@@ -1,40 +1,112 @@
 package mr.demonid.view;
 
+import mr.demonid.controller.ServerConfig;
 import mr.demonid.view.listeners.*;
 
 import javax.swing.*;
 import javax.swing.event.EventListenerList;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
 import java.awt.event.WindowEvent;
-
-
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Окно сервера.
+ * Строки консоли потоки сервера кладут в кольцо (LogRing) без блокировок,
+ * а окно забирает их таймером с постоянной частотой и выводит одной вставкой.
+ * Окно хранит не больше заданного числа строк; если строк приходит больше,
+ * чем помещается, выводятся последние, с пометкой о числе пропущенных.
+ * В заголовке показывается текущая скорость (строк в секунду).
+ */
 public class ViewSwing extends JFrame implements View {
 
+    private static final String TITLE = "Chat server";
+
     private static final int WINDOW_WIDTH = 300;
     private static final int WINDOW_HEIGHT = 400;
     private static final int WINDOW_POS_X = 0;
     private static final int WINDOW_POS_Y = 0;
 
     private final EventListenerList listenerList;
+    private final LogRing ring;
+    private final int maxLines;
+    private final List<LogRing.Line> frame = new ArrayList<>();
+    private long rateAdded;                     // для подсчета скорости
+    private long rateTime;
 
     JButton btnStart;
     JButton btnStop;
     JTextArea logPanel;
 
     public ViewSwing() throws HeadlessException {
-        setTitle("Chat server");
+        ServerConfig config = ServerConfig.getInstance();
+        ring = new LogRing(config.getConsoleRingSize());
+        maxLines = config.getConsoleLines();
+        setTitle(TITLE);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setSize(WINDOW_WIDTH, WINDOW_HEIGHT);
         setLocation(WINDOW_POS_X, WINDOW_POS_Y);
         createGUI();
         listenerList = new EventListenerList();
+        rateTime = System.nanoTime();
+        new Timer(1000 / config.getConsoleFps(), e -> render()).start();
         setVisible(true);
     }
 
+    /**
+     * Строка в консоль (из любого потока, вызывающий не ждет EDT).
+     */
     @Override
     public void showMessage(String message) {
-        logPanel.append(message);
-        logPanel.append("\n");
+        ring.add(message);
+    }
+
+    /**
+     * Вывод накопившихся строк (в EDT, по таймеру).
+     */
+    private void render()
+    {
+        long dropped = ring.drainTo(frame, maxLines);
+        if (frame.isEmpty() && dropped == 0)
+        {
+            updateRate();
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        if (dropped > 0)
+            sb.append("... пропущено строк: ").append(dropped).append('\n');
+        for (LogRing.Line line : frame)
+            sb.append(line.text()).append('\n');
+        frame.clear();
+        logPanel.append(sb.toString());
+        // последняя строка после завершающего перевода строки пустая
+        int excess = logPanel.getLineCount() - 1 - maxLines;
+        if (excess > 0)
+        {
+            try {
+                logPanel.replaceRange("", 0, logPanel.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                System.out.println("Console trim error! " + e.getMessage());
+            }
+        }
+        updateRate();
+    }
+
+    /**
+     * Скорость поступления строк в заголовке (раз в секунду).
+     */
+    private void updateRate()
+    {
+        long now = System.nanoTime();
+        if (now - rateTime < 1_000_000_000L)
+            return;
+        long added = ring.getAdded();
+        long rate = (added - rateAdded) * 1_000_000_000L / (now - rateTime);
+        rateAdded = added;
+        rateTime = now;
+        setTitle(rate > 0 ? TITLE + " - " + rate + " строк/с" : TITLE);
     }
 
     @Override
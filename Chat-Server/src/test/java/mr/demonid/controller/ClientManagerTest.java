@@ -0,0 +1,125 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Вход, почтовый ящик и возобновление сеансов - на соединениях без сети.
+ */
+class ClientManagerTest {
+
+    private final ClientManager manager = ClientManager.getInstance();
+    private final ServerConfig config = ServerConfig.getInstance();
+
+    private void start(long graceSeconds) throws IOException {
+        config.set("chat.server.session.grace", Long.toString(graceSeconds));
+        config.set("chat.server.timer.tick", "10");
+        manager.start(config, m -> {}, s -> {});
+    }
+
+    @AfterEach
+    void stop() {
+        manager.removeAllUsers();
+        manager.stop();
+    }
+
+    private static Message personal(TestConnection from, String to, String text) {
+        return new Message(from.getAccount(), to, text);
+    }
+
+    @Test
+    void mailboxDeliveredAfterLogin() throws IOException {
+        start(30);
+        TestConnection bob = new TestConnection("bob");
+        assertTrue(manager.registerUser(bob, -1, null));
+        manager.resendPrivateMessage(personal(bob, "alice", "пока тебя не было"));
+        assertTrue(bob.texts().get(bob.texts().size() - 1).startsWith("alice не в сети"));
+
+        TestConnection alice = new TestConnection("alice");
+        assertTrue(manager.registerUser(alice, -1, null));
+        List<Message> mail = alice.priority();
+        assertEquals(1, mail.size());
+        assertEquals("bob", mail.get(0).getAuthorName());
+        assertEquals("пока тебя не было", mail.get(0).getMessage());
+        assertTrue(manager.getMailbox().take("alice").isEmpty());   // из ящика изъято
+    }
+
+    @Test
+    void loginIsAcknowledgedWithoutSessions() throws IOException {
+        start(0);
+        TestConnection alice = new TestConnection("alice");
+        assertTrue(manager.registerUser(alice, -1, null));
+        assertEquals("", alice.token());                    // подтверждение входа без токена
+        Message session = alice.received().stream().filter(m -> m.getType() == MessageType.SESSION).findFirst().get();
+        assertNotEquals(0, session.getEpoch());
+    }
+
+    @Test
+    void takenNameIsRejected() throws IOException {
+        start(30);
+        TestConnection alice = new TestConnection("alice");
+        assertTrue(manager.registerUser(alice, -1, null));
+        TestConnection other = new TestConnection("alice");
+        assertFalse(manager.registerUser(other, -1, "чужой токен"));
+        assertFalse(other.isOpen());
+        assertTrue(alice.isOpen());
+    }
+
+    @Test
+    void resumeGetsWhatWasBuffered() throws IOException {
+        start(30);
+        long resumed = manager.getSessionStats().get("resumed");
+        TestConnection bob = new TestConnection("bob");
+        TestConnection alice = new TestConnection("alice");
+        manager.registerUser(bob, -1, null);
+        manager.registerUser(alice, -1, null);
+        String token = alice.token();
+        assertNotNull(token);
+
+        alice.lose();
+        manager.unregisterUser(alice);
+        manager.resendPrivateMessage(personal(bob, "alice", "в обрыв"));
+        assertTrue(bob.texts().stream().noneMatch(t -> t.contains("не в сети")));   // сеанс ждет клиента
+
+        TestConnection back = new TestConnection("alice");
+        assertTrue(manager.registerUser(back, -1, token));
+        assertTrue(back.texts().contains("в обрыв"));
+        assertNotEquals(token, back.token());               // старый токен больше не действует
+        assertEquals(resumed + 1, manager.getSessionStats().get("resumed"));
+
+        manager.resendPrivateMessage(personal(bob, "alice", "после"));
+        assertTrue(back.texts().contains("после"));
+    }
+
+    @Test
+    void expiredSessionFallsBackToMailbox() throws Exception {
+        start(1);
+        long expired = manager.getSessionStats().get("expired");
+        TestConnection bob = new TestConnection("bob");
+        TestConnection alice = new TestConnection("alice");
+        manager.registerUser(bob, -1, null);
+        manager.registerUser(alice, -1, null);
+        String token = alice.token();
+
+        alice.lose();
+        manager.unregisterUser(alice);
+        manager.resendPrivateMessage(personal(bob, "alice", "не дождался"));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (manager.getSessionStats().get("expired") == expired && System.nanoTime() < deadline)
+            Thread.sleep(20);
+        assertEquals(expired + 1, manager.getSessionStats().get("expired"));
+
+        // сеанса больше нет: обычный вход, а недоставленное - из ящика
+        TestConnection back = new TestConnection("alice");
+        assertTrue(manager.registerUser(back, -1, token));
+        assertEquals(List.of("не дождался"), back.priority().stream().map(Message::getMessage).toList());
+    }
+}
@@ -0,0 +1,118 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.codec.SharedFrame;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DetachedSessionTest {
+
+    private static final Account ALICE = new Account("alice", "", "", "");
+    private static final Account BOB = new Account("bob", "", "", "");
+
+    private static SharedFrame personal(String text) {
+        return new SharedFrame(new Message(BOB, "alice", text));
+    }
+
+    @Test
+    void buffersUntilResumed() {
+        DetachedSession session = new DetachedSession(ALICE, "t", 10);
+        session.addUnsent(List.of(personal("unsent")));
+        session.send(personal("later"));
+        assertTrue(session.claim());
+        TestConnection client = new TestConnection("alice");
+        session.resume(client, Set.of());
+        session.send(personal("forwarded"));                // после возобновления - прямо новому соединению
+        assertEquals(List.of("unsent", "later", "forwarded"), client.texts());
+        assertEquals(0, session.getQueueDepth());
+    }
+
+    @Test
+    void skipsAlreadyDelivered() {
+        DetachedSession session = new DetachedSession(ALICE, "t", 10);
+        Message old = new Message(BOB, null, "from history");
+        old.setOffset(5);
+        session.send(new SharedFrame(old));
+        session.send(personal("new"));
+        assertTrue(session.claim());
+        TestConnection client = new TestConnection("alice");
+        session.resume(client, Set.of(5L));
+        assertEquals(List.of("new"), client.texts());
+    }
+
+    @Test
+    void overflowIsReported() {
+        DetachedSession session = new DetachedSession(ALICE, "t", 2);
+        for (int i = 0; i < 5; i++)
+            session.send(personal("m" + i));
+        assertTrue(session.claim());
+        TestConnection client = new TestConnection("alice");
+        session.resume(client, Set.of());
+        assertEquals(List.of("пропущено сообщений: 3", "m3", "m4"), client.texts());
+    }
+
+    @Test
+    void claimedSessionDoesNotExpire() {
+        DetachedSession session = new DetachedSession(ALICE, "t", 10);
+        session.send(personal("m"));
+        assertTrue(session.claim());
+        assertNull(session.expire());
+        assertFalse(session.claim());                       // второй раз не захватить
+    }
+
+    @Test
+    void expiredSessionCannotBeClaimed() {
+        DetachedSession session = new DetachedSession(ALICE, "t", 10);
+        session.send(personal("m"));
+        List<SharedFrame> unsent = session.expire();
+        assertEquals(1, unsent.size());
+        assertFalse(session.claim());
+        session.send(personal("dropped"));                  // после истечения сообщения отбрасываются
+        assertEquals(0, session.getQueueDepth());
+    }
+
+    @Test
+    void claimRacingExpiryDeliversOnce() throws InterruptedException {
+        for (int round = 0; round < 2000; round++) {
+            DetachedSession session = new DetachedSession(ALICE, "t", 10);
+            session.send(personal("m"));
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicBoolean claimed = new AtomicBoolean();
+            AtomicReference<List<SharedFrame>> expired = new AtomicReference<>();
+            Thread resumer = Thread.ofPlatform().start(() -> {
+                await(start);
+                claimed.set(session.claim());
+            });
+            Thread timer = Thread.ofPlatform().start(() -> {
+                await(start);
+                expired.set(session.expire());
+            });
+            start.countDown();
+            resumer.join();
+            timer.join();
+            // ровно один победитель: либо сеанс возобновляется, либо его сообщения уходят в ящик
+            assertNotEquals(claimed.get(), expired.get() != null, "раунд " + round);
+            if (claimed.get()) {
+                TestConnection client = new TestConnection("alice");
+                session.resume(client, Set.of());
+                assertEquals(List.of("m"), client.texts());
+            } else {
+                assertEquals(1, expired.get().size());
+            }
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ignored) {}
+    }
+}
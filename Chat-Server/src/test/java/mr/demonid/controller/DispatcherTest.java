@@ -0,0 +1,143 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DispatcherTest {
+
+    private static Message message(String from, String to, int seq) {
+        return new Message(new Account(from, "", "", ""), to, Integer.toString(seq));
+    }
+
+    /**
+     * Ключ беседы: комната, пара собеседников (без учета направления) или автор в общем чате.
+     */
+    private static String conversation(Message m) {
+        if (m.isPrivate())
+            return m.getAuthorName().compareTo(m.getTargetName()) < 0
+                    ? m.getAuthorName() + "-" + m.getTargetName() : m.getTargetName() + "-" + m.getAuthorName();
+        return m.hasTarget() ? m.getTargetName() : m.getAuthorName();
+    }
+
+    @Test
+    void privateConversationIsOneShard() {
+        Dispatcher dispatcher = new Dispatcher(8, 16, m -> {}, s -> {});
+        for (int i = 0; i < 100; i++) {
+            String a = "user" + i;
+            String b = "user" + (i * 7 + 3);
+            assertEquals(dispatcher.shardOf(message(a, b, 0)), dispatcher.shardOf(message(b, a, 0)));
+        }
+    }
+
+    @Test
+    void globalChatIsSpreadByAuthor() {
+        Dispatcher dispatcher = new Dispatcher(8, 16, m -> {}, s -> {});
+        long used = IntStream.range(0, 100)
+                .map(i -> dispatcher.shardOf(message("user" + i, null, 0)))
+                .distinct().count();
+        assertTrue(used > 1);
+    }
+
+    @Test
+    void keepsOrderWithinConversation() throws InterruptedException {
+        int perSender = 2000;
+        String[][] senders = {                              // автор, адресат
+                {"alice", null}, {"bob", null},
+                {"alice", "bob"}, {"bob", "alice"},
+                {"carol", "#dev"}, {"dave", "#dev"}, {"erin", "#ops"},
+        };
+        Map<String, List<String>> seen = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(senders.length * perSender);
+        Dispatcher dispatcher = new Dispatcher(4, 64, m -> {
+            seen.computeIfAbsent(conversation(m), k -> new CopyOnWriteArrayList<>())
+                    .add(m.getAuthorName() + ":" + m.getMessage());
+            done.countDown();
+        }, s -> {});
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            dispatcher.start(executor);
+            List<Thread> writers = new ArrayList<>();
+            for (String[] s : senders) {
+                writers.add(Thread.ofVirtual().start(() -> {
+                    try {
+                        for (int i = 0; i < perSender; i++)
+                            dispatcher.submitOrWait(message(s[0], s[1], i));
+                    } catch (InterruptedException ignored) {}
+                }));
+            }
+            for (Thread t : writers)
+                t.join();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            dispatcher.stop();
+        }
+
+        // в каждой беседе сообщения каждого автора идут по порядку
+        for (List<String> list : seen.values()) {
+            Map<String, Integer> last = new ConcurrentHashMap<>();
+            for (String entry : list) {
+                String author = entry.substring(0, entry.indexOf(':'));
+                int seq = Integer.parseInt(entry.substring(entry.indexOf(':') + 1));
+                assertEquals(last.getOrDefault(author, -1) + 1, seq, "порядок нарушен: " + author);
+                last.put(author, seq);
+            }
+        }
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    void handlerErrorDoesNotStopShard() throws InterruptedException {
+        List<String> console = new CopyOnWriteArrayList<>();
+        CountDownLatch handled = new CountDownLatch(1);
+        Dispatcher dispatcher = new Dispatcher(1, 16, m -> {
+            if (m.getMessage().equals("0"))
+                throw new IllegalStateException("сбой");
+            handled.countDown();
+        }, console::add);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            dispatcher.start(executor);
+            assertTrue(dispatcher.submit(message("alice", null, 0)));
+            assertTrue(dispatcher.submit(message("alice", null, 1)));
+            assertTrue(handled.await(5, TimeUnit.SECONDS));
+            dispatcher.stop();
+        }
+        assertEquals(1, console.size());
+        assertTrue(console.get(0).startsWith("Error: "));
+    }
+
+    @Test
+    void trySubmitCallsBackWhenShardFrees() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch resumed = new CountDownLatch(1);
+        Dispatcher dispatcher = new Dispatcher(1, 2, m -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {}
+        }, s -> {});
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            dispatcher.start(executor);
+            // шард занят первым сообщением, очередь (2) заполняется, третье не принимается
+            int accepted = 0;
+            while (dispatcher.trySubmit(message("alice", null, accepted), resumed::countDown))
+                accepted++;
+            assertTrue(accepted >= 2);
+            assertEquals(1, dispatcher.getPausedCount());
+            release.countDown();
+            assertTrue(resumed.await(5, TimeUnit.SECONDS));
+            dispatcher.stop();
+        }
+    }
+}
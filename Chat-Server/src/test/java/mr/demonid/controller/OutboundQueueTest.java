@@ -0,0 +1,113 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.codec.SharedFrame;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+
+    private static final Account ALICE = new Account("alice", "", "", "");
+
+    private static SharedFrame text(String text) {
+        return new SharedFrame(new Message(ALICE, null, text));
+    }
+
+    private static SharedFrame personal(String text) {
+        return new SharedFrame(new Message(ALICE, "bob", text));
+    }
+
+    private static List<String> drain(OutboundQueue queue) {
+        List<String> res = new ArrayList<>();
+        SharedFrame frame;
+        while ((frame = queue.poll()) != null)
+            res.add(frame.getMessage().getMessage());
+        return res;
+    }
+
+    @Test
+    void keepsOrderWithinCapacity() {
+        OutboundQueue queue = new OutboundQueue(100, SlowConsumerPolicy.DISCONNECT, 10_000);
+        for (int i = 0; i < 20; i++)                        // с ростом кольцевого буфера
+            assertTrue(queue.offer(text("m" + i)));
+        assertEquals(20, queue.size());
+        List<String> res = drain(queue);
+        assertEquals(20, res.size());
+        for (int i = 0; i < 20; i++)
+            assertEquals("m" + i, res.get(i));
+    }
+
+    @Test
+    void dropOldestKeepsNewest() {
+        OutboundQueue queue = new OutboundQueue(3, SlowConsumerPolicy.DROP_OLDEST, 10_000);
+        for (int i = 0; i < 5; i++)
+            assertTrue(queue.offer(text("m" + i)));
+        assertEquals(2, queue.getDropped());
+        assertEquals(List.of("m2", "m3", "m4"), drain(queue));
+    }
+
+    @Test
+    void coalesceKeepsPrivateAndReportsSkipped() {
+        OutboundQueue queue = new OutboundQueue(3, SlowConsumerPolicy.COALESCE, 10_000);
+        queue.offer(text("t1"));
+        queue.offer(personal("p1"));
+        queue.offer(text("t2"));
+        queue.offer(text("t3"));                            // переполнение: общие выбрасываются
+        assertEquals(2, queue.getDropped());
+        List<String> res = drain(queue);
+        assertEquals(List.of("пропущено сообщений: 2", "p1", "t3"), res);
+    }
+
+    @Test
+    void coalesceDropsOldestPrivateWhenNothingElseLeft() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.COALESCE, 10_000);
+        queue.offer(personal("p1"));
+        queue.offer(personal("p2"));
+        queue.offer(personal("p3"));
+        assertEquals(1, queue.getDropped());
+        assertEquals(List.of("p2", "p3"), drain(queue));
+    }
+
+    @Test
+    void disconnectOnOverflow() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.DISCONNECT, 10_000);
+        assertTrue(queue.offer(text("m1")));
+        assertTrue(queue.offer(text("m2")));
+        assertFalse(queue.offer(text("m3")));
+    }
+
+    @Test
+    void disconnectOnLag() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(100, SlowConsumerPolicy.DISCONNECT, 20);
+        assertTrue(queue.offer(text("m1")));
+        Thread.sleep(50);
+        assertFalse(queue.offer(text("m2")));               // самое старое ждет дольше допустимого
+    }
+
+    @Test
+    void priorityGoesFirstAndIsNeverDropped() {
+        OutboundQueue queue = new OutboundQueue(1, SlowConsumerPolicy.DROP_OLDEST, 10_000);
+        queue.offer(text("m1"));
+        queue.offerPriority(personal("mail1"));
+        queue.offerPriority(personal("mail2"));
+        queue.offer(text("m2"));
+        assertEquals(List.of("mail1", "mail2", "m2"), drain(queue));
+    }
+
+    @Test
+    void closeAndDrainReturnsUnsent() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(10, SlowConsumerPolicy.DISCONNECT, 10_000);
+        queue.offer(text("m1"));
+        queue.offerPriority(personal("mail"));
+        List<SharedFrame> unsent = queue.closeAndDrain();
+        assertEquals(List.of("mail", "m1"), unsent.stream().map(f -> f.getMessage().getMessage()).toList());
+        assertNull(queue.take());                           // закрытая очередь не блокирует писателя
+        assertTrue(queue.offer(text("m2")));
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,107 @@
+package mr.demonid.controller;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import mr.demonid.commons.MessageType;
+import mr.demonid.commons.codec.SharedFrame;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Соединение без сети: запоминает все, что ему отправлено.
+ */
+class TestConnection implements Connection {
+
+    private final Account account;
+    private final List<Message> received = new ArrayList<>();
+    private final List<Message> priority = new ArrayList<>();
+    private volatile boolean resumable;
+    private volatile boolean closed;
+
+
+    TestConnection(String name) {
+        this.account = new Account(name, "", "", "");
+    }
+
+    @Override
+    public Account getAccount() {
+        return account;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public synchronized void send(SharedFrame frame) {
+        received.add(frame.getMessage());
+    }
+
+    @Override
+    public synchronized void sendPriority(SharedFrame frame) {
+        priority.add(frame.getMessage());
+        received.add(frame.getMessage());
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public void reject(String reason) {
+        close();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Обрыв связи: сеанс можно сохранить.
+     */
+    void lose() {
+        resumable = true;
+        closed = true;
+    }
+
+    synchronized List<Message> received() {
+        return new ArrayList<>(received);
+    }
+
+    synchronized List<Message> priority() {
+        return new ArrayList<>(priority);
+    }
+
+    /**
+     * Тексты полученных сообщений чата (без служебных).
+     */
+    synchronized List<String> texts() {
+        return received.stream().filter(m -> m.getType() == MessageType.TEXT).map(Message::getMessage).toList();
+    }
+
+    /**
+     * Последний выданный сервером токен сеанса.
+     */
+    synchronized String token() {
+        String res = null;
+        for (Message m : received)
+            if (m.getType() == MessageType.SESSION)
+                res = m.getMessage();
+        return res;
+    }
+}
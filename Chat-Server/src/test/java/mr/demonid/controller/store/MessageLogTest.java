@@ -0,0 +1,151 @@
+package mr.demonid.controller.store;
+
+import mr.demonid.commons.Account;
+import mr.demonid.commons.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageLogTest {
+
+    private static final Account ALICE = new Account("alice", "", "", "");
+    private static final String TEXT = "x".repeat(100);
+
+    @TempDir
+    Path dir;
+
+    private MessageLog open(long segmentSize, long retentionBytes) throws IOException {
+        MessageLog log = new MessageLog(dir, segmentSize, -1, 0, retentionBytes, 1024);
+        log.open();
+        return log;
+    }
+
+    private static void appendAll(MessageLog log, int count) throws InterruptedException {
+        long first = log.getNextOffset();
+        for (int i = 0; i < count; i++)
+            assertEquals(first + i, log.append(new Message(ALICE, i % 2 == 0 ? null : "bob", TEXT + (first + i))));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (log.getCommittedOffset() < first + count && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(first + count, log.getCommittedOffset());
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.filter(LogSegment::isSegment).count();
+        }
+    }
+
+    private long segmentBytes() throws IOException {
+        long total = 0;
+        try (Stream<Path> list = Files.list(dir)) {
+            for (Path file : list.filter(LogSegment::isSegment).toList())
+                total += Files.size(file);
+        }
+        return total;
+    }
+
+    @Test
+    void appendAndRead() throws Exception {
+        MessageLog log = open(1 << 20, 0);
+        try {
+            appendAll(log, 10);
+            List<LogRecord> records = log.read(3, Long.MAX_VALUE, 100);
+            assertEquals(7, records.size());
+            for (int i = 0; i < records.size(); i++) {
+                Message message = records.get(i).getMessage();
+                assertEquals(3 + i, records.get(i).getOffset());
+                assertEquals("alice", message.getAuthorName());
+                assertEquals(TEXT + (3 + i), message.getMessage());
+            }
+            assertEquals("bob", records.get(0).getMessage().getTargetName());
+            assertEquals(2, log.read(0, 2, 100).size());
+            assertEquals(4, log.read(0, Long.MAX_VALUE, 4).size());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void reopenContinuesOffsetsAndEpoch() throws Exception {
+        MessageLog log = open(1 << 20, 0);
+        appendAll(log, 5);
+        long epoch = log.getEpoch();
+        log.close();
+
+        log = open(1 << 20, 0);
+        try {
+            assertEquals(epoch, log.getEpoch());
+            assertEquals(5, log.getNextOffset());
+            assertEquals(5, log.read(0, Long.MAX_VALUE, 100).size());
+            appendAll(log, 3);
+            List<LogRecord> records = log.read(0, Long.MAX_VALUE, 100);
+            assertEquals(8, records.size());
+            assertEquals(7, records.get(7).getOffset());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void badEpochFileStartsNewEpoch() throws Exception {
+        Files.writeString(dir.resolve("epoch"), "garbage");
+        MessageLog log = open(1 << 20, 0);
+        try {
+            assertTrue(log.getEpoch() > 0);
+            assertEquals(Long.toString(log.getEpoch()), Files.readString(dir.resolve("epoch")));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void rollsSegments() throws Exception {
+        MessageLog log = open(4096, 0);
+        try {
+            for (int i = 0; i < 10; i++)
+                appendAll(log, 20);                         // пачками, чтобы сегменты сменялись
+            assertTrue(segmentCount() > 1);
+            List<LogRecord> records = log.read(0, Long.MAX_VALUE, 1000);
+            assertEquals(200, records.size());              // чтение идет через границы сегментов
+            for (int i = 0; i < records.size(); i++)
+                assertEquals(i, records.get(i).getOffset());
+        } finally {
+            log.close();
+        }
+        MessageLog reopened = open(4096, 0);
+        try {
+            assertEquals(200, reopened.getNextOffset());
+            List<LogRecord> tail = reopened.read(50, Long.MAX_VALUE, 1000);
+            assertEquals(150, tail.size());
+            assertEquals(50, tail.get(0).getOffset());
+            assertEquals(199, tail.get(149).getOffset());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void retentionBySizeDropsOldSegments() throws Exception {
+        MessageLog log = open(4096, 3 * 4096);
+        try {
+            for (int i = 0; i < 30; i++)
+                appendAll(log, 20);
+            assertTrue(segmentBytes() <= 4 * 4096);        // предел плюс текущий сегмент
+            List<LogRecord> records = log.read(0, Long.MAX_VALUE, 1000);
+            assertFalse(records.isEmpty());
+            assertTrue(records.get(0).getOffset() > 0);     // начало журнала удалено
+            assertEquals(599, records.get(records.size() - 1).getOffset());
+        } finally {
+            log.close();
+        }
+    }
+}